@@ -0,0 +1,91 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeProcessorConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessor;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.StockTradeGenerator;
+
+/**
+ * 事前に作成したレコードのバッチをレコードプロセッサで処理する性能を計測します。
+ * チェックポインタは何もしない実装に置き換えます。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordProcessorBenchmark {
+
+    private static final int BATCH_RECORDS = 1000;
+
+    @Param({"JSON", "BINARY"})
+    private StockTradeCodec.Format format;
+
+    private StockTradeRecordProcessor processor;
+    private ProcessRecordsInput input;
+
+    @Setup
+    public void setUp() {
+        // レコードごとのログ出力を計測に含めない
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        StockTradeGenerator generator = new StockTradeGenerator();
+        Instant arrival = Instant.now();
+        List<KinesisClientRecord> records = new ArrayList<>(BATCH_RECORDS);
+        for (int i = 0; i < BATCH_RECORDS; i++) {
+            records.add(KinesisClientRecord.builder()
+                    .sequenceNumber(Integer.toString(i + 1))
+                    .partitionKey("benchmark")
+                    .approximateArrivalTimestamp(arrival)
+                    .data(ByteBuffer.wrap(StockTradeCodec.encode(generator.getRandomTrade(), format)))
+                    .build());
+        }
+        RecordProcessorCheckpointer checkpointer = (RecordProcessorCheckpointer) Proxy.newProxyInstance(
+                RecordProcessorCheckpointer.class.getClassLoader(),
+                new Class<?>[] {RecordProcessorCheckpointer.class},
+                (proxy, method, args) -> null);
+        input = ProcessRecordsInput.builder().records(records).checkpointer(checkpointer).build();
+
+        processor = new StockTradeRecordProcessor(StockTradeProcessorConfig.defaults());
+        processor.initialize(InitializationInput.builder()
+                .shardId("shardId-000000000000")
+                .extendedSequenceNumber(ExtendedSequenceNumber.TRIM_HORIZON)
+                .build());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_RECORDS)
+    public void processRecords() {
+        processor.processRecords(input);
+    }
+
+}
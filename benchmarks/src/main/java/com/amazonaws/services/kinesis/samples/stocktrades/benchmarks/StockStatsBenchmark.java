@@ -0,0 +1,76 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockStats;
+
+/**
+ * 銘柄の種類数ごとに、取引統計情報の更新の性能を計測します。
+ * 取引は事前に作成しておき、1回の呼び出しでまとめて統計に追加します。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StockStatsBenchmark {
+
+    private static final int TRADES = 4096;
+
+    @Param({"25", "1000", "100000"})
+    private int tickerCardinality;
+
+    // 概算で数える場合に保持する銘柄の最大数(0の場合は正確に数える)
+    @Param({"0", "1024"})
+    private int approximateCapacity;
+
+    // 価格と数量の分位点の相対誤差(0の場合は分位点を求めない)
+    @Param({"0", "0.01"})
+    private double quantileAccuracy;
+
+    private final StockTradeView[] trades = new StockTradeView[TRADES];
+    private StockStats stockStats;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] symbols = new String[tickerCardinality];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = "T" + i;
+        }
+        TradeType[] tradeTypes = TradeType.values();
+        for (int i = 0; i < TRADES; i++) {
+            trades[i] = new StockTradeView().set(symbols[random.nextInt(symbols.length)],
+                    tradeTypes[random.nextInt(tradeTypes.length)], 50.0 + random.nextInt(10000) / 100.0,
+                    1L + random.nextInt(1000), i);
+        }
+        stockStats = new StockStats(5, approximateCapacity, quantileAccuracy, 1000);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRADES)
+    public StockStats addStockTrade() {
+        for (StockTradeView trade : trades) {
+            stockStats.addStockTrade(trade);
+        }
+        return stockStats;
+    }
+
+}
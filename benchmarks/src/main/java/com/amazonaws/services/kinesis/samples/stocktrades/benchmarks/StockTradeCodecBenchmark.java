@@ -0,0 +1,76 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeDecoder;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+
+/**
+ * 株式取引のエンコードとデコードの性能を計測します。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StockTradeCodecBenchmark {
+
+    @Param({"JSON", "BINARY"})
+    private StockTradeCodec.Format format;
+
+    private StockTrade trade;
+    private byte[] json;
+    private ByteBuffer encoded;
+    private final StockTradeDecoder decoder = new StockTradeDecoder();
+    private final StockTradeView view = new StockTradeView();
+
+    @Setup
+    public void setUp() {
+        trade = new StockTrade("AMZN", StockTrade.TradeType.BUY, 1832.25, 420, 123456789L);
+        json = trade.toJsonAsBytes();
+        encoded = ByteBuffer.wrap(StockTradeCodec.encode(trade, format));
+    }
+
+    @Benchmark
+    public byte[] toJsonAsBytes() {
+        return trade.toJsonAsBytes();
+    }
+
+    @Benchmark
+    public StockTrade fromJsonAsBytes() {
+        return StockTrade.fromJsonAsBytes(json);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return StockTradeCodec.encode(trade, format);
+    }
+
+    @Benchmark
+    public StockTrade decode() {
+        return StockTradeCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public StockTradeView decodeIntoView() {
+        decoder.decode(encoded, view);
+        return view;
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.MarketWorkload;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.MarketWorkloadConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.StockTradeGenerator;
+
+/**
+ * 株式取引の生成の性能を計測します。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StockTradeGeneratorBenchmark {
+
+    private final StockTradeGenerator generator = new StockTradeGenerator();
+    private final MarketWorkload marketWorkload = MarketWorkloadConfig.defaults().newWorkloads(1)[0];
+    private final StockTradeView trade = new StockTradeView();
+
+    @Benchmark
+    public StockTrade getRandomTrade() {
+        return generator.getRandomTrade();
+    }
+
+    @Benchmark
+    public StockTradeView uniformNextTrade() {
+        return generator.nextTrade(trade);
+    }
+
+    @Benchmark
+    public StockTradeView marketNextTrade() {
+        return marketWorkload.nextTrade(trade);
+    }
+
+}
@@ -0,0 +1,421 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.CreateStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.CreateStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.GetRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorRequest;
+import software.amazon.awssdk.services.kinesis.model.GetShardIteratorResponse;
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.InvalidArgumentException;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.awssdk.services.kinesis.model.ResourceInUseException;
+import software.amazon.awssdk.services.kinesis.model.ResourceNotFoundException;
+import software.amazon.awssdk.services.kinesis.model.SequenceNumberRange;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+import software.amazon.awssdk.services.kinesis.model.StreamDescription;
+import software.amazon.awssdk.services.kinesis.model.StreamStatus;
+
+/**
+ * メモリ上のストリームでKinesisを模倣するクライアントです。
+ * ネットワークに接続せずに、ライターとKCLのスケジューラを同じプロセスで動かすために使います。
+ *
+ * <p>次のAPIに対応します。
+ * <ul>
+ *     <li>CreateStream, DescribeStream, ListShards</li>
+ *     <li>PutRecord, PutRecords(パーティションキーのMD5ハッシュでシャードを選びます)</li>
+ *     <li>GetShardIterator, GetRecords</li>
+ * </ul>
+ * シャードの分割や結合には対応しません。
+ * シャードごとに保持するレコード数を超えた場合は、古いレコードから破棄します。
+ * シャードごとの秒間書き込みレコード数の上限を指定すると、上限を超えた書き込みはスロットリングします。
+ */
+public class LocalKinesisClient implements KinesisAsyncClient {
+
+    private static final int DEFAULT_GET_RECORDS_LIMIT = 10000;
+
+    private static final BigInteger HASH_KEY_SPACE = BigInteger.ONE.shiftLeft(128);
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ConcurrentMap<String, LocalStream> streams = new ConcurrentHashMap<>();
+
+    private final int maxRecordsPerShard;
+    private final int writeRecordsPerSecondPerShard;
+
+    /**
+     * @param maxRecordsPerShard シャードごとに保持するレコード数
+     * @param writeRecordsPerSecondPerShard シャードごとの秒間書き込みレコード数の上限(0の場合は制限しない)
+     */
+    public LocalKinesisClient(int maxRecordsPerShard, int writeRecordsPerSecondPerShard) {
+        if (maxRecordsPerShard <= 0 || writeRecordsPerSecondPerShard < 0) {
+            throw new IllegalArgumentException("maxRecordsPerShard must be positive");
+        }
+        this.maxRecordsPerShard = maxRecordsPerShard;
+        this.writeRecordsPerSecondPerShard = writeRecordsPerSecondPerShard;
+    }
+
+    /**
+     * ストリームを作成します。
+     *
+     * @param streamName ストリーム名
+     * @param shardCount シャード数
+     */
+    public void createStream(String streamName, int shardCount) {
+        if (shardCount <= 0) {
+            throw InvalidArgumentException.builder().message("shardCount must be positive").build();
+        }
+        if (streams.putIfAbsent(streamName, new LocalStream(streamName, shardCount)) != null) {
+            throw ResourceInUseException.builder().message("Stream " + streamName + " already exists").build();
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public CompletableFuture<CreateStreamResponse> createStream(CreateStreamRequest request) {
+        return call(() -> {
+            createStream(request.streamName(), request.shardCount());
+            return CreateStreamResponse.builder().build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamResponse> describeStream(DescribeStreamRequest request) {
+        return call(() -> {
+            LocalStream stream = stream(request.streamName());
+            return DescribeStreamResponse.builder()
+                    .streamDescription(StreamDescription.builder()
+                            .streamName(stream.name)
+                            .streamARN("arn:aws:kinesis:local:000000000000:stream/" + stream.name)
+                            .streamStatus(StreamStatus.ACTIVE)
+                            .shards(stream.describeShards())
+                            .hasMoreShards(false)
+                            .retentionPeriodHours(24)
+                            .streamCreationTimestamp(stream.creationTimestamp)
+                            .build())
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<ListShardsResponse> listShards(ListShardsRequest request) {
+        return call(() -> ListShardsResponse.builder()
+                .shards(stream(request.streamName()).describeShards())
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<PutRecordResponse> putRecord(PutRecordRequest request) {
+        return call(() -> {
+            LocalStream stream = stream(request.streamName());
+            LocalShard shard = stream.shardFor(request.partitionKey(), request.explicitHashKey());
+            String sequenceNumber = shard.append(request.partitionKey(), request.data(), Instant.now());
+            if (sequenceNumber == null) {
+                throw ProvisionedThroughputExceededException.builder()
+                        .message("Rate exceeded for shard " + shard.shardId).build();
+            }
+            return PutRecordResponse.builder().shardId(shard.shardId).sequenceNumber(sequenceNumber).build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<PutRecordsResponse> putRecords(PutRecordsRequest request) {
+        return call(() -> {
+            LocalStream stream = stream(request.streamName());
+            Instant now = Instant.now();
+            List<PutRecordsResultEntry> results = new ArrayList<>(request.records().size());
+            int failed = 0;
+            for (PutRecordsRequestEntry entry : request.records()) {
+                LocalShard shard = stream.shardFor(entry.partitionKey(), entry.explicitHashKey());
+                String sequenceNumber = shard.append(entry.partitionKey(), entry.data(), now);
+                if (sequenceNumber == null) {
+                    failed++;
+                    results.add(PutRecordsResultEntry.builder()
+                            .errorCode("ProvisionedThroughputExceededException")
+                            .errorMessage("Rate exceeded for shard " + shard.shardId)
+                            .build());
+                } else {
+                    results.add(PutRecordsResultEntry.builder()
+                            .shardId(shard.shardId)
+                            .sequenceNumber(sequenceNumber)
+                            .build());
+                }
+            }
+            return PutRecordsResponse.builder().failedRecordCount(failed).records(results).build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<GetShardIteratorResponse> getShardIterator(GetShardIteratorRequest request) {
+        return call(() -> {
+            LocalShard shard = stream(request.streamName()).shard(request.shardId());
+            long position;
+            switch (request.shardIteratorType()) {
+                case TRIM_HORIZON:
+                    position = shard.firstPosition();
+                    break;
+                case LATEST:
+                    position = shard.endPosition();
+                    break;
+                case AT_SEQUENCE_NUMBER:
+                    position = positionOf(request.startingSequenceNumber());
+                    break;
+                case AFTER_SEQUENCE_NUMBER:
+                    position = positionOf(request.startingSequenceNumber()) + 1;
+                    break;
+                case AT_TIMESTAMP:
+                    position = shard.positionAt(request.timestamp());
+                    break;
+                default:
+                    throw InvalidArgumentException.builder()
+                            .message("Unsupported shard iterator type " + request.shardIteratorTypeAsString()).build();
+            }
+            return GetShardIteratorResponse.builder()
+                    .shardIterator(shardIterator(request.streamName(), shard.shardId, position))
+                    .build();
+        });
+    }
+
+    @Override
+    public CompletableFuture<GetRecordsResponse> getRecords(GetRecordsRequest request) {
+        return call(() -> {
+            String iterator = request.shardIterator();
+            int positionSeparator = iterator.lastIndexOf('|');
+            int shardSeparator = iterator.lastIndexOf('|', positionSeparator - 1);
+            if (shardSeparator < 0) {
+                throw InvalidArgumentException.builder().message("Invalid shard iterator " + iterator).build();
+            }
+            String streamName = iterator.substring(0, shardSeparator);
+            LocalShard shard = stream(streamName).shard(iterator.substring(shardSeparator + 1, positionSeparator));
+            long position = Long.parseLong(iterator.substring(positionSeparator + 1));
+            int limit = request.limit() != null ? request.limit() : DEFAULT_GET_RECORDS_LIMIT;
+
+            List<Record> records = new ArrayList<>(Math.min(limit, 1024));
+            long next = shard.read(position, limit, records);
+            long millisBehindLatest = next >= shard.endPosition() || records.isEmpty()
+                    ? 0L
+                    : Math.max(0L, System.currentTimeMillis()
+                            - records.get(records.size() - 1).approximateArrivalTimestamp().toEpochMilli());
+            return GetRecordsResponse.builder()
+                    .records(records)
+                    .nextShardIterator(shardIterator(streamName, shard.shardId, next))
+                    .millisBehindLatest(millisBehindLatest)
+                    .build();
+        });
+    }
+
+    private LocalStream stream(String streamName) {
+        LocalStream stream = streams.get(streamName);
+        if (stream == null) {
+            throw ResourceNotFoundException.builder().message("Stream " + streamName + " not found").build();
+        }
+        return stream;
+    }
+
+    private static String shardIterator(String streamName, String shardId, long position) {
+        return streamName + "|" + shardId + "|" + position;
+    }
+
+    // シーケンス番号はシャード内の位置に1を足した値
+    private static long positionOf(String sequenceNumber) {
+        try {
+            return Long.parseLong(sequenceNumber) - 1;
+        } catch (NumberFormatException e) {
+            throw InvalidArgumentException.builder().message("Invalid sequence number " + sequenceNumber).build();
+        }
+    }
+
+    private static <T> CompletableFuture<T> call(Supplier<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(operation.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * ストリームです。
+     */
+    private class LocalStream {
+        final String name;
+        final Instant creationTimestamp = Instant.now();
+        final LocalShard[] shards;
+
+        LocalStream(String name, int shardCount) {
+            this.name = name;
+            this.shards = new LocalShard[shardCount];
+            BigInteger count = BigInteger.valueOf(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                BigInteger start = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i)).divide(count);
+                BigInteger end = HASH_KEY_SPACE.multiply(BigInteger.valueOf(i + 1)).divide(count)
+                        .subtract(BigInteger.ONE);
+                shards[i] = new LocalShard(String.format("shardId-%012d", i), start, end);
+            }
+        }
+
+        LocalShard shard(String shardId) {
+            for (LocalShard shard : shards) {
+                if (shard.shardId.equals(shardId)) {
+                    return shard;
+                }
+            }
+            throw ResourceNotFoundException.builder().message("Shard " + shardId + " not found").build();
+        }
+
+        LocalShard shardFor(String partitionKey, String explicitHashKey) {
+            BigInteger hashKey;
+            if (explicitHashKey != null) {
+                hashKey = new BigInteger(explicitHashKey);
+            } else {
+                hashKey = new BigInteger(1, MD5.get().digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+            }
+            for (LocalShard shard : shards) {
+                if (hashKey.compareTo(shard.endingHashKey) <= 0) {
+                    return shard;
+                }
+            }
+            throw InvalidArgumentException.builder().message("Hash key out of range " + hashKey).build();
+        }
+
+        List<Shard> describeShards() {
+            List<Shard> result = new ArrayList<>(shards.length);
+            for (LocalShard shard : shards) {
+                result.add(Shard.builder()
+                        .shardId(shard.shardId)
+                        .hashKeyRange(HashKeyRange.builder()
+                                .startingHashKey(shard.startingHashKey.toString())
+                                .endingHashKey(shard.endingHashKey.toString())
+                                .build())
+                        .sequenceNumberRange(SequenceNumberRange.builder().startingSequenceNumber("1").build())
+                        .build());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * シャードです。レコードはシャード内の位置の順に保持します。
+     */
+    private class LocalShard {
+        final String shardId;
+        final BigInteger startingHashKey;
+        final BigInteger endingHashKey;
+
+        // 保持しているレコードと、先頭のレコードの位置(thisで同期)
+        private final ArrayList<Record> records = new ArrayList<>();
+        private long firstPosition;
+
+        // 秒間書き込みレコード数の計測
+        private long currentSecond;
+        private int writesInCurrentSecond;
+
+        LocalShard(String shardId, BigInteger startingHashKey, BigInteger endingHashKey) {
+            this.shardId = shardId;
+            this.startingHashKey = startingHashKey;
+            this.endingHashKey = endingHashKey;
+        }
+
+        /**
+         * @return 追加したレコードのシーケンス番号(スロットリングした場合はnull)
+         */
+        synchronized String append(String partitionKey, SdkBytes data, Instant arrival) {
+            if (writeRecordsPerSecondPerShard > 0) {
+                long second = arrival.getEpochSecond();
+                if (second != currentSecond) {
+                    currentSecond = second;
+                    writesInCurrentSecond = 0;
+                }
+                if (writesInCurrentSecond >= writeRecordsPerSecondPerShard) {
+                    return null;
+                }
+                writesInCurrentSecond++;
+            }
+            String sequenceNumber = Long.toString(endPosition() + 1);
+            records.add(Record.builder()
+                    .sequenceNumber(sequenceNumber)
+                    .partitionKey(partitionKey)
+                    .data(data)
+                    .approximateArrivalTimestamp(arrival)
+                    .build());
+            if (records.size() > maxRecordsPerShard) {
+                // 毎回詰め直さないよう、上限の1/4をまとめて破棄する
+                int trimmed = records.size() - maxRecordsPerShard * 3 / 4;
+                records.subList(0, trimmed).clear();
+                firstPosition += trimmed;
+            }
+            return sequenceNumber;
+        }
+
+        /**
+         * @return 次に読み取る位置
+         */
+        synchronized long read(long position, int limit, List<Record> result) {
+            // 破棄済みの位置からは、残っているもっとも古いレコードから読み取る
+            long from = Math.max(position, firstPosition);
+            long to = Math.min(endPosition(), from + limit);
+            for (long p = from; p < to; p++) {
+                result.add(records.get((int) (p - firstPosition)));
+            }
+            return Math.max(to, position);
+        }
+
+        synchronized long firstPosition() {
+            return firstPosition;
+        }
+
+        synchronized long endPosition() {
+            return firstPosition + records.size();
+        }
+
+        synchronized long positionAt(Instant timestamp) {
+            for (int i = 0; i < records.size(); i++) {
+                if (!records.get(i).approximateArrivalTimestamp().isBefore(timestamp)) {
+                    return firstPosition + i;
+                }
+            }
+            return endPosition();
+        }
+    }
+
+}
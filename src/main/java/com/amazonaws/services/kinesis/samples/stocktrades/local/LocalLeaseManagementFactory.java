@@ -0,0 +1,81 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import software.amazon.kinesis.leases.KinesisShardDetector;
+import software.amazon.kinesis.leases.LeaseCoordinator;
+import software.amazon.kinesis.leases.LeaseManagementConfig;
+import software.amazon.kinesis.leases.LeaseManagementFactory;
+import software.amazon.kinesis.leases.LeaseRefresher;
+import software.amazon.kinesis.leases.ShardDetector;
+import software.amazon.kinesis.leases.ShardSyncTaskManager;
+import software.amazon.kinesis.leases.dynamodb.DynamoDBLeaseCoordinator;
+import software.amazon.kinesis.leases.dynamodb.DynamoDBLeaseRefresher;
+import software.amazon.kinesis.metrics.MetricsFactory;
+
+/**
+ * DynamoDBの代わりにメモリ上のリースを使うリース管理を作成するクラスです。
+ * リースの取得や更新の手順はKCL標準のリースコーディネータをそのまま使い、
+ * リースの保存先だけを{@link LocalLeaseRefresher}に置き換えます。
+ */
+public class LocalLeaseManagementFactory implements LeaseManagementFactory {
+
+    private final LeaseManagementConfig config;
+    private final LeaseRefresher leaseRefresher;
+
+    /**
+     * @param config リース管理の設定(DynamoDBに関する項目は使いません)
+     * @param leaseRefresher リースの保存先
+     */
+    public LocalLeaseManagementFactory(LeaseManagementConfig config, LeaseRefresher leaseRefresher) {
+        this.config = config;
+        this.leaseRefresher = leaseRefresher;
+    }
+
+    @Override
+    public LeaseCoordinator createLeaseCoordinator(MetricsFactory metricsFactory) {
+        return new DynamoDBLeaseCoordinator(leaseRefresher,
+                config.workerIdentifier(),
+                config.failoverTimeMillis(),
+                config.epsilonMillis(),
+                config.maxLeasesForWorker(),
+                config.maxLeasesToStealAtOneTime(),
+                config.maxLeaseRenewalThreads(),
+                config.initialLeaseTableReadCapacity(),
+                config.initialLeaseTableWriteCapacity(),
+                metricsFactory);
+    }
+
+    @Override
+    public ShardSyncTaskManager createShardSyncTaskManager(MetricsFactory metricsFactory) {
+        return new ShardSyncTaskManager(createShardDetector(),
+                leaseRefresher,
+                config.initialPositionInStream(),
+                config.cleanupLeasesUponShardCompletion(),
+                config.ignoreUnexpectedChildShards(),
+                config.shardSyncIntervalMillis(),
+                config.executorService(),
+                config.hierarchicalShardSyncer(),
+                metricsFactory);
+    }
+
+    /**
+     * DynamoDBのリーステーブルは使わないため対応しません。
+     */
+    @Override
+    public DynamoDBLeaseRefresher createLeaseRefresher() {
+        throw new UnsupportedOperationException("Leases are kept in memory");
+    }
+
+    @Override
+    public ShardDetector createShardDetector() {
+        return new KinesisShardDetector(config.kinesisClient(),
+                config.streamName(),
+                config.listShardsBackoffTimeInMillis(),
+                config.maxListShardsRetryAttempts(),
+                config.listShardsCacheAllowedAgeInSeconds(),
+                config.maxCacheMissesBeforeReload(),
+                config.cacheMissWarningModulus(),
+                // KCL標準のリース管理と同じく、Kinesisへの要求のタイムアウトには既定値を使う
+                LeaseManagementConfig.DEFAULT_REQUEST_TIMEOUT);
+    }
+
+}
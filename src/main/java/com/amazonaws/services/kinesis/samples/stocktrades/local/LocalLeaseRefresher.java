@@ -0,0 +1,145 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import software.amazon.kinesis.leases.Lease;
+import software.amazon.kinesis.leases.LeaseRefresher;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+/**
+ * リースをメモリ上で管理するクラスです。DynamoDBのリーステーブルの代わりに使います。
+ * 条件付き更新はDynamoDBLeaseRefresherと同じく、リースカウンタまたはリースの所有者が
+ * 一致する場合にだけ成功します。
+ */
+public class LocalLeaseRefresher implements LeaseRefresher {
+
+    // リースキーごとのリース(thisで同期)
+    private final Map<String, Lease> leases = new HashMap<>();
+    private boolean tableExists;
+
+    @Override
+    public synchronized boolean createLeaseTableIfNotExists(Long readCapacity, Long writeCapacity) {
+        boolean created = !tableExists;
+        tableExists = true;
+        return created;
+    }
+
+    @Override
+    public synchronized boolean leaseTableExists() {
+        return tableExists;
+    }
+
+    @Override
+    public boolean waitUntilLeaseTableExists(long secondsBetweenPolls, long timeoutSeconds) {
+        return leaseTableExists();
+    }
+
+    @Override
+    public synchronized List<Lease> listLeases() {
+        List<Lease> result = new ArrayList<>(leases.size());
+        for (Lease lease : leases.values()) {
+            result.add(lease.copy());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean createLeaseIfNotExists(Lease lease) {
+        if (leases.containsKey(lease.leaseKey())) {
+            return false;
+        }
+        leases.put(lease.leaseKey(), lease.copy());
+        return true;
+    }
+
+    @Override
+    public synchronized Lease getLease(String leaseKey) {
+        Lease lease = leases.get(leaseKey);
+        return lease == null ? null : lease.copy();
+    }
+
+    @Override
+    public synchronized boolean renewLease(Lease lease) {
+        Lease stored = leases.get(lease.leaseKey());
+        if (!counterMatches(stored, lease)) {
+            return false;
+        }
+        stored.leaseCounter(stored.leaseCounter() + 1);
+        lease.leaseCounter(lease.leaseCounter() + 1);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean takeLease(Lease lease, String owner) {
+        Lease stored = leases.get(lease.leaseKey());
+        if (!counterMatches(stored, lease)) {
+            return false;
+        }
+        if (lease.leaseOwner() != null && !lease.leaseOwner().equals(owner)) {
+            lease.ownerSwitchesSinceCheckpoint(lease.ownerSwitchesSinceCheckpoint() + 1);
+            stored.ownerSwitchesSinceCheckpoint(lease.ownerSwitchesSinceCheckpoint());
+        }
+        lease.leaseCounter(lease.leaseCounter() + 1);
+        lease.leaseOwner(owner);
+        stored.leaseCounter(lease.leaseCounter());
+        stored.leaseOwner(owner);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean evictLease(Lease lease) {
+        Lease stored = leases.get(lease.leaseKey());
+        if (stored == null || !Objects.equals(stored.leaseOwner(), lease.leaseOwner())) {
+            return false;
+        }
+        lease.leaseCounter(lease.leaseCounter() + 1);
+        lease.leaseOwner(null);
+        stored.leaseCounter(stored.leaseCounter() + 1);
+        stored.leaseOwner(null);
+        return true;
+    }
+
+    @Override
+    public synchronized void deleteLease(Lease lease) {
+        leases.remove(lease.leaseKey());
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        leases.clear();
+    }
+
+    @Override
+    public synchronized boolean updateLease(Lease lease) {
+        Lease stored = leases.get(lease.leaseKey());
+        if (!counterMatches(stored, lease)) {
+            return false;
+        }
+        lease.leaseCounter(lease.leaseCounter() + 1);
+        stored.leaseCounter(lease.leaseCounter());
+        stored.checkpoint(lease.checkpoint());
+        stored.pendingCheckpoint(lease.pendingCheckpoint());
+        stored.ownerSwitchesSinceCheckpoint(lease.ownerSwitchesSinceCheckpoint());
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isLeaseTableEmpty() {
+        return leases.isEmpty();
+    }
+
+    @Override
+    public synchronized ExtendedSequenceNumber getCheckpoint(String shardId) {
+        Lease lease = leases.get(shardId);
+        return lease == null ? null : lease.checkpoint();
+    }
+
+    private static boolean counterMatches(Lease stored, Lease lease) {
+        return stored != null && Objects.equals(stored.leaseCounter(), lease.leaseCounter());
+    }
+
+}
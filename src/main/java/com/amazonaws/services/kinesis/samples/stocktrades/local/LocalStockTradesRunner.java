@@ -0,0 +1,288 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.local;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.kinesis.common.ConfigsBuilder;
+import software.amazon.kinesis.common.InitialPositionInStream;
+import software.amazon.kinesis.common.InitialPositionInStreamExtended;
+import software.amazon.kinesis.coordinator.Scheduler;
+import software.amazon.kinesis.leases.LeaseManagementConfig;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.LeaseLostInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
+import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
+import software.amazon.kinesis.metrics.NullMetricsFactory;
+import software.amazon.kinesis.processor.ShardRecordProcessor;
+import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.polling.PollingConfig;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StatsQueryServer;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeProcessorConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessorFactory;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.StockTradeBatchProducer;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.BatchProducerConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.PartitionKeyRouter;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.ShardMap;
+import com.amazonaws.services.kinesis.samples.stocktrades.writer.TradeWorkload;
+
+/**
+ * AWSに接続せずに、ライターからKCLのスケジューラ、レコードプロセッサまでを1つのプロセスで動かし、
+ * スループットとレイテンシを計測します。
+ * ストリームは{@link LocalKinesisClient}、リースは{@link LocalLeaseRefresher}でメモリ上に保持し、
+ * CloudWatchへのメトリクスの送信は行いません。
+ * レイテンシはストリームがレコードを受け付けてからレコードプロセッサに渡されるまでの時間です。
+ */
+public class LocalStockTradesRunner {
+
+    private static final Log LOG = LogFactory.getLog(LocalStockTradesRunner.class);
+
+    private static final Logger ROOT_LOGGER = Logger.getLogger("");
+
+    private static final String APPLICATION_NAME = "LocalStockTradesProcessor";
+    private static final String STREAM_NAME = "LocalStockTradeStream";
+
+    // シャードごとに保持するレコード数
+    private static final int MAX_RECORDS_PER_SHARD = 1000000;
+
+    // バッチ送信時に同時に送信中にできるバッチ数
+    private static final int MAX_IN_FLIGHT_BATCHES = 8;
+
+    // レコードを取得する間隔
+    private static final long IDLE_TIME_BETWEEN_READS_MILLIS = 50L;
+
+    // リースの有効期限(起動後にリースを取得するまでの時間を短くする)
+    private static final long FAILOVER_TIME_MILLIS = 2000L;
+
+    // レコードのデータ形式を指定するシステムプロパティ
+    private static final String FORMAT_PROPERTY = "stocktrades.format";
+
+    // シャードごとの秒間書き込みレコード数の上限を指定するシステムプロパティ(既定値は制限なし)
+    private static final String WRITE_LIMIT_PROPERTY = "stocktrades.local.writeRecordsPerSecondPerShard";
+
+    private static void checkUsage(String[] args) {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("Usage: " + LocalStockTradesRunner.class.getSimpleName()
+                    + " <shard count> <duration seconds> [linger millis [max aggregated record bytes]]");
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkUsage(args);
+        ROOT_LOGGER.setLevel(Level.WARNING);
+
+        int shardCount = Integer.parseInt(args[0]);
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args[1]));
+        long lingerMillis = args.length >= 3 ? Long.parseLong(args[2]) : 100L;
+        int maxAggregatedRecordBytes = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+        StockTradeCodec.Format format = StockTradeCodec.Format.valueOf(
+                System.getProperty(FORMAT_PROPERTY, StockTradeCodec.Format.JSON.name()).toUpperCase());
+
+        LocalKinesisClient kinesisClient = new LocalKinesisClient(MAX_RECORDS_PER_SHARD,
+                Integer.getInteger(WRITE_LIMIT_PROPERTY, 0));
+        kinesisClient.createStream(STREAM_NAME, shardCount);
+
+        Meter meter = new Meter();
+        StockTradeProcessorConfig processorConfig = StockTradeProcessorConfig.fromSystemProperties();
+        StockTradeRecordProcessorFactory processorFactory = new StockTradeRecordProcessorFactory(processorConfig);
+        StatsQueryServer queryServer = processorConfig.newStatsQueryServer(processorFactory.getQueryService());
+        Scheduler scheduler = createScheduler(kinesisClient, new MeteredProcessorFactory(processorFactory, meter));
+        Thread schedulerThread = new Thread(scheduler, "local-scheduler");
+        schedulerThread.setDaemon(true);
+        schedulerThread.start();
+
+        TradeWorkload workload = TradeWorkload.fromSystemProperties(1)[0];
+        StockTradeView trade = new StockTradeView();
+        ShardMap shardMap = ShardMap.fromStream(kinesisClient, STREAM_NAME);
+        PartitionKeyRouter router = PartitionKeyRouter.fromSystemProperties(shardMap);
+        long startTime = System.currentTimeMillis();
+        long endTime = startTime + durationMillis;
+        long nextReportTime = startTime + 1000L;
+        long sentTrades = 0;
+        StockTradeBatchProducer producer = new StockTradeBatchProducer(kinesisClient, STREAM_NAME,
+                lingerMillis, MAX_IN_FLIGHT_BATCHES, maxAggregatedRecordBytes, format, router, shardMap,
+                BatchProducerConfig.fromSystemProperties());
+        try {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now >= nextReportTime) {
+                    meter.report(sentTrades, now - startTime);
+                    nextReportTime += 1000L;
+                }
+                if (now >= endTime) {
+                    break;
+                }
+                producer.send(workload.nextTrade(trade).toStockTrade());
+                sentTrades++;
+            }
+        } finally {
+            producer.close();
+        }
+        System.out.println(String.format("Producer retried %,d record(s) (throttled %,d), dropped %,d, failed %,d",
+                producer.getRetriedRecords(), producer.getThrottledRecords(), producer.getDroppedRecords(),
+                producer.getFailedRecords()));
+
+        try {
+            scheduler.startGracefulShutdown().get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOG.warn("Scheduler did not shut down cleanly.", e);
+        }
+        meter.report(sentTrades, System.currentTimeMillis() - startTime);
+        if (queryServer != null) {
+            queryServer.close();
+        }
+        System.exit(0);
+    }
+
+    private static Scheduler createScheduler(LocalKinesisClient kinesisClient,
+                                             ShardRecordProcessorFactory processorFactory) {
+        DynamoDbAsyncClient dynamoClient = new DynamoDbAsyncClient() {
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        CloudWatchAsyncClient cloudWatchClient = new CloudWatchAsyncClient() {
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ConfigsBuilder configsBuilder = new ConfigsBuilder(STREAM_NAME, APPLICATION_NAME, kinesisClient,
+                dynamoClient, cloudWatchClient, UUID.randomUUID().toString(), processorFactory);
+
+        InitialPositionInStreamExtended initialPosition =
+                InitialPositionInStreamExtended.newInitialPosition(InitialPositionInStream.TRIM_HORIZON);
+        PollingConfig pollingConfig = new PollingConfig(STREAM_NAME, kinesisClient)
+                .idleTimeBetweenReadsInMillis(IDLE_TIME_BETWEEN_READS_MILLIS);
+        pollingConfig.recordsFetcherFactory().idleMillisBetweenCalls(IDLE_TIME_BETWEEN_READS_MILLIS);
+        // ConfigsBuilderは呼び出すたびに新しい設定を作成するため、同じ設定をリース管理にも渡す
+        LeaseManagementConfig leaseManagementConfig = configsBuilder.leaseManagementConfig()
+                .initialPositionInStream(initialPosition)
+                .failoverTimeMillis(FAILOVER_TIME_MILLIS);
+        leaseManagementConfig.leaseManagementFactory(
+                new LocalLeaseManagementFactory(leaseManagementConfig, new LocalLeaseRefresher()));
+        return new Scheduler(
+                configsBuilder.checkpointConfig(),
+                configsBuilder.coordinatorConfig(),
+                leaseManagementConfig,
+                configsBuilder.lifecycleConfig(),
+                configsBuilder.metricsConfig().metricsFactory(new NullMetricsFactory()),
+                configsBuilder.processorConfig(),
+                configsBuilder.retrievalConfig()
+                        .initialPositionInStreamExtended(initialPosition)
+                        .retrievalSpecificConfig(pollingConfig)
+        );
+    }
+
+    /**
+     * 処理したレコード数とレイテンシを集計し、前回のレポートからの値を表示します。
+     */
+    private static class Meter {
+        private final LongAdder records = new LongAdder();
+        private final LongAdder totalLatencyMillis = new LongAdder();
+        private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+        // 前回のレポート時点の値(レポートするスレッドのみが参照)
+        private long lastSentTrades;
+        private long lastRecords;
+        private long lastTotalLatencyMillis;
+        private long lastElapsedMillis;
+
+        void record(long latencyMillis) {
+            records.increment();
+            totalLatencyMillis.add(latencyMillis);
+            maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+        }
+
+        void report(long sentTrades, long elapsedMillis) {
+            long processed = records.sum();
+            long latency = totalLatencyMillis.sum();
+            long maxLatency = maxLatencyMillis.getAndSet(0L);
+            double seconds = Math.max(1L, elapsedMillis - lastElapsedMillis) / 1000.0;
+            long intervalRecords = processed - lastRecords;
+            System.out.println(String.format(
+                    "%6.1fs sent %,.0f trade(s)/s, processed %,.0f record(s)/s (total %,d), "
+                            + "latency avg %.1fms max %dms",
+                    elapsedMillis / 1000.0, (sentTrades - lastSentTrades) / seconds, intervalRecords / seconds,
+                    processed,
+                    intervalRecords == 0 ? 0.0 : (double) (latency - lastTotalLatencyMillis) / intervalRecords,
+                    maxLatency));
+            lastSentTrades = sentTrades;
+            lastRecords = processed;
+            lastTotalLatencyMillis = latency;
+            lastElapsedMillis = elapsedMillis;
+        }
+    }
+
+    /**
+     * レコードプロセッサに渡したレコードを計測するファクトリです。
+     */
+    private static class MeteredProcessorFactory implements ShardRecordProcessorFactory {
+        private final ShardRecordProcessorFactory delegate;
+        private final Meter meter;
+
+        MeteredProcessorFactory(ShardRecordProcessorFactory delegate, Meter meter) {
+            this.delegate = delegate;
+            this.meter = meter;
+        }
+
+        @Override
+        public ShardRecordProcessor shardRecordProcessor() {
+            ShardRecordProcessor processor = delegate.shardRecordProcessor();
+            return new ShardRecordProcessor() {
+                @Override
+                public void initialize(InitializationInput initializationInput) {
+                    processor.initialize(initializationInput);
+                }
+
+                @Override
+                public void processRecords(ProcessRecordsInput processRecordsInput) {
+                    processor.processRecords(processRecordsInput);
+                    long now = System.currentTimeMillis();
+                    for (KinesisClientRecord record : processRecordsInput.records()) {
+                        meter.record(now - record.approximateArrivalTimestamp().toEpochMilli());
+                    }
+                }
+
+                @Override
+                public void leaseLost(LeaseLostInput leaseLostInput) {
+                    processor.leaseLost(leaseLostInput);
+                }
+
+                @Override
+                public void shardEnded(ShardEndedInput shardEndedInput) {
+                    processor.shardEnded(shardEndedInput);
+                }
+
+                @Override
+                public void shutdownRequested(ShutdownRequestedInput shutdownRequestedInput) {
+                    processor.shutdownRequested(shutdownRequestedInput);
+                }
+            };
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * HdrHistogramと同様の対数線形のバケットで値の分布を記録するヒストグラムです。
+ *
+ * <p>64未満の値はそのまま記録し、それ以上の値は2のべき乗の区間ごとに32個のバケットに分けて記録します。
+ * そのため記録した値の相対誤差は約3%以内で、メモリ量は記録する値の範囲によらず一定です。
+ * 記録はロックを使わずに複数のスレッドから行えます。集計中に記録された値は集計結果に含まれないことがあります。
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // そのまま記録する値の上限(この値未満はバケットが値と一致する)
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+
+    private static final int BUCKET_COUNT = indexOf(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 値を記録します。
+     *
+     * @param value 値(負の値は0として記録します)
+     */
+    public void record(long value) {
+        record(value, 1L);
+    }
+
+    /**
+     * 同じ値を複数回記録します。
+     *
+     * @param value 値(負の値は0として記録します)
+     * @param count 回数
+     */
+    public void record(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        long v = Math.max(0L, value);
+        counts.addAndGet(indexOf(v), count);
+        totalCount.addAndGet(count);
+        sum.addAndGet(v * count);
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 別のヒストグラムの値を合算します。
+     *
+     * @param other 合算するヒストグラム
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current = max.get();
+        while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 記録した値を全て破棄します。
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0L);
+        }
+        totalCount.set(0L);
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    /**
+     * @return 記録した値の数
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return 記録した値の最大値(記録がない場合は0)
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return 記録した値の平均(記録がない場合は0)
+     */
+    public double getMean() {
+        long count = totalCount.get();
+        return count == 0 ? 0.0 : (double) sum.get() / count;
+    }
+
+    /**
+     * @param percentile パーセンタイル(0から100)
+     * @return 記録した値のうち、指定したパーセンタイルにあたる値のバケットの上限(記録がない場合は0)
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+        long upper = ((subBucket + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+
+}
@@ -0,0 +1,333 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * シャードごとの処理状況を記録するクラスです。
+ *
+ * <p>バッチ単位の値はレコードを処理するスレッドだけが更新し、JMXのスレッドから読み取ります。
+ * 秒間の値はバッチを処理するたびに、一定時間ごとの区間で計算します。
+ * レコード単位のレイテンシは計測のコストを抑えるため、一部のレコードだけを計測します。
+ */
+public class ShardMetrics implements ShardMetricsMXBean {
+
+    private static final Log log = LogFactory.getLog(ShardMetrics.class);
+
+    private static final String DOMAIN = "com.amazonaws.services.kinesis.samples.stocktrades";
+
+    // 秒間の値を計算する区間
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // シャードごとに登録中のメトリクス(置き換えられた後に古いものが登録を解除しないようにする)
+    private static final ConcurrentMap<String, ShardMetrics> REGISTERED = new ConcurrentHashMap<>();
+
+    private final String shardId;
+
+    private volatile long batches;
+    private volatile long records;
+    private volatile long bytes;
+    private volatile long trades;
+    private volatile long parseFailures;
+    private volatile long duplicateTrades;
+    private volatile long tradeIdResets;
+    private volatile long quarantinedRecords;
+    private volatile long millisBehindLatest;
+    private volatile long lastBatchTimeMillis = System.currentTimeMillis();
+
+    // 計測区間の開始時点の値(レコードを処理するスレッドのみが参照)
+    private long windowStartNanos = System.nanoTime();
+    private long windowRecords;
+    private long windowBytes;
+    private long windowBusyNanos;
+    private long busyNanos;
+
+    private volatile double recordsPerSecond;
+    private volatile double bytesPerSecond;
+    private volatile double processingUtilization;
+
+    private final LatencyHistogram batchLatencyNanos = new LatencyHistogram();
+    private final LatencyHistogram recordLatencyNanos = new LatencyHistogram();
+    private final LatencyHistogram checkpointLatencyNanos = new LatencyHistogram();
+    private final AtomicLong checkpoints = new AtomicLong();
+    private final AtomicLong checkpointThrottles = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * @param shardId シャードID
+     */
+    public ShardMetrics(String shardId) {
+        this.shardId = shardId;
+    }
+
+    /**
+     * バッチの処理結果を記録します。
+     *
+     * @param recordCount バッチのレコード数
+     * @param byteCount バッチのバイト数
+     * @param elapsedNanos バッチの処理時間
+     * @param millisBehindLatest シャードの最新位置までの遅れ(不明な場合はnull)
+     */
+    public void recordBatch(int recordCount, long byteCount, long elapsedNanos, Long millisBehindLatest) {
+        batches++;
+        records += recordCount;
+        bytes += byteCount;
+        busyNanos += elapsedNanos;
+        if (millisBehindLatest != null) {
+            this.millisBehindLatest = millisBehindLatest;
+        }
+        batchLatencyNanos.record(elapsedNanos);
+        lastBatchTimeMillis = System.currentTimeMillis();
+
+        long now = System.nanoTime();
+        long windowNanos = now - windowStartNanos;
+        if (windowNanos >= RATE_WINDOW_NANOS) {
+            double seconds = windowNanos / 1e9;
+            recordsPerSecond = (records - windowRecords) / seconds;
+            bytesPerSecond = (bytes - windowBytes) / seconds;
+            processingUtilization = Math.min(1.0, (double) (busyNanos - windowBusyNanos) / windowNanos);
+            windowStartNanos = now;
+            windowRecords = records;
+            windowBytes = bytes;
+            windowBusyNanos = busyNanos;
+        }
+    }
+
+    /**
+     * @param elapsedNanos 1レコードの処理時間
+     */
+    public void recordRecordLatency(long elapsedNanos) {
+        recordLatencyNanos.record(elapsedNanos);
+    }
+
+    /**
+     * デコードした取引の数、デコードに失敗した数、重複として破棄した数と取引IDの連番が戻った回数の合計を更新します。
+     *
+     * @param trades デコードした取引の合計
+     * @param parseFailures デコードに失敗した数の合計
+     * @param duplicateTrades 重複として破棄した取引の合計
+     * @param tradeIdResets ライターの取引IDの連番が重複を検出する範囲より前に戻った回数の合計
+     */
+    public void updateTradeCounts(long trades, long parseFailures, long duplicateTrades, long tradeIdResets) {
+        this.trades = trades;
+        this.parseFailures = parseFailures;
+        this.duplicateTrades = duplicateTrades;
+        this.tradeIdResets = tradeIdResets;
+    }
+
+    /**
+     * @param quarantinedRecords 処理に失敗して隔離したレコードの合計
+     */
+    public void updateQuarantinedRecords(long quarantinedRecords) {
+        this.quarantinedRecords = quarantinedRecords;
+    }
+
+    /**
+     * @param elapsedNanos チェックポイントの記録にかかった時間
+     */
+    public void recordCheckpoint(long elapsedNanos) {
+        checkpoints.incrementAndGet();
+        checkpointLatencyNanos.record(elapsedNanos);
+    }
+
+    public void recordCheckpointThrottle() {
+        checkpointThrottles.incrementAndGet();
+    }
+
+    /**
+     * プラットフォームのMBeanサーバに登録します。
+     * 同じシャードの以前のレコードプロセッサの登録が残っている場合は置き換えます。
+     */
+    public void register() {
+        synchronized (REGISTERED) {
+            registerLocked();
+        }
+    }
+
+    private void registerLocked() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            objectName = new ObjectName(DOMAIN + ":type=ShardMetrics,shard=" + ObjectName.quote(shardId));
+            try {
+                server.registerMBean(this, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(objectName);
+                server.registerMBean(this, objectName);
+            }
+            REGISTERED.put(shardId, this);
+        } catch (MalformedObjectNameException | InstanceNotFoundException e) {
+            throw new IllegalStateException(e);
+        } catch (JMException e) {
+            log.warn("Unable to register metrics for shard " + shardId, e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * MBeanサーバへの登録を解除します。
+     */
+    public void unregister() {
+        synchronized (REGISTERED) {
+            if (objectName == null || !REGISTERED.remove(shardId, this)) {
+                // 登録していないか、別のレコードプロセッサに置き換えられた
+                objectName = null;
+                return;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (InstanceNotFoundException e) {
+                // 登録済みのものがない
+            } catch (JMException e) {
+                log.warn("Unable to unregister metrics for shard " + shardId, e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getShardId() {
+        return shardId;
+    }
+
+    @Override
+    public long getBatchesTotal() {
+        return batches;
+    }
+
+    @Override
+    public long getRecordsTotal() {
+        return records;
+    }
+
+    @Override
+    public long getBytesTotal() {
+        return bytes;
+    }
+
+    @Override
+    public long getTradesTotal() {
+        return trades;
+    }
+
+    @Override
+    public long getParseFailuresTotal() {
+        return parseFailures;
+    }
+
+    @Override
+    public long getDuplicateTradesTotal() {
+        return duplicateTrades;
+    }
+
+    @Override
+    public long getTradeIdResetsTotal() {
+        return tradeIdResets;
+    }
+
+    @Override
+    public long getQuarantinedRecordsTotal() {
+        return quarantinedRecords;
+    }
+
+    @Override
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public double getProcessingUtilization() {
+        return processingUtilization;
+    }
+
+    @Override
+    public long getMillisBehindLatest() {
+        return millisBehindLatest;
+    }
+
+    @Override
+    public long getMillisSinceLastBatch() {
+        return System.currentTimeMillis() - lastBatchTimeMillis;
+    }
+
+    @Override
+    public long getBatchLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(batchLatencyNanos.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getBatchLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(batchLatencyNanos.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getBatchLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(batchLatencyNanos.getMax());
+    }
+
+    @Override
+    public long getRecordLatencyP50Nanos() {
+        return recordLatencyNanos.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getRecordLatencyP99Nanos() {
+        return recordLatencyNanos.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getRecordLatencyMaxNanos() {
+        return recordLatencyNanos.getMax();
+    }
+
+    @Override
+    public long getCheckpointsTotal() {
+        return checkpoints.get();
+    }
+
+    @Override
+    public long getCheckpointThrottlesTotal() {
+        return checkpointThrottles.get();
+    }
+
+    @Override
+    public long getCheckpointLatencyP50Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(checkpointLatencyNanos.getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getCheckpointLatencyP99Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(checkpointLatencyNanos.getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getCheckpointLatencyMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(checkpointLatencyNanos.getMax());
+    }
+
+    @Override
+    public void resetHistograms() {
+        batchLatencyNanos.reset();
+        recordLatencyNanos.reset();
+        checkpointLatencyNanos.reset();
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.metrics;
+
+/**
+ * シャードごとの処理状況をJMXで公開するためのインタフェースです。
+ * 合計値はレコードプロセッサの作成時からの値、秒間の値は直近の計測区間の値です。
+ * レイテンシは記録した値の分布から求めます({@link #resetHistograms()}でリセットできます)。
+ */
+public interface ShardMetricsMXBean {
+
+    String getShardId();
+
+    long getBatchesTotal();
+
+    long getRecordsTotal();
+
+    long getBytesTotal();
+
+    long getTradesTotal();
+
+    long getParseFailuresTotal();
+
+    /**
+     * @return 取引IDの重複排除で破棄した取引の数
+     */
+    long getDuplicateTradesTotal();
+
+    /**
+     * @return ライターの取引IDの連番が重複を検出する範囲より前に戻った(ライターが同じIDで再起動した)回数
+     */
+    long getTradeIdResetsTotal();
+
+    /**
+     * @return 処理に失敗して隔離したレコードの数
+     */
+    long getQuarantinedRecordsTotal();
+
+    double getRecordsPerSecond();
+
+    double getBytesPerSecond();
+
+    /**
+     * @return 直近の計測区間のうちレコードの処理に費やした時間の割合(1に近いほどCPUが律速)
+     */
+    double getProcessingUtilization();
+
+    long getMillisBehindLatest();
+
+    long getMillisSinceLastBatch();
+
+    long getBatchLatencyP50Micros();
+
+    long getBatchLatencyP99Micros();
+
+    long getBatchLatencyMaxMicros();
+
+    long getRecordLatencyP50Nanos();
+
+    long getRecordLatencyP99Nanos();
+
+    long getRecordLatencyMaxNanos();
+
+    long getCheckpointsTotal();
+
+    long getCheckpointThrottlesTotal();
+
+    long getCheckpointLatencyP50Millis();
+
+    long getCheckpointLatencyP99Millis();
+
+    long getCheckpointLatencyMaxMillis();
+
+    void resetHistograms();
+
+}
@@ -0,0 +1,191 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 複数の株式取引を1つのKinesisレコードにまとめる集約フォーマットです。
+ * KPLの集約レコードと同様に、1つのパーティションキーに属するレコードをまとめます。
+ *
+ * <pre>
+ * magic(4) version(1) count(4) { length(4) data(length) } * count
+ * </pre>
+ */
+public final class AggregatedRecord {
+
+    private static final byte[] MAGIC = {(byte) 0xF3, 'S', 'T', 'A'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_BYTES = MAGIC.length + 1 + 4;
+    private static final int LENGTH_BYTES = 4;
+
+    private AggregatedRecord() {
+    }
+
+    /**
+     * データが集約レコードかどうかを判定します。
+     *
+     * @param data レコードのデータ
+     * @return 集約レコードの場合はtrue
+     */
+    public static boolean isAggregated(ByteBuffer data) {
+        if (data.remaining() < HEADER_BYTES) {
+            return false;
+        }
+        int position = data.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 集約レコードに含まれる各レコードを受け取るインターフェースです。
+     */
+    public interface RecordHandler {
+        /**
+         * @param data 集約レコードのバッファ
+         * @param offset レコードの開始位置
+         * @param length レコードの長さ
+         */
+        void accept(ByteBuffer data, int offset, int length);
+    }
+
+    /**
+     * 集約レコードを展開し、各レコードの位置を受け取ります。
+     * 元のバッファをそのまま渡すため、コピーやオブジェクトの生成は発生しません。
+     * 元のバッファのpositionは変更しません。
+     *
+     * @param data 集約レコードのデータ
+     * @param handler 各レコードを受け取る処理
+     * @return 展開したレコード数
+     * @throws IllegalArgumentException 集約レコードの形式が不正な場合
+     */
+    public static int forEach(ByteBuffer data, RecordHandler handler) {
+        if (!isAggregated(data)) {
+            throw new IllegalArgumentException("Not an aggregated record");
+        }
+        int position = data.position() + MAGIC.length;
+        byte version = data.get(position);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported aggregated record version: " + version);
+        }
+        int count = getInt(data, position + 1);
+        position += 1 + 4;
+
+        int limit = data.limit();
+        for (int i = 0; i < count; i++) {
+            if (position + LENGTH_BYTES > limit) {
+                throw new IllegalArgumentException("Truncated aggregated record");
+            }
+            int length = getInt(data, position);
+            position += LENGTH_BYTES;
+            if (length < 0 || position + length > limit) {
+                throw new IllegalArgumentException("Truncated aggregated record");
+            }
+            handler.accept(data, position, length);
+            position += length;
+        }
+        return count;
+    }
+
+    // バッファのバイトオーダーに関わらずビッグエンディアンで読み込む
+    private static int getInt(ByteBuffer data, int index) {
+        return (data.get(index) & 0xFF) << 24
+                | (data.get(index + 1) & 0xFF) << 16
+                | (data.get(index + 2) & 0xFF) << 8
+                | (data.get(index + 3) & 0xFF);
+    }
+
+    /**
+     * 集約レコードを組み立てるクラスです。
+     */
+    public static class Builder {
+
+        private final int maxBytes;
+        private byte[] buffer;
+        private int size;
+        private int count;
+
+        /**
+         * @param maxBytes 集約レコードの最大サイズ
+         */
+        public Builder(int maxBytes) {
+            if (maxBytes <= HEADER_BYTES + LENGTH_BYTES) {
+                throw new IllegalArgumentException("maxBytes is too small: " + maxBytes);
+            }
+            this.maxBytes = maxBytes;
+            this.buffer = new byte[Math.min(maxBytes, 1024)];
+            reset();
+        }
+
+        /**
+         * レコードを追加できるかどうかを判定します。
+         *
+         * @param length 追加するデータの長さ
+         * @return 最大サイズを超えない場合はtrue
+         */
+        public boolean fits(int length) {
+            return size + LENGTH_BYTES + length <= maxBytes;
+        }
+
+        /**
+         * レコードを追加します。
+         *
+         * @param data 追加するデータ
+         * @throws IllegalStateException 最大サイズを超える場合
+         */
+        public void add(byte[] data) {
+            if (!fits(data.length)) {
+                throw new IllegalStateException("Aggregated record is full");
+            }
+            ensureCapacity(size + LENGTH_BYTES + data.length);
+            putInt(size, data.length);
+            System.arraycopy(data, 0, buffer, size + LENGTH_BYTES, data.length);
+            size += LENGTH_BYTES + data.length;
+            count++;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 集約レコードを作成し、Builderを空の状態に戻します。
+         *
+         * @return 集約レコードのデータ
+         */
+        public byte[] build() {
+            putInt(MAGIC.length + 1, count);
+            byte[] record = Arrays.copyOf(buffer, size);
+            reset();
+            return record;
+        }
+
+        private void reset() {
+            System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+            buffer[MAGIC.length] = VERSION;
+            size = HEADER_BYTES;
+            count = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(maxBytes, Math.max(capacity, buffer.length * 2)));
+            }
+        }
+
+        private void putInt(int index, int value) {
+            buffer[index] = (byte) (value >>> 24);
+            buffer[index + 1] = (byte) (value >>> 16);
+            buffer[index + 2] = (byte) (value >>> 8);
+            buffer[index + 3] = (byte) value;
+        }
+    }
+
+}
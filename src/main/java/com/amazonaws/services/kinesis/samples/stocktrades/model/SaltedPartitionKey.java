@@ -0,0 +1,24 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+/**
+ * 取引の多い銘柄を複数のシャードに分散するために、パーティションキーに付けるソルトを扱うクラスです。
+ * ソルト付きのキーは{@code <元のキー>#<ソルト>}の形式です。
+ * 取引統計情報はレコードの中の銘柄で集計するため、読み込み側でソルトを取り除く必要はありません。
+ */
+public final class SaltedPartitionKey {
+
+    private static final char SEPARATOR = '#';
+
+    private SaltedPartitionKey() {
+    }
+
+    /**
+     * @param key 元のキー
+     * @param salt ソルト(0以上)
+     * @return ソルト付きのキー
+     */
+    public static String salt(String key, int salt) {
+        return key + SEPARATOR + salt;
+    }
+
+}
@@ -83,12 +83,16 @@ public class StockTrade {
 
     public static StockTrade fromJsonAsBytes(byte[] bytes) {
         try {
-            return JSON.readValue(bytes, StockTrade.class);
+            return fromJson(bytes, 0, bytes.length);
         } catch (IOException e) {
             return null;
         }
     }
 
+    static StockTrade fromJson(byte[] bytes, int offset, int length) throws IOException {
+        return JSON.readValue(bytes, offset, length, StockTrade.class);
+    }
+
     @Override
     public String toString() {
         return String.format("ID %d: %s %d shares of %s for $%.02f",
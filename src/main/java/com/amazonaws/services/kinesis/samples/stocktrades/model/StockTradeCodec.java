@@ -0,0 +1,172 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+/**
+ * 株式取引をレコードのデータに変換するクラスです。
+ * JSON形式とバイナリ形式をサポートし、受信側では先頭のバイトから形式を判別するため、
+ * 移行期間中は両方の形式が混在しても処理できます。
+ *
+ * <p>バイナリ形式(バージョン1)は次の通りです。
+ * <pre>
+ * magic(1) version(1) tradeType(1) price(8) quantity(8) id(8) tickerCode(1) [length(1) ticker(length)]
+ * </pre>
+ * 銘柄は{@link TickerDictionary}のコードで表し、辞書にない場合のみ文字列を格納します。
+ */
+public final class StockTradeCodec {
+
+    /**
+     * レコードのデータ形式です。
+     */
+    public enum Format {
+        JSON,
+        BINARY
+    }
+
+    static final byte BINARY_MAGIC = (byte) 0xB7;
+    static final byte BINARY_VERSION = 1;
+    static final int BINARY_FIXED_BYTES = 1 + 1 + 1 + 8 + 8 + 8 + 1;
+    private static final int MAX_TICKER_BYTES = 0xFF;
+
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+
+    private StockTradeCodec() {
+    }
+
+    /**
+     * 株式取引を指定した形式に変換します。
+     *
+     * @param trade 株式取引
+     * @param format データ形式
+     * @return レコードのデータ
+     * @throws IllegalArgumentException 変換できない場合
+     */
+    public static byte[] encode(StockTrade trade, Format format) {
+        if (format == Format.JSON) {
+            byte[] bytes = trade.toJsonAsBytes();
+            if (bytes == null) {
+                throw new IllegalArgumentException("Could not get JSON bytes for stock trade");
+            }
+            return bytes;
+        }
+        return encodeBinary(trade);
+    }
+
+    private static byte[] encodeBinary(StockTrade trade) {
+        int code = TickerDictionary.codeOf(trade.getTickerSymbol());
+        byte[] ticker = null;
+        int size = BINARY_FIXED_BYTES;
+        if (code == TickerDictionary.NO_CODE) {
+            ticker = trade.getTickerSymbol().getBytes(StandardCharsets.UTF_8);
+            if (ticker.length > MAX_TICKER_BYTES) {
+                throw new IllegalArgumentException("Ticker symbol is too long: " + trade.getTickerSymbol());
+            }
+            size += 1 + ticker.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(BINARY_MAGIC)
+                .put(BINARY_VERSION)
+                .put((byte) trade.getTradeType().ordinal())
+                .putDouble(trade.getPrice())
+                .putLong(trade.getQuantity())
+                .putLong(trade.getId())
+                .put((byte) code);
+        if (ticker != null) {
+            buffer.put((byte) ticker.length).put(ticker);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * データの形式を判別します。
+     *
+     * @param data レコードのデータ
+     * @return データ形式
+     * @throws IllegalArgumentException 未知の形式の場合
+     */
+    public static Format formatOf(ByteBuffer data) {
+        int position = data.position();
+        if (data.remaining() > 0 && data.get(position) == BINARY_MAGIC) {
+            return Format.BINARY;
+        }
+        for (int i = position; i < data.limit(); i++) {
+            byte b = data.get(i);
+            if (b == '{') {
+                return Format.JSON;
+            }
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stock trade format");
+    }
+
+    /**
+     * レコードのデータを株式取引に変換します。バッファのpositionは変更しません。
+     *
+     * @param data レコードのデータ
+     * @return 株式取引
+     * @throws IllegalArgumentException 変換できない場合
+     */
+    public static StockTrade decode(ByteBuffer data) {
+        if (formatOf(data) == Format.BINARY) {
+            return decodeBinary(data.duplicate().order(ByteOrder.BIG_ENDIAN));
+        }
+        try {
+            if (data.hasArray()) {
+                return StockTrade.fromJson(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return StockTrade.fromJson(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed JSON stock trade", e);
+        }
+    }
+
+    private static StockTrade decodeBinary(ByteBuffer data) {
+        if (data.remaining() < BINARY_FIXED_BYTES) {
+            throw new IllegalArgumentException("Truncated binary stock trade");
+        }
+        data.get();
+        byte version = data.get();
+        if (version != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary stock trade version: " + version);
+        }
+        int tradeType = data.get();
+        if (tradeType < 0 || tradeType >= TRADE_TYPES.length) {
+            throw new IllegalArgumentException("Unknown trade type: " + tradeType);
+        }
+        double price = data.getDouble();
+        long quantity = data.getLong();
+        long id = data.getLong();
+        int code = data.get() & 0xFF;
+
+        String tickerSymbol;
+        if (code == TickerDictionary.NO_CODE) {
+            if (!data.hasRemaining()) {
+                throw new IllegalArgumentException("Truncated binary stock trade");
+            }
+            int length = data.get() & 0xFF;
+            if (data.remaining() < length) {
+                throw new IllegalArgumentException("Truncated binary stock trade");
+            }
+            byte[] ticker = new byte[length];
+            data.get(ticker);
+            tickerSymbol = new String(ticker, StandardCharsets.UTF_8);
+        } else {
+            tickerSymbol = TickerDictionary.symbolOf(code);
+            if (tickerSymbol == null) {
+                throw new IllegalArgumentException("Unknown ticker code: " + code);
+            }
+        }
+        return new StockTrade(tickerSymbol, TRADE_TYPES[tradeType], price, quantity, id);
+    }
+
+}
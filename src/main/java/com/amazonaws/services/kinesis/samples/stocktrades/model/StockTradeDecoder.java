@@ -0,0 +1,446 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+/**
+ * レコードのバッファから直接、株式取引の値を{@link StockTradeView}に読み込むクラスです。
+ * JSON形式とバイナリ形式の両方を扱い、中間のバイト配列や{@link StockTrade}を生成しません。
+ * 銘柄は{@link TickerDictionary}と{@link TickerSymbolCache}から再利用するため、
+ * 定常状態ではレコードごとのオブジェクト生成は発生しません。
+ * スレッドセーフではないため、スレッドごとにインスタンスを作成してください。
+ */
+public final class StockTradeDecoder {
+
+    private static final int DEFAULT_TICKER_CACHE_SIZE = 16384;
+
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+    private static final byte[][] TRADE_TYPE_NAMES = new byte[TRADE_TYPES.length][];
+    static {
+        for (int i = 0; i < TRADE_TYPES.length; i++) {
+            TRADE_TYPE_NAMES[i] = TRADE_TYPES[i].name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // JSONのフィールド名
+    private static final byte[] TICKER_SYMBOL = ascii("tickerSymbol");
+    private static final byte[] TRADE_TYPE = ascii("tradeType");
+    private static final byte[] PRICE = ascii("price");
+    private static final byte[] QUANTITY = ascii("quantity");
+    private static final byte[] ID = ascii("id");
+
+    // 正確に表現できる10のべき乗
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final TickerSymbolCache tickers;
+
+    // JSONの解析中の状態
+    private ByteBuffer data;
+    private int position;
+    private int limit;
+    private int numberStart;
+    private long mantissa;
+    private int exponent;
+    private boolean exact;
+    private int stringStart;
+    private int stringEnd;
+    private boolean stringEscaped;
+
+    public StockTradeDecoder() {
+        this(DEFAULT_TICKER_CACHE_SIZE);
+    }
+
+    /**
+     * @param tickerCacheSize 銘柄のキャッシュのエントリ数
+     */
+    public StockTradeDecoder(int tickerCacheSize) {
+        this.tickers = new TickerSymbolCache(tickerCacheSize);
+    }
+
+    /**
+     * バッファのpositionからlimitまでを読み込みます。バッファのpositionは変更しません。
+     *
+     * @param data レコードのデータ
+     * @param view 読み込んだ値を格納する
+     * @throws IllegalArgumentException 読み込めない場合
+     */
+    public void decode(ByteBuffer data, StockTradeView view) {
+        decode(data, data.position(), data.remaining(), view);
+    }
+
+    /**
+     * バッファの指定した範囲を読み込みます。バッファのpositionは変更しません。
+     *
+     * @param data レコードのデータ
+     * @param offset 開始位置
+     * @param length 長さ
+     * @param view 読み込んだ値を格納する
+     * @throws IllegalArgumentException 読み込めない場合
+     */
+    public void decode(ByteBuffer data, int offset, int length, StockTradeView view) {
+        if (length > 0 && data.get(offset) == StockTradeCodec.BINARY_MAGIC) {
+            decodeBinary(data, offset, length, view);
+        } else {
+            decodeJson(data, offset, length, view);
+        }
+    }
+
+    private void decodeBinary(ByteBuffer data, int offset, int length, StockTradeView view) {
+        if (length < StockTradeCodec.BINARY_FIXED_BYTES) {
+            throw new IllegalArgumentException("Truncated binary stock trade");
+        }
+        byte version = data.get(offset + 1);
+        if (version != StockTradeCodec.BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary stock trade version: " + version);
+        }
+        int tradeType = data.get(offset + 2);
+        if (tradeType < 0 || tradeType >= TRADE_TYPES.length) {
+            throw new IllegalArgumentException("Unknown trade type: " + tradeType);
+        }
+        double price = Double.longBitsToDouble(getLong(data, offset + 3));
+        long quantity = getLong(data, offset + 11);
+        long id = getLong(data, offset + 19);
+        int code = data.get(offset + 27) & 0xFF;
+
+        String tickerSymbol;
+        if (code == TickerDictionary.NO_CODE) {
+            int tickerOffset = offset + StockTradeCodec.BINARY_FIXED_BYTES + 1;
+            if (length < StockTradeCodec.BINARY_FIXED_BYTES + 1) {
+                throw new IllegalArgumentException("Truncated binary stock trade");
+            }
+            int tickerLength = data.get(tickerOffset - 1) & 0xFF;
+            if (tickerOffset + tickerLength > offset + length) {
+                throw new IllegalArgumentException("Truncated binary stock trade");
+            }
+            tickerSymbol = tickers.get(data, tickerOffset, tickerLength);
+        } else {
+            tickerSymbol = TickerDictionary.symbolOf(code);
+            if (tickerSymbol == null) {
+                throw new IllegalArgumentException("Unknown ticker code: " + code);
+            }
+        }
+        view.set(tickerSymbol, TRADE_TYPES[tradeType], price, quantity, id);
+    }
+
+    private static long getLong(ByteBuffer data, int index) {
+        long value = data.getLong(index);
+        return data.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
+    }
+
+    private void decodeJson(ByteBuffer data, int offset, int length, StockTradeView view) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+        try {
+            view.clear();
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    readString();
+                    int keyStart = stringStart;
+                    int keyEnd = stringEnd;
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    readField(keyStart, keyEnd, view);
+                    skipWhitespace();
+                    byte b = next();
+                    if (b == '}') {
+                        break;
+                    }
+                    if (b != ',') {
+                        throw new IllegalArgumentException("Expected ',' or '}' in JSON stock trade");
+                    }
+                }
+            }
+            if (view.getTickerSymbol() == null || view.getTradeType() == null) {
+                throw new IllegalArgumentException("Missing tickerSymbol or tradeType");
+            }
+        } finally {
+            this.data = null;
+        }
+    }
+
+    private void readField(int keyStart, int keyEnd, StockTradeView view) {
+        if (keyEquals(keyStart, keyEnd, TICKER_SYMBOL)) {
+            if (!readNull()) {
+                readString();
+                view.setTickerSymbol(stringEscaped
+                        ? unescape(stringStart, stringEnd)
+                        : tickers.get(data, stringStart, stringEnd - stringStart));
+            }
+        } else if (keyEquals(keyStart, keyEnd, TRADE_TYPE)) {
+            if (!readNull()) {
+                readString();
+                view.setTradeType(tradeTypeOf(stringStart, stringEnd));
+            }
+        } else if (keyEquals(keyStart, keyEnd, PRICE)) {
+            readNumber();
+            view.setPrice(doubleValue());
+        } else if (keyEquals(keyStart, keyEnd, QUANTITY)) {
+            readNumber();
+            view.setQuantity(longValue());
+        } else if (keyEquals(keyStart, keyEnd, ID)) {
+            readNumber();
+            view.setId(longValue());
+        } else {
+            skipValue();
+        }
+    }
+
+    private TradeType tradeTypeOf(int start, int end) {
+        for (int i = 0; i < TRADE_TYPE_NAMES.length; i++) {
+            if (keyEquals(start, end, TRADE_TYPE_NAMES[i])) {
+                return TRADE_TYPES[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown trade type");
+    }
+
+    private boolean keyEquals(int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (data.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 文字列を読み込み、引用符を除いた範囲をstringStart/stringEndに設定します。
+     */
+    private void readString() {
+        expect('"');
+        stringStart = position;
+        stringEscaped = false;
+        while (true) {
+            byte b = next();
+            if (b == '"') {
+                stringEnd = position - 1;
+                return;
+            }
+            if (b == '\\') {
+                stringEscaped = true;
+                next();
+            }
+        }
+    }
+
+    // エスケープを含む文字列はまれなため、ここでは通常どおりStringを生成する
+    private String unescape(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = data.get(i);
+            if (b != '\\') {
+                bytes[length++] = b;
+                continue;
+            }
+            byte escaped = data.get(++i);
+            switch (escaped) {
+                case 'b': bytes[length++] = '\b'; break;
+                case 'f': bytes[length++] = '\f'; break;
+                case 'n': bytes[length++] = '\n'; break;
+                case 'r': bytes[length++] = '\r'; break;
+                case 't': bytes[length++] = '\t'; break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw new IllegalArgumentException("Malformed unicode escape");
+                    }
+                    char c = (char) Integer.parseInt(ascii(i + 1, i + 5), 16);
+                    byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(encoded, 0, bytes, length, encoded.length);
+                    length += encoded.length;
+                    i += 4;
+                    break;
+                default: bytes[length++] = escaped; break;
+            }
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private boolean readNull() {
+        if (peek() != 'n') {
+            return false;
+        }
+        expect('n');
+        expect('u');
+        expect('l');
+        expect('l');
+        return true;
+    }
+
+    /**
+     * 数値を読み込み、仮数部と10進の指数をmantissa/exponentに設定します。
+     * 仮数部の桁数が多すぎる場合はexactをfalseにします。
+     */
+    private void readNumber() {
+        numberStart = position;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            position++;
+        }
+        mantissa = 0L;
+        exponent = 0;
+        exact = true;
+        int digits = 0;
+        boolean fraction = false;
+        while (position < limit) {
+            byte b = data.get(position);
+            if (b >= '0' && b <= '9') {
+                if (exact && mantissa <= (Long.MAX_VALUE - (b - '0')) / 10) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    if (fraction) {
+                        exponent--;
+                    }
+                } else {
+                    exact = false;
+                }
+                digits++;
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+            position++;
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Malformed number");
+        }
+        if (position < limit && (data.get(position) == 'e' || data.get(position) == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if (peek() == '+' || peek() == '-') {
+                negativeExponent = next() == '-';
+            }
+            int value = 0;
+            int exponentDigits = 0;
+            while (position < limit && data.get(position) >= '0' && data.get(position) <= '9') {
+                value = Math.min(value * 10 + (data.get(position++) - '0'), 10000);
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                throw new IllegalArgumentException("Malformed number");
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if (negative) {
+            mantissa = -mantissa;
+        }
+    }
+
+    private double doubleValue() {
+        if (exact && Math.abs(mantissa) <= MAX_EXACT_MANTISSA) {
+            if (exponent == 0) {
+                return mantissa;
+            }
+            if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                return mantissa / POWERS_OF_TEN[-exponent];
+            }
+            if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+                return mantissa * POWERS_OF_TEN[exponent];
+            }
+        }
+        // 正確に計算できない桁数の場合のみ文字列から変換する
+        return Double.parseDouble(ascii(numberStart, position));
+    }
+
+    private long longValue() {
+        if (exact && exponent == 0) {
+            return mantissa;
+        }
+        double value = doubleValue();
+        if (value >= 0x1p63 || value < -0x1p63) {
+            throw new IllegalArgumentException("Number out of range in JSON stock trade");
+        }
+        return (long) value;
+    }
+
+    private void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            readString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = peek();
+                if (b == '"') {
+                    readString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+                position++;
+            } while (depth > 0);
+        } else {
+            while (position < limit) {
+                b = data.get(position);
+                if (b == ',' || b == '}' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    break;
+                }
+                position++;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < limit) {
+            byte b = data.get(position);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private byte peek() {
+        if (position >= limit) {
+            throw new IllegalArgumentException("Unexpected end of JSON stock trade");
+        }
+        return data.get(position);
+    }
+
+    private byte next() {
+        byte b = peek();
+        position++;
+        return b;
+    }
+
+    private void expect(char c) {
+        if (next() != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' in JSON stock trade");
+        }
+    }
+
+    private String ascii(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = data.get(i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
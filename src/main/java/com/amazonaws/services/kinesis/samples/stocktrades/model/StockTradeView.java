@@ -0,0 +1,97 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+/**
+ * 株式取引の値を保持する再利用可能なクラスです。
+ * レコードごとに{@link StockTrade}を生成せずに取引の値を受け渡すために使用します。
+ */
+public final class StockTradeView {
+
+    private String tickerSymbol;
+    private TradeType tradeType;
+    private double price;
+    private long quantity;
+    private long id;
+
+    /**
+     * 取引の値を設定します。
+     *
+     * @return このインスタンス
+     */
+    public StockTradeView set(String tickerSymbol, TradeType tradeType, double price, long quantity, long id) {
+        this.tickerSymbol = tickerSymbol;
+        this.tradeType = tradeType;
+        this.price = price;
+        this.quantity = quantity;
+        this.id = id;
+        return this;
+    }
+
+    /**
+     * 株式取引の値をコピーします。
+     *
+     * @return このインスタンス
+     */
+    public StockTradeView set(StockTrade trade) {
+        return set(trade.getTickerSymbol(), trade.getTradeType(), trade.getPrice(), trade.getQuantity(), trade.getId());
+    }
+
+    void clear() {
+        set(null, null, 0.0, 0L, 0L);
+    }
+
+    public String getTickerSymbol() {
+        return tickerSymbol;
+    }
+
+    public TradeType getTradeType() {
+        return tradeType;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public long getQuantity() {
+        return quantity;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    void setTickerSymbol(String tickerSymbol) {
+        this.tickerSymbol = tickerSymbol;
+    }
+
+    void setTradeType(TradeType tradeType) {
+        this.tradeType = tradeType;
+    }
+
+    void setPrice(double price) {
+        this.price = price;
+    }
+
+    void setQuantity(long quantity) {
+        this.quantity = quantity;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    /**
+     * @return 現在の値を持つ株式取引
+     */
+    public StockTrade toStockTrade() {
+        return new StockTrade(tickerSymbol, tradeType, price, quantity, id);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ID %d: %s %d shares of %s for $%.02f",
+                id, tradeType, quantity, tickerSymbol, price);
+    }
+
+}
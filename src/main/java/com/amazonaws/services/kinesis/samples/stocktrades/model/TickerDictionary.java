@@ -0,0 +1,51 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * バイナリ形式で銘柄を1バイトのコードで表すための辞書です。
+ * コードは送信側と受信側で共有されるため、既存の銘柄の順番は変更せず、末尾にのみ追加してください。
+ */
+final class TickerDictionary {
+
+    // コード0は辞書にない銘柄(文字列をそのまま格納)を表す
+    static final int NO_CODE = 0;
+
+    private static final String[] SYMBOLS = {
+            null,
+            "AAPL", "XOM", "GOOG", "BRK.A", "MSFT",
+            "WFC", "JNJ", "WMT", "CHL", "GE",
+            "NVS", "PG", "JPM", "RDS.A", "CVX",
+            "PFE", "FB", "VZ", "PTR", "BUD",
+            "ORCL", "KO", "T", "DIS", "AMZN",
+    };
+
+    private static final Map<String, Integer> CODES = new HashMap<>();
+    static {
+        for (int code = 1; code < SYMBOLS.length; code++) {
+            CODES.put(SYMBOLS[code], code);
+        }
+    }
+
+    private TickerDictionary() {
+    }
+
+    /**
+     * @param tickerSymbol 銘柄
+     * @return 銘柄のコード(辞書にない場合は{@link #NO_CODE})
+     */
+    static int codeOf(String tickerSymbol) {
+        Integer code = CODES.get(tickerSymbol);
+        return code == null ? NO_CODE : code;
+    }
+
+    /**
+     * @param code 銘柄のコード
+     * @return 銘柄(未知のコードの場合はnull)
+     */
+    static String symbolOf(int code) {
+        return code > NO_CODE && code < SYMBOLS.length ? SYMBOLS[code] : null;
+    }
+
+}
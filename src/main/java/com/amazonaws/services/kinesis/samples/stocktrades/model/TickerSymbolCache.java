@@ -0,0 +1,67 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * バッファ上の銘柄のバイト列から、同じ内容の{@link String}を再利用して返すキャッシュです。
+ * ダイレクトマップ方式で容量は固定のため、銘柄の種類が多い場合は衝突したエントリを上書きします。
+ * スレッドセーフではありません。
+ */
+final class TickerSymbolCache {
+
+    private final byte[][] keys;
+    private final String[] values;
+    private final int mask;
+
+    /**
+     * @param capacity エントリ数(2のべき乗に切り上げます)
+     */
+    TickerSymbolCache(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.keys = new byte[size][];
+        this.values = new String[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param data バッファ
+     * @param offset 銘柄の開始位置
+     * @param length 銘柄のバイト数
+     * @return 銘柄
+     */
+    String get(ByteBuffer data, int offset, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + data.get(offset + i);
+        }
+        int index = (hash ^ (hash >>> 16)) & mask;
+
+        byte[] key = keys[index];
+        if (key != null && matches(key, data, offset, length)) {
+            return values[index];
+        }
+
+        key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            key[i] = data.get(offset + i);
+        }
+        String value = new String(key, StandardCharsets.UTF_8);
+        keys[index] = key;
+        values[index] = value;
+        return value;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer data, int offset, int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key[i] != data.get(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 取引IDの構成です。
+ *
+ * <p>取引IDは上位23ビットにライターID、下位40ビットにライターごとの連番を持ちます。
+ * ライターIDは起動ごとに乱数で決めるため、ライターを再起動したり複数のライターを動かしたりしても、
+ * 取引IDは(ライターIDが衝突しない限り)重複しません。連番はプロセス内の全ての生成元で共有します。
+ * ライターIDはシステムプロパティ(-Dstocktrades.writer.id)で指定することもできますが、
+ * その場合は同時に動かすライターごと、かつ再起動のたびに異なる値を指定してください。
+ */
+public final class TradeIds {
+
+    // ライターIDを指定するシステムプロパティ(1から2^23-1)
+    public static final String WRITER_ID_PROPERTY = "stocktrades.writer.id";
+
+    public static final int SEQUENCE_BITS = 40;
+    public static final int WRITER_BITS = 23;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long MAX_WRITER_ID = (1L << WRITER_BITS) - 1;
+
+    private static final AtomicLong NEXT_SEQUENCE = new AtomicLong();
+
+    private static volatile long localWriterId;
+
+    private TradeIds() {
+    }
+
+    /**
+     * @param id 取引ID
+     * @return 取引を生成したライターのID
+     */
+    public static long writerOf(long id) {
+        return id >>> SEQUENCE_BITS;
+    }
+
+    /**
+     * @param id 取引ID
+     * @return ライターごとの連番
+     */
+    public static long sequenceOf(long id) {
+        return id & SEQUENCE_MASK;
+    }
+
+    /**
+     * @param writerId ライターID
+     * @param sequence ライターごとの連番
+     * @return 取引ID
+     */
+    public static long of(long writerId, long sequence) {
+        return (writerId << SEQUENCE_BITS) | (sequence & SEQUENCE_MASK);
+    }
+
+    /**
+     * @return このプロセスで次の取引ID
+     */
+    public static long nextId() {
+        return of(localWriterId(), NEXT_SEQUENCE.getAndIncrement());
+    }
+
+    /**
+     * 連番を連続したcount個まとめて確保します。取引ごとに共有の連番を更新しないために使います。
+     *
+     * @param count 確保する数
+     * @return 確保した最初の連番({@link #of(long, long)}で取引IDにします)
+     */
+    public static long reserveSequences(int count) {
+        return NEXT_SEQUENCE.getAndAdd(count);
+    }
+
+    /**
+     * このプロセスのライターIDを返します。最初の呼び出しでシステムプロパティまたは乱数から決めます。
+     *
+     * @return ライターID(1以上)
+     */
+    public static long localWriterId() {
+        long writerId = localWriterId;
+        if (writerId == 0) {
+            synchronized (TradeIds.class) {
+                writerId = localWriterId;
+                if (writerId == 0) {
+                    writerId = Long.getLong(WRITER_ID_PROPERTY, 0L);
+                    if (writerId == 0) {
+                        writerId = 1L + new SecureRandom().nextInt((int) MAX_WRITER_ID);
+                    } else if (writerId < 0 || writerId > MAX_WRITER_ID) {
+                        throw new IllegalArgumentException(WRITER_ID_PROPERTY + " must be between 1 and "
+                                + MAX_WRITER_ID);
+                    }
+                    localWriterId = writerId;
+                }
+            }
+        }
+        return writerId;
+    }
+
+}
@@ -0,0 +1,271 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.ShardMetrics;
+
+import software.amazon.kinesis.exceptions.InvalidStateException;
+import software.amazon.kinesis.exceptions.ShutdownException;
+import software.amazon.kinesis.exceptions.ThrottlingException;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * 処理したレコード数・バイト数・経過時間に応じて、チェックポイントを非同期に記録するクラスです。
+ *
+ * <p>チェックポイントは処理済みの最後のレコードのシーケンス番号に対して記録し、
+ * DynamoDBへの書き込みはレコードを処理するスレッドとは別のスレッドで行います。
+ * 書き込み中に新しいチェックポイントが要求された場合は、最新のシーケンス番号だけを次に記録します。
+ * スロットリングされた場合は、ジッター付きの指数バックオフで再試行します。
+ *
+ * <p>書き込みスレッドはワーカー内の全てのシャードで共有する少数のスレッドです。
+ * 1シャードの書き込みは同時に1つだけで、再試行の待機中はスレッドを占有しないため、
+ * 書き込みが遅いシャードがあっても他のシャードのチェックポイントは止まりません。
+ */
+class CheckpointScheduler {
+
+    private static final Log log = LogFactory.getLog(CheckpointScheduler.class);
+
+    private static final long BASE_BACKOFF_MILLIS = 200L;
+    private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+    // 共有する書き込みスレッドの数
+    private static final int SHARED_THREADS = 4;
+
+    /**
+     * ワーカー内の全てのシャードで共有する書き込みスレッドです。
+     */
+    private static class SharedExecutorHolder {
+        private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+
+        static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(SHARED_THREADS, r -> {
+            Thread t = new Thread(r, "stock-trade-checkpointer-" + THREAD_NUMBER.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final String shardId;
+    private final ScheduledExecutorService executor;
+    private final long intervalMillis;
+    private final long minIntervalMillis;
+    private final long recordsThreshold;
+    private final long bytesThreshold;
+    private final ShardMetrics metrics;
+    private final CheckpointListener listener;
+
+    // 最後のチェックポイント要求以降に処理したレコード(処理スレッドのみが参照)
+    private String lastSequenceNumber;
+    private long lastSubSequenceNumber;
+    private long recordsSinceCheckpoint;
+    private long bytesSinceCheckpoint;
+    private long lastRequestTimeMillis = System.currentTimeMillis();
+
+    // 記録待ちのチェックポイントと、書き込み中かどうか(thisで同期)
+    private Target pending;
+    private boolean running;
+    private boolean cancelled;
+    // スロットリング後の再試行(待機中でなければnull)
+    private ScheduledFuture<?> retry;
+
+    /**
+     * @param shardId シャードID
+     * @param executor チェックポイントを書き込むスレッド
+     * @param intervalMillis チェックポイントの最大間隔
+     * @param minIntervalMillis チェックポイントの最小間隔
+     * @param recordsThreshold チェックポイントを記録するレコード数(0の場合はレコード数では記録しない)
+     * @param bytesThreshold チェックポイントを記録するバイト数(0の場合はバイト数では記録しない)
+     * @param metrics チェックポイントの記録時間を記録するメトリクス(記録しない場合はnull)
+     * @param listener チェックポイントを要求する直前に呼び出す処理(呼び出さない場合はnull)
+     */
+    CheckpointScheduler(String shardId, ScheduledExecutorService executor, long intervalMillis,
+                        long minIntervalMillis, long recordsThreshold, long bytesThreshold,
+                        ShardMetrics metrics, CheckpointListener listener) {
+        this.shardId = shardId;
+        this.executor = executor;
+        this.intervalMillis = intervalMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.recordsThreshold = recordsThreshold;
+        this.bytesThreshold = bytesThreshold;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    /**
+     * @return 全てのシャードで共有するチェックポイントの書き込みスレッド
+     */
+    static ScheduledExecutorService sharedExecutor() {
+        return SharedExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * 処理済みのレコードを記録します。
+     *
+     * @param record 処理済みのレコード
+     */
+    void recordProcessed(KinesisClientRecord record) {
+        lastSequenceNumber = record.sequenceNumber();
+        lastSubSequenceNumber = record.subSequenceNumber();
+        recordsSinceCheckpoint++;
+        bytesSinceCheckpoint += record.data().remaining();
+    }
+
+    /**
+     * 条件を満たしていれば、処理済みの最後のレコードのチェックポイントを非同期に記録します。
+     *
+     * @param checkpointer チェックポインタ
+     */
+    void maybeCheckpoint(RecordProcessorCheckpointer checkpointer) {
+        if (lastSequenceNumber == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastRequestTimeMillis;
+        boolean due = elapsed >= intervalMillis
+                || (recordsThreshold > 0 && recordsSinceCheckpoint >= recordsThreshold)
+                || (bytesThreshold > 0 && bytesSinceCheckpoint >= bytesThreshold);
+        if (!due || elapsed < minIntervalMillis) {
+            return;
+        }
+        if (listener != null) {
+            listener.beforeCheckpoint(lastSequenceNumber, lastSubSequenceNumber);
+        }
+        request(new Target(checkpointer, lastSequenceNumber, lastSubSequenceNumber));
+        lastSequenceNumber = null;
+        recordsSinceCheckpoint = 0L;
+        bytesSinceCheckpoint = 0L;
+        lastRequestTimeMillis = now;
+    }
+
+    private synchronized void request(Target target) {
+        if (cancelled) {
+            return;
+        }
+        pending = target;
+        if (!running) {
+            running = true;
+            executor.execute(() -> write(0));
+        }
+    }
+
+    private void write(int attempt) {
+        while (true) {
+            Target target;
+            synchronized (this) {
+                target = pending;
+                if (target == null || cancelled) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            long startNanos = System.nanoTime();
+            try {
+                target.checkpointer.checkpoint(target.sequenceNumber, target.subSequenceNumber);
+                if (metrics != null) {
+                    metrics.recordCheckpoint(System.nanoTime() - startNanos);
+                }
+                log.debug("Checkpointed shard " + shardId + " at " + target.sequenceNumber);
+            } catch (ThrottlingException e) {
+                if (metrics != null) {
+                    metrics.recordCheckpointThrottle();
+                }
+                long backoffMillis = ThreadLocalRandom.current().nextLong(
+                        Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16)) + 1);
+                log.warn("Caught throttling exception while checkpointing shard " + shardId
+                        + ", retrying in " + backoffMillis + "ms.", e);
+                // 待機中に新しい要求が届いた場合は、再試行でそちらを記録する
+                int nextAttempt = attempt + 1;
+                synchronized (this) {
+                    retry = executor.schedule(() -> {
+                        synchronized (this) {
+                            retry = null;
+                        }
+                        write(nextAttempt);
+                    }, backoffMillis, TimeUnit.MILLISECONDS);
+                }
+                return;
+            } catch (ShutdownException e) {
+                log.info("Caught shutdown exception, skipping checkpoint.", e);
+                cancel();
+                continue;
+            } catch (InvalidStateException e) {
+                log.error("Cannot save checkpoint to the DynamoDB table used by the Amazon Kinesis Client Library.", e);
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception while checkpointing shard " + shardId + ".", e);
+            }
+            attempt = 0;
+            synchronized (this) {
+                // 書き込み中に新しい要求がなければ完了
+                if (pending == target) {
+                    pending = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 記録待ちのチェックポイントを破棄し、書き込み中のチェックポイントの完了を待ちます。
+     * シャードの終了やシャットダウンで同期的にチェックポイントを記録する前と、リースを失ったときに呼び出します。
+     *
+     * @param timeoutMillis 完了を待つ最大時間
+     */
+    synchronized void cancel(long timeoutMillis) throws InterruptedException {
+        cancel();
+        if (retry != null && retry.cancel(false)) {
+            // 待機中の再試行は取り消せたので、書き込み中のものはない
+            retry = null;
+            running = false;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (running) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                log.warn("Timed out waiting for checkpoint of shard " + shardId + " to complete.");
+                return;
+            }
+            wait(remaining);
+        }
+    }
+
+    private synchronized void cancel() {
+        cancelled = true;
+        pending = null;
+    }
+
+    /**
+     * チェックポイントを要求する直前に、レコードを処理するスレッドで呼び出される処理です。
+     * チェックポイントと同じ位置の状態を保存するために使います。
+     */
+    interface CheckpointListener {
+        /**
+         * @param sequenceNumber チェックポイントを記録するシーケンス番号
+         * @param subSequenceNumber チェックポイントを記録するサブシーケンス番号
+         */
+        void beforeCheckpoint(String sequenceNumber, long subSequenceNumber);
+    }
+
+    /**
+     * 記録するチェックポイントです。
+     */
+    private static class Target {
+        final RecordProcessorCheckpointer checkpointer;
+        final String sequenceNumber;
+        final long subSequenceNumber;
+
+        Target(RecordProcessorCheckpointer checkpointer, String sequenceNumber, long subSequenceNumber) {
+            this.checkpointer = checkpointer;
+            this.sequenceNumber = sequenceNumber;
+            this.subSequenceNumber = subSequenceNumber;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * 銘柄を連番のIDに変換し、取引数をプリミティブの配列で正確に数えるクラスです。
+ * 上位N銘柄は取引を受け取るたびに更新します。
+ * メモリ使用量は出現した銘柄の種類数に比例します。
+ */
+class ExactTickerCounter implements TickerCounter {
+
+    // 銘柄とIDの対応
+    private final TickerRegistry tickers = new TickerRegistry();
+
+    // 各銘柄の取引数(銘柄のIDで参照)
+    private long[] counts = new long[64];
+
+    // 上位N銘柄のID(取引数の多い順)
+    private final int[] top;
+    private int topSize;
+
+    /**
+     * @param topN 保持する上位銘柄の数
+     */
+    ExactTickerCounter(int topN) {
+        this.top = new int[topN];
+    }
+
+    @Override
+    public void add(String tickerSymbol, long count) {
+        int id = tickers.intern(tickerSymbol);
+        if (id >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(counts.length * 2, id + 1));
+        }
+        counts[id] += count;
+        updateTop(id, counts[id]);
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> consumer) {
+        int size = Math.min(tickers.size(), counts.length);
+        for (int id = 0; id < size; id++) {
+            if (counts[id] > 0) {
+                consumer.accept(tickers.symbolOf(id), counts[id]);
+            }
+        }
+    }
+
+    /**
+     * 取引数が増えた銘柄の上位N銘柄内での順位を更新します。
+     * 上位N銘柄以外の銘柄の取引数は常に上位N銘柄の最小値以下のため、
+     * 増えた銘柄が最小値を超えた場合だけ入れ替えれば正確な上位N銘柄が得られます。
+     * 取引数が同じ場合は銘柄の辞書順で上位とするため、取引を受け取った順序や合算の順序によらず結果は一定です。
+     */
+    private void updateTop(int id, long count) {
+        int position = -1;
+        for (int i = 0; i < topSize; i++) {
+            if (top[i] == id) {
+                position = i;
+                break;
+            }
+        }
+        if (position < 0) {
+            if (topSize < top.length) {
+                position = topSize++;
+            } else if (ranksAbove(id, count, top[topSize - 1])) {
+                position = topSize - 1;
+            } else {
+                return;
+            }
+            top[position] = id;
+        }
+        while (position > 0 && ranksAbove(id, count, top[position - 1])) {
+            top[position] = top[position - 1];
+            top[--position] = id;
+        }
+    }
+
+    private boolean ranksAbove(int id, long count, int otherId) {
+        long otherCount = counts[otherId];
+        return count > otherCount
+                || (count == otherCount && tickers.symbolOf(id).compareTo(tickers.symbolOf(otherId)) < 0);
+    }
+
+    @Override
+    public long count(String tickerSymbol) {
+        int id = tickers.idOf(tickerSymbol);
+        return id < 0 || id >= counts.length ? 0L : counts[id];
+    }
+
+    @Override
+    public int topSize() {
+        return topSize;
+    }
+
+    @Override
+    public String topSymbol(int rank) {
+        return tickers.symbolOf(top[rank]);
+    }
+
+    @Override
+    public long topCount(int rank) {
+        return counts[top[rank]];
+    }
+
+    @Override
+    public long maxError() {
+        return 0L;
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(counts, 0, Math.min(tickers.size(), counts.length), 0L);
+        topSize = 0;
+    }
+
+}
@@ -0,0 +1,249 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * 大きなバッチのレコードを分割し、ForkJoinPoolで並列にデコードして集計するクラスです。
+ *
+ * <p>バッチは一定数のレコードごとのチャンクに分け、チャンクごとに専用のデコーダと部分統計を使います。
+ * 全てのチャンクの処理が終わってから、部分統計をチャンクの順に呼び出し元の統計に合算します。
+ * ウィンドウ集計はレコードの順序に依存するため、チャンクではデコードした取引を保持するだけにし、
+ * 合算時にレコードの順に流し込みます。そのため結果はスレッドの実行順序によらず一定です。
+ * 分位点のスケッチも、チャンクごとに持つとメモリ使用量がチャンク数倍になるため、同様に合算時に呼び出し元の統計に追加します。
+ * 処理に失敗したレコードはチャンクごとに記録し、合算時にレコードの順に呼び出し元に渡します。
+ * デコーダや保持領域はバッチをまたいで再利用します。スレッドセーフではありません。
+ */
+class ParallelBatchProcessor {
+
+    private final StockTradeProcessorConfig config;
+    private final int minBatchRecords;
+    private final int chunkRecords;
+    private final ForkJoinPool pool;
+
+    /**
+     * 処理に失敗したレコードを受け取る処理です。
+     */
+    interface FailureHandler {
+
+        /**
+         * @param record 処理に失敗したレコード
+         * @param cause 処理中に発生した例外(デコードできなかった場合はnull)
+         */
+        void onFailure(KinesisClientRecord record, RuntimeException cause);
+    }
+
+    private Chunk[] chunks = new Chunk[0];
+    private final StockTradeView replayedTrade = new StockTradeView();
+
+    /**
+     * @param config 部分統計の作成に使うレコードプロセッサの設定
+     * @param minBatchRecords 並列に処理するバッチの最小レコード数
+     * @param chunkRecords チャンクあたりのレコード数
+     * @param pool 並列処理に使うスレッドプール
+     */
+    ParallelBatchProcessor(StockTradeProcessorConfig config, int minBatchRecords, int chunkRecords,
+                           ForkJoinPool pool) {
+        if (minBatchRecords <= 0 || chunkRecords <= 0) {
+            throw new IllegalArgumentException("minBatchRecords and chunkRecords must be positive");
+        }
+        this.config = config;
+        this.minBatchRecords = minBatchRecords;
+        this.chunkRecords = chunkRecords;
+        this.pool = pool;
+    }
+
+    /**
+     * @param batchRecords バッチのレコード数
+     * @return 並列に処理する場合はtrue
+     */
+    boolean accepts(int batchRecords) {
+        return batchRecords >= minBatchRecords && batchRecords > chunkRecords;
+    }
+
+    /**
+     * バッチのレコードを並列に処理し、統計とウィンドウ集計に反映します。
+     *
+     * @param records バッチのレコード
+     * @param stockStats 合算先の取引統計情報
+     * @param windowAggregator 取引を流し込むウィンドウ集計(行わない場合はnull)
+     * @param failureHandler 処理に失敗したレコードを受け取る処理
+     */
+    void process(List<KinesisClientRecord> records, StockStats stockStats, TradeWindowAggregator windowAggregator,
+                 FailureHandler failureHandler) {
+        int chunkCount = (records.size() + chunkRecords - 1) / chunkRecords;
+        if (chunks.length < chunkCount) {
+            int oldLength = chunks.length;
+            chunks = Arrays.copyOf(chunks, chunkCount);
+            for (int i = oldLength; i < chunkCount; i++) {
+                chunks[i] = new Chunk(config.newChunkStockStats());
+            }
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            Chunk chunk = chunks[i];
+            chunk.reinitialize();
+            chunk.records = records;
+            chunk.from = i * chunkRecords;
+            chunk.to = Math.min(records.size(), chunk.from + chunkRecords);
+            chunk.keepTrades = windowAggregator != null || stockStats.hasQuantiles();
+        }
+        List<Chunk> tasks = Arrays.asList(chunks).subList(0, chunkCount);
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+        // チャンクの順に合算する
+        for (Chunk chunk : tasks) {
+            stockStats.merge(chunk.stockStats);
+            if (chunk.keepTrades) {
+                chunk.replay(windowAggregator, stockStats, replayedTrade);
+            }
+            for (int i = 0; i < chunk.failureCount; i++) {
+                failureHandler.onFailure(records.get(chunk.failedIndexes[i]), chunk.failureCauses[i]);
+            }
+            chunk.clearFailures();
+            chunk.records = null;
+        }
+    }
+
+    /**
+     * @return これまでにデコードした取引の数
+     */
+    long trades() {
+        long total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.reader.trades();
+        }
+        return total;
+    }
+
+    /**
+     * @return これまでにデコードに失敗したレコードまたは取引の数
+     */
+    long parseFailures() {
+        long total = 0;
+        for (Chunk chunk : chunks) {
+            total += chunk.reader.parseFailures();
+        }
+        return total;
+    }
+
+    /**
+     * 連続したレコードの範囲を処理するタスクです。
+     */
+    private static class Chunk extends RecursiveAction implements TradeRecordReader.TradeSink {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final TradeType[] TRADE_TYPES = TradeType.values();
+
+        private final TradeRecordReader reader = new TradeRecordReader();
+        private final StockStats stockStats;
+
+        List<KinesisClientRecord> records;
+        int from;
+        int to;
+        boolean keepTrades;
+
+        // ウィンドウ集計と分位点のスケッチに流し込むデコード済みの取引
+        private int size;
+        private long[] eventTimes = new long[0];
+        private String[] tickerSymbols = new String[0];
+        private byte[] tradeTypes = new byte[0];
+        private double[] prices = new double[0];
+        private long[] quantities = new long[0];
+        private long[] ids = new long[0];
+
+        // 処理に失敗したレコードの位置と例外
+        private int failureCount;
+        private int[] failedIndexes = new int[0];
+        private RuntimeException[] failureCauses = new RuntimeException[0];
+
+        Chunk(StockStats stockStats) {
+            this.stockStats = stockStats;
+        }
+
+        @Override
+        protected void compute() {
+            stockStats.reset();
+            size = 0;
+            clearFailures();
+            for (int i = from; i < to; i++) {
+                try {
+                    if (!reader.read(records.get(i), this)) {
+                        addFailure(i, null);
+                    }
+                } catch (RuntimeException e) {
+                    addFailure(i, e);
+                }
+            }
+        }
+
+        private void addFailure(int index, RuntimeException cause) {
+            if (failureCount == failedIndexes.length) {
+                int capacity = Math.max(4, failureCount * 2);
+                failedIndexes = Arrays.copyOf(failedIndexes, capacity);
+                failureCauses = Arrays.copyOf(failureCauses, capacity);
+            }
+            failedIndexes[failureCount] = index;
+            failureCauses[failureCount] = cause;
+            failureCount++;
+        }
+
+        void clearFailures() {
+            // 例外への参照を残さない
+            Arrays.fill(failureCauses, 0, failureCount, null);
+            failureCount = 0;
+        }
+
+        @Override
+        public void accept(long eventTime, StockTradeView trade) {
+            stockStats.addStockTrade(trade);
+            if (!keepTrades) {
+                return;
+            }
+            if (size == eventTimes.length) {
+                int capacity = Math.max(16, size * 2);
+                eventTimes = Arrays.copyOf(eventTimes, capacity);
+                tickerSymbols = Arrays.copyOf(tickerSymbols, capacity);
+                tradeTypes = Arrays.copyOf(tradeTypes, capacity);
+                prices = Arrays.copyOf(prices, capacity);
+                quantities = Arrays.copyOf(quantities, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+            }
+            eventTimes[size] = eventTime;
+            tickerSymbols[size] = trade.getTickerSymbol();
+            tradeTypes[size] = (byte) trade.getTradeType().ordinal();
+            prices[size] = trade.getPrice();
+            quantities[size] = trade.getQuantity();
+            ids[size] = trade.getId();
+            size++;
+        }
+
+        /**
+         * @param windowAggregator 流し込むウィンドウ集計(集計しない場合はnull)
+         * @param stockStats 分位点のスケッチに追加する統計
+         */
+        void replay(TradeWindowAggregator windowAggregator, StockStats stockStats, StockTradeView trade) {
+            boolean quantiles = stockStats.hasQuantiles();
+            for (int i = 0; i < size; i++) {
+                if (quantiles) {
+                    stockStats.addToSketches(tickerSymbols[i], prices[i], quantities[i]);
+                }
+                if (windowAggregator != null) {
+                    trade.set(tickerSymbols[i], TRADE_TYPES[tradeTypes[i]], prices[i], quantities[i], ids[i]);
+                    windowAggregator.addStockTrade(eventTimes[i], trade);
+                }
+            }
+            // 銘柄への参照を残さない
+            Arrays.fill(tickerSymbols, 0, size, null);
+            size = 0;
+        }
+    }
+
+}
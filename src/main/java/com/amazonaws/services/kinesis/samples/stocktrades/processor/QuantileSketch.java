@@ -0,0 +1,284 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 正の値の分位点を相対誤差の範囲で求めるスケッチです(DDSketchと同じ方式)。
+ *
+ * <p>値は対数の幅が一定のビンに数えます。ビンiには(γ^(i-1), γ^i]の値が入り、
+ * γ = (1 + α) / (1 - α)とすると、ビンの代表値の相対誤差はα以下になります。
+ * ビン数には上限があり、超えた場合は小さい値のビンをまとめるため、メモリ使用量は一定です
+ * (まとめた範囲の分位点は誤差の保証がなくなります)。
+ * 同じ精度のスケッチ同士はビンを足すだけで合算でき、合算しても誤差は変わりません。
+ *
+ * <p>0以下の値はまとめて0として数えます。スレッドセーフではありません。
+ */
+class QuantileSketch {
+
+    // 既定のビン数の上限(α = 0.01で最小値と最大値の比が約5億倍まで)
+    static final int DEFAULT_MAX_BINS = 1024;
+
+    private static final int INITIAL_BINS = 32;
+
+    // これより小さい値は0として数える
+    private static final double MIN_INDEXABLE_VALUE = 1e-9;
+
+    // 対数は仮数の上位ビットごとの表から線形補間で求める(誤差は1e-8程度でビンの幅より十分小さい)
+    private static final int LOG_TABLE_BITS = 12;
+    private static final int LOG_FRACTION_BITS = 52 - LOG_TABLE_BITS;
+    private static final double[] LOG_TABLE = new double[(1 << LOG_TABLE_BITS) + 1];
+    private static final double LN_2 = Math.log(2.0);
+
+    static {
+        for (int i = 0; i < LOG_TABLE.length; i++) {
+            LOG_TABLE[i] = Math.log(1.0 + (double) i / (1 << LOG_TABLE_BITS));
+        }
+    }
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double inverseLogGamma;
+    private final int maxBins;
+
+    // ビンの数(counts[0]がビンoffsetに対応する。未確保の場合はnull)
+    private long[] counts;
+    private int offset;
+    // 値のあるビンの範囲(binnedCountが0の場合は無効)
+    private int minIndex;
+    private int maxIndex;
+
+    private long binnedCount;
+    private long zeroCount;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param relativeAccuracy 分位点の相対誤差(0より大きく1未満)
+     */
+    QuantileSketch(double relativeAccuracy) {
+        this(relativeAccuracy, DEFAULT_MAX_BINS);
+    }
+
+    /**
+     * @param relativeAccuracy 分位点の相対誤差(0より大きく1未満)
+     * @param maxBins ビン数の上限
+     */
+    QuantileSketch(double relativeAccuracy, int maxBins) {
+        if (!(relativeAccuracy > 0.0 && relativeAccuracy < 1.0) || maxBins <= 0) {
+            throw new IllegalArgumentException("relativeAccuracy must be in (0, 1) and maxBins must be positive");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1.0 + relativeAccuracy) / (1.0 - relativeAccuracy);
+        this.inverseLogGamma = 1.0 / Math.log(gamma);
+        this.maxBins = maxBins;
+    }
+
+    /**
+     * 値を追加します。
+     *
+     * @param value 値
+     */
+    void add(double value) {
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        if (value < MIN_INDEXABLE_VALUE) {
+            zeroCount++;
+            return;
+        }
+        double scaled = log(value) * inverseLogGamma;
+        int index = (int) scaled;
+        increment(scaled > index ? index + 1 : index, 1L);
+    }
+
+    /**
+     * 同じ精度の別のスケッチを合算します。
+     *
+     * @param other 合算するスケッチ
+     */
+    void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracies");
+        }
+        if (other.isEmpty()) {
+            return;
+        }
+        zeroCount += other.zeroCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (other.binnedCount > 0) {
+            for (int index = other.minIndex; index <= other.maxIndex; index++) {
+                long count = other.counts[index - other.offset];
+                if (count != 0) {
+                    increment(index, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param quantile 分位(0以上1以下)
+     * @return 分位点の値(値がない場合はNaN)
+     */
+    double quantile(double quantile) {
+        long total = count();
+        if (total == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (Math.max(0.0, Math.min(1.0, quantile)) * (total - 1));
+        if (rank < zeroCount) {
+            return Math.max(min, 0.0);
+        }
+        long cumulative = zeroCount;
+        for (int index = minIndex; index <= maxIndex; index++) {
+            cumulative += counts[index - offset];
+            if (cumulative > rank) {
+                // ビンの範囲の中で相対誤差が最小になる値
+                double value = 2.0 * Math.pow(gamma, index) / (gamma + 1.0);
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return 追加した値の数
+     */
+    long count() {
+        return zeroCount + binnedCount;
+    }
+
+    boolean isEmpty() {
+        return count() == 0;
+    }
+
+    double relativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    /**
+     * スケッチをリセットします。確保済みのメモリは再利用します。
+     */
+    void reset() {
+        if (binnedCount > 0) {
+            Arrays.fill(counts, minIndex - offset, maxIndex - offset + 1, 0L);
+        }
+        binnedCount = 0;
+        zeroCount = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * スケッチをスナップショットに書き込みます。
+     *
+     * @param out 書き込み先
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(zeroCount);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        int bins = 0;
+        for (int index = minIndex; binnedCount > 0 && index <= maxIndex; index++) {
+            if (counts[index - offset] != 0) {
+                bins++;
+            }
+        }
+        out.writeInt(bins);
+        for (int index = minIndex; binnedCount > 0 && index <= maxIndex; index++) {
+            long count = counts[index - offset];
+            if (count != 0) {
+                out.writeInt(index);
+                out.writeLong(count);
+            }
+        }
+    }
+
+    /**
+     * スナップショットからスケッチを復元します。それまでの値は破棄します。
+     * 書き込み時と同じ精度のスケッチで読み込んでください。
+     *
+     * @param in 読み込み元
+     */
+    void readFrom(DataInput in) throws IOException {
+        reset();
+        zeroCount = in.readLong();
+        min = in.readDouble();
+        max = in.readDouble();
+        int bins = in.readInt();
+        for (int i = 0; i < bins; i++) {
+            increment(in.readInt(), in.readLong());
+        }
+    }
+
+    /**
+     * 正の正規化数の自然対数を近似します。値に対して単調増加です。
+     */
+    private static double log(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        int exponent = (int) (bits >>> 52) - 1023;
+        int slot = (int) ((bits >>> LOG_FRACTION_BITS) & ((1 << LOG_TABLE_BITS) - 1));
+        double fraction = (bits & ((1L << LOG_FRACTION_BITS) - 1)) * (1.0 / (1L << LOG_FRACTION_BITS));
+        double low = LOG_TABLE[slot];
+        return exponent * LN_2 + low + (LOG_TABLE[slot + 1] - low) * fraction;
+    }
+
+    private void increment(int index, long count) {
+        if (binnedCount == 0) {
+            ensureCapacity(index, index, 0, -1);
+            minIndex = index;
+            maxIndex = index;
+        } else if (index < minIndex) {
+            // ビン数の上限を超える場合は、範囲内でもっとも小さいビンに数える
+            index = Math.max(index, maxIndex - maxBins + 1);
+            ensureCapacity(index, maxIndex, minIndex, maxIndex);
+            minIndex = index;
+        } else if (index > maxIndex) {
+            // ビン数の上限を超える場合は、小さい値のビンをまとめる
+            int newMinIndex = Math.max(minIndex, index - maxBins + 1);
+            long collapsed = 0;
+            for (int i = minIndex; i < newMinIndex && i <= maxIndex; i++) {
+                collapsed += counts[i - offset];
+                counts[i - offset] = 0;
+            }
+            ensureCapacity(newMinIndex, index, newMinIndex, maxIndex);
+            counts[newMinIndex - offset] += collapsed;
+            minIndex = newMinIndex;
+            maxIndex = index;
+        }
+        counts[index - offset] += count;
+        binnedCount += count;
+    }
+
+    /**
+     * ビン[lowIndex, highIndex]を数えられるように配列を確保し、ビン[liveLow, liveHigh]の値を移します。
+     */
+    private void ensureCapacity(int lowIndex, int highIndex, int liveLow, int liveHigh) {
+        if (counts != null && lowIndex >= offset && highIndex < offset + counts.length) {
+            return;
+        }
+        int range = highIndex - lowIndex + 1;
+        int capacity = Math.min(maxBins, Math.max(range, counts == null ? INITIAL_BINS : counts.length * 2));
+        int newOffset = lowIndex - (capacity - range) / 2;
+        long[] newCounts = counts != null && counts.length == capacity ? counts : new long[capacity];
+        int length = liveHigh - liveLow + 1;
+        if (length > 0) {
+            System.arraycopy(counts, liveLow - offset, newCounts, liveLow - newOffset, length);
+        }
+        if (newCounts == counts) {
+            // 同じ配列の中で移した場合は、移した範囲の外を消去する
+            Arrays.fill(newCounts, 0, Math.max(0, liveLow - newOffset), 0L);
+            Arrays.fill(newCounts, Math.max(0, Math.min(capacity, liveLow - newOffset + Math.max(0, length))),
+                    capacity, 0L);
+        }
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+/**
+ * 直近の一定時間に処理に失敗したレコードの割合を監視するサーキットブレーカーです。
+ *
+ * <p>1つのレコードの失敗はレコードの問題として隔離できますが、多くのレコードが続けて失敗する場合は
+ * 処理側の問題の可能性が高いため、隔離を続けずに処理を止めるべきと判断します。
+ * 割合は直前の区間と現在の区間の値を経過時間で重み付けして求めます(スライディングウィンドウの近似)。
+ * スレッドセーフではありません。
+ */
+class RecordFailureBreaker {
+
+    private final double maxFailureRatio;
+    private final long minRecords;
+    private final long windowMillis;
+
+    private long windowStartMillis;
+    private long records;
+    private long failures;
+    private long previousRecords;
+    private long previousFailures;
+
+    /**
+     * @param maxFailureRatio 許容する失敗の割合(0の場合は1件でも失敗したら止める。1以上の場合は止めない)
+     * @param minRecords 割合を判定する最小のレコード数
+     * @param windowMillis 割合を求める時間
+     * @param nowMillis 現在時刻
+     */
+    RecordFailureBreaker(double maxFailureRatio, long minRecords, long windowMillis, long nowMillis) {
+        if (maxFailureRatio < 0.0 || minRecords < 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("maxFailureRatio and minRecords must not be negative "
+                    + "and windowMillis must be positive");
+        }
+        this.maxFailureRatio = maxFailureRatio;
+        this.minRecords = minRecords;
+        this.windowMillis = windowMillis;
+        this.windowStartMillis = nowMillis;
+    }
+
+    /**
+     * 処理するレコードの数を記録します。レコードを処理する前に呼び出してください。
+     *
+     * @param count 処理するレコードの数
+     * @param nowMillis 現在時刻
+     */
+    void recordsReceived(int count, long nowMillis) {
+        advance(nowMillis);
+        records += count;
+    }
+
+    /**
+     * 処理に失敗したレコードを記録します。
+     *
+     * @param nowMillis 現在時刻
+     * @return 失敗の割合が上限を超え、処理を止めるべき場合はtrue
+     */
+    boolean recordFailed(long nowMillis) {
+        advance(nowMillis);
+        failures++;
+        if (maxFailureRatio <= 0.0) {
+            return true;
+        }
+        if (maxFailureRatio >= 1.0) {
+            return false;
+        }
+        double previousWeight = 1.0 - (double) (nowMillis - windowStartMillis) / windowMillis;
+        double weightedRecords = records + previousRecords * previousWeight;
+        double weightedFailures = failures + previousFailures * previousWeight;
+        return weightedRecords >= minRecords && weightedFailures > weightedRecords * maxFailureRatio;
+    }
+
+    /**
+     * @return 直近の失敗の割合(ログ用)
+     */
+    double failureRatio() {
+        long total = records + previousRecords;
+        return total == 0 ? 0.0 : (double) (failures + previousFailures) / total;
+    }
+
+    private void advance(long nowMillis) {
+        long elapsed = nowMillis - windowStartMillis;
+        if (elapsed < windowMillis) {
+            return;
+        }
+        if (elapsed < windowMillis * 2) {
+            previousRecords = records;
+            previousFailures = failures;
+            windowStartMillis += windowMillis;
+        } else {
+            previousRecords = 0;
+            previousFailures = 0;
+            windowStartMillis = nowMillis;
+        }
+        records = 0;
+        failures = 0;
+    }
+
+}
@@ -0,0 +1,252 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Space-Savingアルゴリズムで、固定のメモリ量のまま取引の多い銘柄を概算で数えるクラスです。
+ *
+ * <p>最大でcapacity個の銘柄の取引数を保持し、満杯のときに新しい銘柄が来た場合は
+ * 取引数が最小の銘柄を置き換えます(新しい銘柄の取引数は最小値+1から始まります)。
+ * 取引数の総数をNとすると、次のことが保証されます(他の集計を合算した場合は、合算元の誤差が加わります)。
+ * <ul>
+ *     <li>報告する取引数は実際の取引数以上で、誤差は最小値(N / capacity以下)を超えない</li>
+ *     <li>実際の取引数がN / capacityを超える銘柄は必ず保持されている</li>
+ * </ul>
+ */
+class SpaceSavingTickerCounter implements TickerCounter {
+
+    private final int capacity;
+    private final int topN;
+
+    // スロットごとの銘柄・取引数
+    private final String[] symbols;
+    private final long[] counts;
+    private int size;
+
+    // 取引数が最小のスロットを先頭に持つヒープと、各スロットのヒープ内の位置
+    private final int[] heap;
+    private final int[] heapPositions;
+
+    // 銘柄からスロットへのハッシュ表(スロット番号+1を格納し、0は空き)
+    private final int[] index;
+    private final int mask;
+
+    // 報告用の上位銘柄のスロット(取引数の多い順)
+    private final int[] top;
+    private int topSize;
+    private boolean topDirty;
+
+    /**
+     * @param capacity 保持する銘柄の最大数
+     * @param topN 報告する上位銘柄の数
+     */
+    SpaceSavingTickerCounter(int capacity, int topN) {
+        if (capacity < topN) {
+            throw new IllegalArgumentException("capacity must not be smaller than topN");
+        }
+        this.capacity = capacity;
+        this.topN = topN;
+        this.symbols = new String[capacity];
+        this.counts = new long[capacity];
+        this.heap = new int[capacity];
+        this.heapPositions = new int[capacity];
+        int indexSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.index = new int[indexSize];
+        this.mask = indexSize - 1;
+        this.top = new int[topN];
+    }
+
+    @Override
+    public void add(String tickerSymbol, long count) {
+        topDirty = true;
+        int slot = find(tickerSymbol);
+        if (slot >= 0) {
+            counts[slot] += count;
+            siftDown(heapPositions[slot]);
+            return;
+        }
+        if (size < capacity) {
+            slot = size++;
+            symbols[slot] = tickerSymbol;
+            counts[slot] = count;
+            heap[slot] = slot;
+            heapPositions[slot] = slot;
+            siftUp(slot);
+        } else {
+            // 取引数が最小の銘柄を置き換える
+            slot = heap[0];
+            remove(symbols[slot]);
+            symbols[slot] = tickerSymbol;
+            counts[slot] += count;
+            siftDown(0);
+        }
+        insert(tickerSymbol, slot);
+    }
+
+    @Override
+    public void forEach(ObjLongConsumer<String> consumer) {
+        for (int slot = 0; slot < size; slot++) {
+            consumer.accept(symbols[slot], counts[slot]);
+        }
+    }
+
+    @Override
+    public long count(String tickerSymbol) {
+        int slot = find(tickerSymbol);
+        if (slot >= 0) {
+            return counts[slot];
+        }
+        // 保持していない銘柄の取引数は最小値を超えない
+        return maxError();
+    }
+
+    @Override
+    public int topSize() {
+        prepareTop();
+        return topSize;
+    }
+
+    @Override
+    public String topSymbol(int rank) {
+        prepareTop();
+        return symbols[top[rank]];
+    }
+
+    @Override
+    public long topCount(int rank) {
+        prepareTop();
+        return counts[top[rank]];
+    }
+
+    @Override
+    public long maxError() {
+        return size < capacity ? 0L : counts[heap[0]];
+    }
+
+    @Override
+    public void reset() {
+        Arrays.fill(symbols, 0, size, null);
+        Arrays.fill(index, 0);
+        size = 0;
+        topSize = 0;
+        topDirty = false;
+    }
+
+    /**
+     * 取引数の多い順に上位N銘柄を選びます。報告時にのみ実行します。
+     */
+    private void prepareTop() {
+        if (!topDirty) {
+            return;
+        }
+        topSize = 0;
+        for (int slot = 0; slot < size; slot++) {
+            long count = counts[slot];
+            if (topSize == topN && counts[top[topSize - 1]] >= count) {
+                continue;
+            }
+            int position = topSize < topN ? topSize++ : topSize - 1;
+            while (position > 0 && counts[top[position - 1]] < count) {
+                top[position] = top[position - 1];
+                position--;
+            }
+            top[position] = slot;
+        }
+        topDirty = false;
+    }
+
+    private void siftUp(int position) {
+        int slot = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (counts[heap[parent]] <= counts[slot]) {
+                break;
+            }
+            move(heap[parent], position);
+            position = parent;
+        }
+        move(slot, position);
+    }
+
+    private void siftDown(int position) {
+        int slot = heap[position];
+        while (true) {
+            int child = position * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[slot] <= counts[heap[child]]) {
+                break;
+            }
+            move(heap[child], position);
+            position = child;
+        }
+        move(slot, position);
+    }
+
+    private void move(int slot, int position) {
+        heap[position] = slot;
+        heapPositions[slot] = position;
+    }
+
+    private int find(String tickerSymbol) {
+        int i = hash(tickerSymbol) & mask;
+        while (index[i] != 0) {
+            int slot = index[i] - 1;
+            String symbol = symbols[slot];
+            if (symbol == tickerSymbol || symbol.equals(tickerSymbol)) {
+                return slot;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(String tickerSymbol, int slot) {
+        int i = hash(tickerSymbol) & mask;
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = slot + 1;
+    }
+
+    /**
+     * ハッシュ表から銘柄を削除し、後続のエントリを詰めます(墓標を使わない線形探索法の削除)。
+     */
+    private void remove(String tickerSymbol) {
+        int i = hash(tickerSymbol) & mask;
+        while (true) {
+            int slot = index[i] - 1;
+            String symbol = symbols[slot];
+            if (symbol == tickerSymbol || symbol.equals(tickerSymbol)) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (index[j] == 0) {
+                break;
+            }
+            int home = hash(symbols[index[j] - 1]) & mask;
+            // homeが(i, j]の範囲にない場合は空いた位置へ移動できる
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = 0;
+    }
+
+    private static int hash(String tickerSymbol) {
+        int hash = tickerSymbol.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * シャードの集計状態のスナップショットを、ローカルのメモリマップトファイルに保存するクラスです。
+ *
+ * <p>スナップショットはチェックポイントのシーケンス番号とともに保存し、
+ * 再起動やリースの移動の後は、チェックポイントと同じシーケンス番号のスナップショットだけを読み込みます。
+ * ファイルはA/Bの2つを交互に上書きするため、書き込み中にプロセスが停止しても直前のスナップショットは残ります。
+ * チェックポイントの記録は非同期のため、記録が完了する前に次のスナップショットを書き込んでも、
+ * 記録中のチェックポイントのスナップショットはもう一方のファイルに残ります。
+ * 各ファイルの形式は次のとおりで、CRC32で書き込みが完了しているかを確認します。
+ *
+ * <pre>
+ * magic(4) version(4) crc32(4) generation(8) subSequenceNumber(8) sequenceLength(4) payloadLength(4)
+ * sequenceNumber(sequenceLength) payload(payloadLength)
+ * </pre>
+ *
+ * <p>書き込んだ内容はOSのページキャッシュに残るため、プロセスが異常終了しても失われませんが、
+ * OSの停止に備えてディスクへの書き込みは強制しません。スレッドセーフではありません。
+ */
+class StateSnapshotStore implements AutoCloseable {
+
+    private static final Log log = LogFactory.getLog(StateSnapshotStore.class);
+
+    private static final int MAGIC = 0x53545353;
+    private static final int VERSION = 5;
+    // crc32より後のヘッダー(CRC32の対象)
+    private static final int CRC_OFFSET = 8;
+    private static final int HEADER_BYTES = CRC_OFFSET + 4 + 8 + 8 + 4 + 4;
+
+    // ファイルを拡張する単位
+    private static final int MAP_ALIGNMENT = 64 * 1024;
+
+    private final Path[] paths;
+    private final FileChannel[] channels = new FileChannel[2];
+    private final MappedByteBuffer[] buffers = new MappedByteBuffer[2];
+    private final long[] generations = new long[2];
+
+    /**
+     * @param directory スナップショットを保存するディレクトリ
+     * @param shardId シャードID
+     */
+    StateSnapshotStore(Path directory, String shardId) throws IOException {
+        Files.createDirectories(directory);
+        this.paths = new Path[] {
+                directory.resolve(shardId + ".a.snapshot"),
+                directory.resolve(shardId + ".b.snapshot")
+        };
+        for (int slot = 0; slot < 2; slot++) {
+            channels[slot] = FileChannel.open(paths[slot],
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channels[slot].size();
+            if (size > 0) {
+                buffers[slot] = channels[slot].map(FileChannel.MapMode.READ_WRITE, 0, size);
+                generations[slot] = isValid(buffers[slot]) ? buffers[slot].getLong(CRC_OFFSET + 4) : 0L;
+            }
+        }
+    }
+
+    /**
+     * 集計状態を書き込みます。古い方のファイルを上書きします。
+     *
+     * @param sequenceNumber 集計状態に含まれる最後のレコードのシーケンス番号
+     * @param subSequenceNumber 集計状態に含まれる最後のレコードのサブシーケンス番号
+     * @param payload 集計状態
+     * @param length 集計状態の長さ
+     */
+    void write(String sequenceNumber, long subSequenceNumber, byte[] payload, int length) throws IOException {
+        int slot = generations[0] <= generations[1] ? 0 : 1;
+        long generation = Math.max(generations[0], generations[1]) + 1;
+        byte[] sequence = sequenceNumber.getBytes(StandardCharsets.US_ASCII);
+        int size = HEADER_BYTES + sequence.length + length;
+        MappedByteBuffer buffer = map(slot, size);
+
+        // 書き込み中のファイルは読み込まれないように、先に世代を無効にする
+        generations[slot] = 0L;
+        buffer.putInt(0, 0);
+        buffer.putLong(CRC_OFFSET + 4, generation);
+        buffer.putLong(CRC_OFFSET + 12, subSequenceNumber);
+        buffer.putInt(CRC_OFFSET + 20, sequence.length);
+        buffer.putInt(CRC_OFFSET + 24, length);
+        buffer.position(HEADER_BYTES);
+        buffer.put(sequence);
+        buffer.put(payload, 0, length);
+        buffer.putInt(CRC_OFFSET, crc(buffer, size));
+        buffer.putInt(4, VERSION);
+        buffer.putInt(0, MAGIC);
+        generations[slot] = generation;
+    }
+
+    /**
+     * 指定したシーケンス番号の集計状態を読み込みます。
+     *
+     * @param sequenceNumber チェックポイントのシーケンス番号
+     * @param subSequenceNumber チェックポイントのサブシーケンス番号
+     * @return 集計状態(該当するスナップショットがない場合はnull)
+     */
+    byte[] read(String sequenceNumber, long subSequenceNumber) {
+        byte[] expected = sequenceNumber.getBytes(StandardCharsets.US_ASCII);
+        int found = -1;
+        for (int slot = 0; slot < 2; slot++) {
+            MappedByteBuffer buffer = buffers[slot];
+            if (generations[slot] == 0L || buffer.getLong(CRC_OFFSET + 12) != subSequenceNumber
+                    || buffer.getInt(CRC_OFFSET + 20) != expected.length) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < expected.length && matches; i++) {
+                matches = buffer.get(HEADER_BYTES + i) == expected[i];
+            }
+            if (matches && (found < 0 || generations[slot] > generations[found])) {
+                found = slot;
+            }
+        }
+        if (found < 0) {
+            return null;
+        }
+        MappedByteBuffer buffer = buffers[found];
+        byte[] payload = new byte[buffer.getInt(CRC_OFFSET + 24)];
+        buffer.position(HEADER_BYTES + expected.length);
+        buffer.get(payload);
+        return payload;
+    }
+
+    /**
+     * スナップショットのファイルを削除します。シャードの処理が完了した場合に呼び出します。
+     */
+    void delete() {
+        close();
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Could not delete snapshot " + path, e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (int slot = 0; slot < 2; slot++) {
+            // マップしたバッファはチャネルを閉じた後も有効で、GCで解放される
+            buffers[slot] = null;
+            generations[slot] = 0L;
+            if (channels[slot] != null) {
+                try {
+                    channels[slot].close();
+                } catch (IOException e) {
+                    log.warn("Could not close snapshot " + paths[slot], e);
+                }
+                channels[slot] = null;
+            }
+        }
+    }
+
+    private MappedByteBuffer map(int slot, int size) throws IOException {
+        MappedByteBuffer buffer = buffers[slot];
+        if (buffer == null || buffer.capacity() < size) {
+            long capacity = Math.max(size, buffer == null ? 0 : (long) buffer.capacity() * 2);
+            capacity = (capacity + MAP_ALIGNMENT - 1) / MAP_ALIGNMENT * MAP_ALIGNMENT;
+            buffer = channels[slot].map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            buffers[slot] = buffer;
+        }
+        return buffer;
+    }
+
+    private static boolean isValid(MappedByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return false;
+        }
+        int sequenceLength = buffer.getInt(CRC_OFFSET + 20);
+        int payloadLength = buffer.getInt(CRC_OFFSET + 24);
+        long size = (long) HEADER_BYTES + sequenceLength + payloadLength;
+        return sequenceLength >= 0 && payloadLength >= 0 && size <= buffer.capacity()
+                && buffer.getInt(CRC_OFFSET) == crc(buffer, (int) size);
+    }
+
+    private static int crc(MappedByteBuffer buffer, int size) {
+        CRC32 crc = new CRC32();
+        ByteBuffer view = buffer.duplicate();
+        view.position(CRC_OFFSET + 4);
+        view.limit(size);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+
+}
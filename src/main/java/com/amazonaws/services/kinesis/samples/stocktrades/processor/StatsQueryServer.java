@@ -0,0 +1,127 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * 取引統計情報のスナップショットをJSONで返すHTTPサーバーです。localhostからの接続だけを受け付けます。
+ *
+ * <ul>
+ * <li>GET /stats: ワーカー全体の直近のレポートと、シャードごとの最新のスナップショット</li>
+ * <li>GET /stats/worker: ワーカー全体の直近のレポート</li>
+ * <li>GET /stats/shards/{シャードID}: シャードの最新のスナップショット</li>
+ * </ul>
+ *
+ * <p>問い合わせは専用のスレッドで処理し、公開済みのスナップショットを参照するだけのため、
+ * レコードの処理には影響しません。
+ */
+public class StatsQueryServer implements AutoCloseable {
+
+    private static final Log LOG = LogFactory.getLog(StatsQueryServer.class);
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final String STATS_PATH = "/stats";
+    private static final String WORKER_PATH = STATS_PATH + "/worker";
+    private static final String SHARDS_PATH = STATS_PATH + "/shards/";
+
+    private final StatsQueryService service;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "stats-query-server");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * サーバーを起動します。
+     *
+     * @param service 返すスナップショット
+     * @param port 待ち受けるポート(0の場合は空いているポート)
+     */
+    public StatsQueryServer(StatsQueryService service, int port) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext(STATS_PATH, this::handle);
+        server.start();
+        LOG.info("Serving stats on http://localhost:" + getPort() + STATS_PATH);
+    }
+
+    /**
+     * @return 待ち受けているポート
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, error("Only GET is supported"));
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            Object body;
+            if (path.equals(STATS_PATH) || path.equals(STATS_PATH + "/")) {
+                Map<String, Object> stats = new LinkedHashMap<>();
+                stats.put("worker", service.getWorker());
+                stats.put("shards", service.getShards());
+                body = stats;
+            } else if (path.equals(WORKER_PATH)) {
+                body = service.getWorker();
+            } else if (path.startsWith(SHARDS_PATH)) {
+                body = service.getShard(path.substring(SHARDS_PATH.length()));
+            } else {
+                body = null;
+            }
+            if (body == null) {
+                send(exchange, 404, error("No stats at " + path));
+                return;
+            }
+            send(exchange, 200, body);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not serve " + exchange.getRequestURI(), e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> error(String message) {
+        return Collections.singletonMap("error", message);
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = JSON.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * サーバーを停止します。
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+}
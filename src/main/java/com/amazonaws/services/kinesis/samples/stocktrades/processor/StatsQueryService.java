@@ -0,0 +1,84 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * レコードプロセッサが公開した取引統計情報のスナップショットを保持するクラスです。
+ *
+ * <p>各レコードプロセッサはシャードごとの{@link AtomicReference}を受け取り、
+ * 新しいスナップショットに置き換えることで公開します。スナップショットは不変のため、
+ * 問い合わせのスレッドは公開と同時に参照してもロックを取らず、レコードの処理を待たせることもありません。
+ */
+public class StatsQueryService {
+
+    // シャードごとの最新のスナップショット
+    private final ConcurrentMap<String, AtomicReference<StatsSnapshot>> shards = new ConcurrentHashMap<>();
+
+    // ワーカー全体の直近のレポートのスナップショット
+    private final AtomicReference<StatsSnapshot> worker = new AtomicReference<>();
+
+    /**
+     * シャードのスナップショットの公開先を登録します。同じシャードの古い公開先は置き換えます。
+     *
+     * @param shardId シャードID
+     * @return スナップショットの公開先
+     */
+    AtomicReference<StatsSnapshot> register(String shardId) {
+        AtomicReference<StatsSnapshot> slot = new AtomicReference<>();
+        shards.put(shardId, slot);
+        return slot;
+    }
+
+    /**
+     * シャードのスナップショットの公開先の登録を解除します。置き換えられた後の場合は何もしません。
+     *
+     * @param shardId シャードID
+     * @param slot 登録時に受け取った公開先
+     */
+    void unregister(String shardId, AtomicReference<StatsSnapshot> slot) {
+        shards.remove(shardId, slot);
+    }
+
+    /**
+     * @param snapshot ワーカー全体のレポートのスナップショット
+     */
+    void publishWorker(StatsSnapshot snapshot) {
+        worker.set(snapshot);
+    }
+
+    /**
+     * @return ワーカー全体の直近のレポートのスナップショット(まだレポートしていない場合はnull)
+     */
+    public StatsSnapshot getWorker() {
+        return worker.get();
+    }
+
+    /**
+     * @return シャードごとの最新のスナップショット(シャードID順)
+     */
+    public SortedMap<String, StatsSnapshot> getShards() {
+        SortedMap<String, StatsSnapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, AtomicReference<StatsSnapshot>> entry : shards.entrySet()) {
+            StatsSnapshot snapshot = entry.getValue().get();
+            if (snapshot != null) {
+                snapshots.put(entry.getKey(), snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * @param shardId シャードID
+     * @return シャードの最新のスナップショット(処理していないシャードの場合はnull)
+     */
+    public StatsSnapshot getShard(String shardId) {
+        AtomicReference<StatsSnapshot> slot = shards.get(shardId);
+        return slot != null ? slot.get() : null;
+    }
+
+}
@@ -0,0 +1,199 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.ObjLongConsumer;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+/**
+ * ある時点の取引統計情報の不変のスナップショットです。
+ * レコードを処理するスレッドが作成して公開し、問い合わせのスレッドはロックを取らずに参照します。
+ * JSONに変換するため、値はgetterで公開します。
+ * 銘柄ごとの取引数は配列のまま受け取り、銘柄順のMapは問い合わせのスレッドで初めて参照したときに作成します。
+ */
+public final class StatsSnapshot {
+
+    private final String source;
+    private final long fromMillis;
+    private final long toMillis;
+    private final boolean approximate;
+    private final Map<TradeType, List<TickerCount>> topStocks;
+    private final Map<TradeType, TickerCounts> tickerCounts;
+    // 銘柄順の取引数(初めて参照したときに作成する)
+    private volatile Map<TradeType, SortedMap<String, Long>> counts;
+    private final Map<TradeType, Long> maxErrors;
+    private final SortedMap<String, TickerQuantiles> quantiles;
+    private final List<WindowResult> windows;
+
+    StatsSnapshot(String source, long fromMillis, long toMillis, boolean approximate,
+                  Map<TradeType, List<TickerCount>> topStocks, Map<TradeType, TickerCounts> tickerCounts,
+                  Map<TradeType, Long> maxErrors, SortedMap<String, TickerQuantiles> quantiles,
+                  List<WindowResult> windows) {
+        this.source = source;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.approximate = approximate;
+        this.topStocks = Collections.unmodifiableMap(new EnumMap<>(topStocks));
+        this.tickerCounts = new EnumMap<>(tickerCounts);
+        this.maxErrors = Collections.unmodifiableMap(new EnumMap<>(maxErrors));
+        this.quantiles = Collections.unmodifiableSortedMap(quantiles);
+        this.windows = Collections.unmodifiableList(windows);
+    }
+
+    /**
+     * @return 統計情報の集計元(シャードIDまたはworker)
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return 集計期間の開始時刻
+     */
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    /**
+     * @return スナップショットを作成した時刻
+     */
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    /**
+     * @return 取引数を概算で数えている場合はtrue
+     */
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * @return 取引タイプごとの上位銘柄(取引数の多い順)
+     */
+    public Map<TradeType, List<TickerCount>> getTopStocks() {
+        return topStocks;
+    }
+
+    /**
+     * @return 取引タイプごとの銘柄ごとの取引数(銘柄順。概算の場合は上限値)
+     */
+    public Map<TradeType, SortedMap<String, Long>> getCounts() {
+        Map<TradeType, SortedMap<String, Long>> result = counts;
+        if (result == null) {
+            // 複数のスレッドが同時に作成しても同じ内容になるため、同期しない
+            Map<TradeType, SortedMap<String, Long>> sorted = new EnumMap<>(TradeType.class);
+            tickerCounts.forEach((tradeType, values) -> sorted.put(tradeType, values.toSortedMap()));
+            result = Collections.unmodifiableMap(sorted);
+            counts = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return 取引タイプごとの取引数の最大誤差
+     */
+    public Map<TradeType, Long> getMaxErrors() {
+        return maxErrors;
+    }
+
+    /**
+     * @return 上位銘柄の価格と数量の分位点(分位点を求めていない場合は空)
+     */
+    public SortedMap<String, TickerQuantiles> getQuantiles() {
+        return quantiles;
+    }
+
+    /**
+     * @return 直近に閉じたウィンドウの集計結果(古い順)
+     */
+    public List<WindowResult> getWindows() {
+        return windows;
+    }
+
+    /**
+     * 銘柄と取引数の組です。
+     */
+    public static final class TickerCount {
+
+        private final String tickerSymbol;
+        private final long count;
+
+        TickerCount(String tickerSymbol, long count) {
+            this.tickerSymbol = tickerSymbol;
+            this.count = count;
+        }
+
+        public String getTickerSymbol() {
+            return tickerSymbol;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /**
+     * 1つの取引タイプの銘柄ごとの取引数を、公開するまで配列に集めるクラスです。
+     */
+    static final class TickerCounts implements ObjLongConsumer<String> {
+
+        private String[] symbols = new String[16];
+        private long[] counts = new long[16];
+        private int size;
+
+        @Override
+        public void accept(String symbol, long count) {
+            if (size == symbols.length) {
+                symbols = Arrays.copyOf(symbols, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            symbols[size] = symbol;
+            counts[size] = count;
+            size++;
+        }
+
+        SortedMap<String, Long> toSortedMap() {
+            SortedMap<String, Long> map = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                map.put(symbols[i], counts[i]);
+            }
+            return Collections.unmodifiableSortedMap(map);
+        }
+    }
+
+    /**
+     * 1銘柄の価格と数量の分位点です。
+     */
+    public static final class TickerQuantiles {
+
+        private final SortedMap<String, Double> price;
+        private final SortedMap<String, Double> quantity;
+
+        TickerQuantiles(SortedMap<String, Double> price, SortedMap<String, Double> quantity) {
+            this.price = Collections.unmodifiableSortedMap(price);
+            this.quantity = Collections.unmodifiableSortedMap(quantity);
+        }
+
+        /**
+         * @return 分位(p50など)ごとの価格
+         */
+        public SortedMap<String, Double> getPrice() {
+            return price;
+        }
+
+        /**
+         * @return 分位(p50など)ごとの数量
+         */
+        public SortedMap<String, Double> getQuantity() {
+            return quantity;
+        }
+    }
+
+}
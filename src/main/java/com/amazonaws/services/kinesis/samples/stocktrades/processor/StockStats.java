@@ -1,30 +1,109 @@
 package com.amazonaws.services.kinesis.samples.stocktrades.processor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumMap;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StatsSnapshot.TickerCount;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StatsSnapshot.TickerQuantiles;
 
 /**
  * 株式取引の統計情報を管理するクラスです。
+ * 通常は銘柄ごとの取引数を正確に数えます({@link ExactTickerCounter})。
+ * 銘柄の種類に上限がない場合は、固定のメモリ量で取引の多い銘柄を概算で数えることもできます
+ * ({@link SpaceSavingTickerCounter})。
+ * 銘柄ごとの価格と数量の分位点を、固定のメモリ量のスケッチで求めることもできます({@link QuantileSketch})。
+ * スレッドセーフではありません。
  */
 public class StockStats {
 
+    private static final int DEFAULT_TOP_N = 5;
+
+    private static final TradeType[] TRADE_TYPES = TradeType.values();
+
     // 取引タイプごとの各銘柄の取引数
-    private EnumMap<TradeType, Map<String, Long>> countsByTradeType;
+    private final TickerCounter[] countersByTradeType = new TickerCounter[TRADE_TYPES.length];
+
+    private final boolean approximate;
+
+    // 合算した概算の統計から引き継いだ誤差
+    private final long[] mergedErrorByTradeType = new long[TRADE_TYPES.length];
+
+    // 報告する分位
+    private static final double[] REPORTED_QUANTILES = {0.5, 0.95, 0.99};
 
-    // 取引タイプごとのもっとも人気のある銘柄
-    private EnumMap<TradeType, String> mostPopularByTradeType;
+    // 分位点の相対誤差(0の場合は分位点を求めない)
+    private final double quantileAccuracy;
+    // 分位点を求める銘柄の最大数
+    private final int quantileMaxTickers;
+
+    // 銘柄ごとの価格と数量のスケッチ(銘柄のIDごと。分位点を求めない場合はnull)
+    // 銘柄の割り当てはリセットのたびにやり直し、スケッチのオブジェクトは再利用する
+    private final TickerRegistry sketchedTickers;
+    private QuantileSketch[] priceSketches;
+    private QuantileSketch[] quantitySketches;
 
     public StockStats() {
-        countsByTradeType = new EnumMap<TradeType, Map<String, Long>>(TradeType.class);
-        for (TradeType tradeType: TradeType.values()) {
-            countsByTradeType.put(tradeType, new HashMap<String, Long>());
-        }
+        this(DEFAULT_TOP_N);
+    }
 
-        mostPopularByTradeType = new EnumMap<TradeType, String>(TradeType.class);
+    /**
+     * 取引数を正確に数える統計を作成します。
+     *
+     * @param topN 取引タイプごとに保持する上位銘柄の数
+     */
+    public StockStats(int topN) {
+        this(topN, 0);
+    }
+
+    /**
+     * @param topN 取引タイプごとに保持する上位銘柄の数
+     * @param approximateCapacity 概算で数える場合に取引タイプごとに保持する銘柄の最大数
+     *                            (0の場合は正確に数える)
+     */
+    public StockStats(int topN, int approximateCapacity) {
+        this(topN, approximateCapacity, 0.0, 0);
+    }
+
+    /**
+     * @param topN 取引タイプごとに保持する上位銘柄の数
+     * @param approximateCapacity 概算で数える場合に取引タイプごとに保持する銘柄の最大数
+     *                            (0の場合は正確に数える)
+     * @param quantileAccuracy 価格と数量の分位点の相対誤差(0の場合は分位点を求めない)
+     * @param quantileMaxTickers 分位点を求める銘柄の最大数(リセットまでに超えた銘柄は分位点を求めない)
+     */
+    public StockStats(int topN, int approximateCapacity, double quantileAccuracy, int quantileMaxTickers) {
+        if (topN <= 0 || approximateCapacity < 0) {
+            throw new IllegalArgumentException("topN must be positive and approximateCapacity must not be negative");
+        }
+        if (quantileAccuracy < 0.0 || quantileAccuracy >= 1.0 || (quantileAccuracy > 0.0 && quantileMaxTickers <= 0)) {
+            throw new IllegalArgumentException(
+                    "quantileAccuracy must be in [0, 1) and quantileMaxTickers must be positive");
+        }
+        this.quantileAccuracy = quantileAccuracy;
+        this.quantileMaxTickers = quantileMaxTickers;
+        this.sketchedTickers = quantileAccuracy > 0.0 ? new TickerRegistry() : null;
+        this.priceSketches = new QuantileSketch[0];
+        this.quantitySketches = new QuantileSketch[0];
+        this.approximate = approximateCapacity > 0;
+        for (TradeType tradeType : TRADE_TYPES) {
+            countersByTradeType[tradeType.ordinal()] = approximate
+                    ? new SpaceSavingTickerCounter(approximateCapacity, topN)
+                    : new ExactTickerCounter(topN);
+        }
     }
 
     /**
@@ -33,36 +112,363 @@ public class StockStats {
      * @param trade 株式取引
      */
     public void addStockTrade(StockTrade trade) {
-        // 取引数を更新
-        TradeType type = trade.getTradeType();
-        Map<String, Long> counts = countsByTradeType.get(type);
-        Long count = counts.get(trade.getTickerSymbol());
-        if (count == null) {
-            count = 0L;
+        countersByTradeType[trade.getTradeType().ordinal()].increment(trade.getTickerSymbol());
+        if (sketchedTickers != null) {
+            addToSketches(trade.getTickerSymbol(), trade.getPrice(), trade.getQuantity());
+        }
+    }
+
+    /**
+     * 取引情報を受け取り、統計を更新します。
+     *
+     * @param trade 株式取引
+     */
+    public void addStockTrade(StockTradeView trade) {
+        countersByTradeType[trade.getTradeType().ordinal()].increment(trade.getTickerSymbol());
+        if (sketchedTickers != null) {
+            addToSketches(trade.getTickerSymbol(), trade.getPrice(), trade.getQuantity());
+        }
+    }
+
+    /**
+     * 取引の価格と数量を分位点のスケッチにのみ追加します。取引数は別に{@link #merge(StockStats)}などで数えます。
+     *
+     * @param tickerSymbol 銘柄
+     * @param price 価格
+     * @param quantity 数量
+     */
+    void addToSketches(String tickerSymbol, double price, long quantity) {
+        int id = sketchId(tickerSymbol);
+        if (id >= 0) {
+            priceSketches[id].add(price);
+            quantitySketches[id].add(quantity);
+        }
+    }
+
+    /**
+     * @return 銘柄のスケッチのID(銘柄数が上限を超えた場合は-1)
+     */
+    private int sketchId(String tickerSymbol) {
+        int id = sketchedTickers.idOf(tickerSymbol);
+        if (id >= 0 || sketchedTickers.size() >= quantileMaxTickers) {
+            return id;
+        }
+        id = sketchedTickers.intern(tickerSymbol);
+        if (id == priceSketches.length) {
+            int capacity = Math.min(quantileMaxTickers, Math.max(16, id * 2));
+            priceSketches = Arrays.copyOf(priceSketches, capacity);
+            quantitySketches = Arrays.copyOf(quantitySketches, capacity);
+        }
+        // リセット前に使っていたスケッチはリセット済みなので、そのまま再利用する
+        if (priceSketches[id] == null) {
+            priceSketches[id] = new QuantileSketch(quantileAccuracy);
+            quantitySketches[id] = new QuantileSketch(quantileAccuracy);
+        }
+        return id;
+    }
+
+    /**
+     * 別の統計を合算します。
+     *
+     * @param other 合算する統計
+     */
+    public void merge(StockStats other) {
+        for (TradeType tradeType : TRADE_TYPES) {
+            int t = tradeType.ordinal();
+            other.countersByTradeType[t].forEach(countersByTradeType[t]::add);
+            mergedErrorByTradeType[t] += other.getMaxError(tradeType);
+        }
+        if (sketchedTickers != null && other.sketchedTickers != null) {
+            for (int otherId = 0; otherId < other.sketchedTickers.size(); otherId++) {
+                if (other.priceSketches[otherId].isEmpty()) {
+                    continue;
+                }
+                int id = sketchId(other.sketchedTickers.symbolOf(otherId));
+                if (id >= 0) {
+                    priceSketches[id].merge(other.priceSketches[otherId]);
+                    quantitySketches[id].merge(other.quantitySketches[otherId]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 価格と数量の分位点を求める場合はtrue
+     */
+    boolean hasQuantiles() {
+        return sketchedTickers != null;
+    }
+
+    /**
+     * 統計をリセットします。確保済みのメモリは再利用します。
+     * 分位点を求める銘柄も選び直し、前の区間に上限まで銘柄が現れていても新しい銘柄の分位点を求めます。
+     */
+    public void reset() {
+        for (TickerCounter counter : countersByTradeType) {
+            counter.reset();
+        }
+        Arrays.fill(mergedErrorByTradeType, 0L);
+        if (sketchedTickers != null) {
+            for (int id = 0; id < sketchedTickers.size(); id++) {
+                priceSketches[id].reset();
+                quantitySketches[id].reset();
+            }
+            sketchedTickers.clear();
+        }
+    }
+
+    /**
+     * 統計をスナップショットに書き込みます。
+     *
+     * @param out 書き込み先
+     */
+    void writeTo(DataOutput out) throws IOException {
+        List<String> symbols = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        for (TradeType tradeType : TRADE_TYPES) {
+            int t = tradeType.ordinal();
+            symbols.clear();
+            counts.clear();
+            countersByTradeType[t].forEach((symbol, count) -> {
+                symbols.add(symbol);
+                counts.add(count);
+            });
+            out.writeLong(mergedErrorByTradeType[t]);
+            out.writeInt(symbols.size());
+            for (int i = 0; i < symbols.size(); i++) {
+                out.writeUTF(symbols.get(i));
+                out.writeLong(counts.get(i));
+            }
+        }
+        out.writeDouble(quantileAccuracy);
+        int sketched = 0;
+        for (int id = 0; sketchedTickers != null && id < sketchedTickers.size(); id++) {
+            if (!priceSketches[id].isEmpty()) {
+                sketched++;
+            }
+        }
+        out.writeInt(sketched);
+        for (int id = 0; sketchedTickers != null && id < sketchedTickers.size(); id++) {
+            if (!priceSketches[id].isEmpty()) {
+                out.writeUTF(sketchedTickers.symbolOf(id));
+                priceSketches[id].writeTo(out);
+                quantitySketches[id].writeTo(out);
+            }
         }
-        counts.put(trade.getTickerSymbol(), ++count);
+    }
 
-        // 人気銘柄を更新
-        String mostPopular = mostPopularByTradeType.get(type);
-        if (mostPopular == null || countsByTradeType.get(type).get(mostPopular) < count) {
-            mostPopularByTradeType.put(type, trade.getTickerSymbol());
+    /**
+     * スナップショットから統計を復元します。それまでの統計は破棄します。
+     * 概算で数える場合、保持する銘柄の最大数が書き込み時以上であれば同じ統計になります。
+     * 分位点の相対誤差が書き込み時と異なる場合、分位点のスケッチは復元しません。
+     *
+     * @param in 読み込み元
+     */
+    void readFrom(DataInput in) throws IOException {
+        reset();
+        for (TradeType tradeType : TRADE_TYPES) {
+            int t = tradeType.ordinal();
+            mergedErrorByTradeType[t] = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                countersByTradeType[t].add(in.readUTF(), in.readLong());
+            }
+        }
+        double savedAccuracy = in.readDouble();
+        int sketched = in.readInt();
+        boolean restore = sketchedTickers != null && savedAccuracy == quantileAccuracy;
+        // 復元しないスケッチも、続くデータを読むために読み込んでから破棄する
+        QuantileSketch discarded = null;
+        for (int i = 0; i < sketched; i++) {
+            String symbol = in.readUTF();
+            int id = restore ? sketchId(symbol) : -1;
+            if (id < 0 && discarded == null) {
+                discarded = new QuantileSketch(savedAccuracy);
+            }
+            (id >= 0 ? priceSketches[id] : discarded).readFrom(in);
+            (id >= 0 ? quantitySketches[id] : discarded).readFrom(in);
         }
     }
 
     public String toString() {
-        return String.format(
+        String report = String.format(
                 "人気銘柄（買い）: %s, %d %n" +
-                "人気銘柄（売り）: %s, %d ",
+                "人気銘柄（売り）: %s, %d %n" +
+                "上位銘柄（買い）: %s %n" +
+                "上位銘柄（売り）: %s ",
                 getMostPopularStock(TradeType.BUY), getMostPopularStockCount(TradeType.BUY),
-                getMostPopularStock(TradeType.SELL), getMostPopularStockCount(TradeType.SELL));
+                getMostPopularStock(TradeType.SELL), getMostPopularStockCount(TradeType.SELL),
+                getTopStocks(TradeType.BUY), getTopStocks(TradeType.SELL));
+        if (approximate) {
+            report += String.format("%n概算の最大誤差（買い/売り）: %d / %d ",
+                    getMaxError(TradeType.BUY), getMaxError(TradeType.SELL));
+        }
+        if (sketchedTickers != null) {
+            report += quantileReport();
+        }
+        return report;
+    }
+
+    /**
+     * 上位銘柄の価格と数量の分位点を報告します。
+     */
+    private String quantileReport() {
+        StringBuilder report = new StringBuilder();
+        for (String ticker : topTickers()) {
+            int id = sketchedTickers.idOf(ticker);
+            if (id < 0 || priceSketches[id].isEmpty()) {
+                continue;
+            }
+            QuantileSketch price = priceSketches[id];
+            QuantileSketch quantity = quantitySketches[id];
+            report.append(String.format("%n  %s 価格 %.2f / %.2f / %.2f, 数量 %.0f / %.0f / %.0f ", ticker,
+                    price.quantile(REPORTED_QUANTILES[0]), price.quantile(REPORTED_QUANTILES[1]),
+                    price.quantile(REPORTED_QUANTILES[2]), quantity.quantile(REPORTED_QUANTILES[0]),
+                    quantity.quantile(REPORTED_QUANTILES[1]), quantity.quantile(REPORTED_QUANTILES[2])));
+        }
+        return report.length() == 0 ? "" : String.format("%n上位銘柄の分位点（p50 / p95 / p99）: ") + report;
     }
 
-    private String getMostPopularStock(TradeType tradeType) {
-        return mostPopularByTradeType.get(tradeType);
+    /**
+     * @param tradeType 取引タイプ
+     * @return もっとも人気のある銘柄(取引がない場合はnull)
+     */
+    public String getMostPopularStock(TradeType tradeType) {
+        TickerCounter counter = countersByTradeType[tradeType.ordinal()];
+        return counter.topSize() == 0 ? null : counter.topSymbol(0);
     }
 
-    private Long getMostPopularStockCount(TradeType tradeType) {
-        String mostPopular = getMostPopularStock(tradeType);
-        return countsByTradeType.get(tradeType).get(mostPopular);
+    /**
+     * @param tradeType 取引タイプ
+     * @return もっとも人気のある銘柄の取引数(取引がない場合はnull)
+     */
+    public Long getMostPopularStockCount(TradeType tradeType) {
+        TickerCounter counter = countersByTradeType[tradeType.ordinal()];
+        return counter.topSize() == 0 ? null : counter.topCount(0);
+    }
+
+    /**
+     * @param tradeType 取引タイプ
+     * @return 上位N銘柄(取引数の多い順)
+     */
+    public List<String> getTopStocks(TradeType tradeType) {
+        TickerCounter counter = countersByTradeType[tradeType.ordinal()];
+        List<String> topStocks = new ArrayList<>(counter.topSize());
+        for (int i = 0; i < counter.topSize(); i++) {
+            topStocks.add(counter.topSymbol(i));
+        }
+        return topStocks;
+    }
+
+    /**
+     * @param tradeType 取引タイプ
+     * @param tickerSymbol 銘柄
+     * @return 銘柄の取引数(概算の場合は上限値)
+     */
+    public long getCount(TradeType tradeType, String tickerSymbol) {
+        return countersByTradeType[tradeType.ordinal()].count(tickerSymbol);
+    }
+
+    /**
+     * @param tradeType 取引タイプ
+     * @return 取引数の最大誤差(正確に数えている場合は0)
+     */
+    public long getMaxError(TradeType tradeType) {
+        int t = tradeType.ordinal();
+        return countersByTradeType[t].maxError() + mergedErrorByTradeType[t];
+    }
+
+    /**
+     * @return 取引タイプごとの上位銘柄を合わせた銘柄(買いの上位銘柄から順に)
+     */
+    private Set<String> topTickers() {
+        Set<String> tickers = new LinkedHashSet<>();
+        for (TradeType tradeType : TRADE_TYPES) {
+            tickers.addAll(getTopStocks(tradeType));
+        }
+        return tickers;
+    }
+
+    /**
+     * 現在の統計の不変のスナップショットを作成します。
+     *
+     * @param source 統計情報の集計元
+     * @param fromMillis 集計期間の開始時刻
+     * @param toMillis スナップショットの作成時刻
+     * @param windows スナップショットに含めるウィンドウの集計結果
+     * @return スナップショット
+     */
+    StatsSnapshot snapshot(String source, long fromMillis, long toMillis, List<WindowResult> windows) {
+        Map<TradeType, List<TickerCount>> topStocks = new EnumMap<>(TradeType.class);
+        Map<TradeType, StatsSnapshot.TickerCounts> counts = new EnumMap<>(TradeType.class);
+        Map<TradeType, Long> maxErrors = new EnumMap<>(TradeType.class);
+        for (TradeType tradeType : TRADE_TYPES) {
+            TickerCounter counter = countersByTradeType[tradeType.ordinal()];
+            List<TickerCount> top = new ArrayList<>(counter.topSize());
+            for (int i = 0; i < counter.topSize(); i++) {
+                top.add(new TickerCount(counter.topSymbol(i), counter.topCount(i)));
+            }
+            // 銘柄順のMapは問い合わせのスレッドで作成するため、ここでは配列に写すだけにする
+            StatsSnapshot.TickerCounts tickerCounts = new StatsSnapshot.TickerCounts();
+            counter.forEach(tickerCounts);
+            topStocks.put(tradeType, Collections.unmodifiableList(top));
+            counts.put(tradeType, tickerCounts);
+            maxErrors.put(tradeType, getMaxError(tradeType));
+        }
+        SortedMap<String, TickerQuantiles> quantiles = new TreeMap<>();
+        for (String ticker : sketchedTickers != null ? topTickers() : Collections.<String>emptySet()) {
+            int id = sketchedTickers.idOf(ticker);
+            if (id >= 0 && !priceSketches[id].isEmpty()) {
+                quantiles.put(ticker, new TickerQuantiles(quantiles(priceSketches[id]),
+                        quantiles(quantitySketches[id])));
+            }
+        }
+        return new StatsSnapshot(source, fromMillis, toMillis, approximate, topStocks, counts, maxErrors,
+                quantiles, windows);
+    }
+
+    private static SortedMap<String, Double> quantiles(QuantileSketch sketch) {
+        SortedMap<String, Double> values = new TreeMap<>();
+        for (double quantile : REPORTED_QUANTILES) {
+            values.put("p" + Math.round(quantile * 100), sketch.quantile(quantile));
+        }
+        return values;
+    }
+
+    /**
+     * @param tickerSymbol 銘柄
+     * @param quantile 分位(0以上1以下)
+     * @return 銘柄の価格の分位点(分位点を求めていない場合や取引がない場合はnull)
+     */
+    public Double getPriceQuantile(String tickerSymbol, double quantile) {
+        return quantile(priceSketches, tickerSymbol, quantile);
+    }
+
+    /**
+     * @param tickerSymbol 銘柄
+     * @param quantile 分位(0以上1以下)
+     * @return 銘柄の数量の分位点(分位点を求めていない場合や取引がない場合はnull)
+     */
+    public Double getQuantityQuantile(String tickerSymbol, double quantile) {
+        return quantile(quantitySketches, tickerSymbol, quantile);
+    }
+
+    private Double quantile(QuantileSketch[] sketches, String tickerSymbol, double quantile) {
+        int id = sketchedTickers != null ? sketchedTickers.idOf(tickerSymbol) : -1;
+        return id < 0 || sketches[id].isEmpty() ? null : sketches[id].quantile(quantile);
+    }
+
+    /**
+     * @return 分位点の相対誤差(分位点を求めていない場合は0)
+     */
+    public double getQuantileAccuracy() {
+        return quantileAccuracy;
+    }
+
+    /**
+     * @return 概算で数えている場合はtrue
+     */
+    public boolean isApproximate() {
+        return approximate;
     }
 }
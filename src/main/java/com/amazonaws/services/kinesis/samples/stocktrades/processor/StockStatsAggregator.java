@@ -0,0 +1,144 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ワーカー内の全てのシャードの取引統計情報を合算するクラスです。
+ * 各レコードプロセッサは自身の統計情報を単独で更新し、一定間隔でこのクラスに合算してからリセットします。
+ * そのためレコードの処理中にシャード間でロックを取り合うことはありません。
+ * 合算した統計情報はワーカー全体のレポートとして一定間隔で表示します。
+ * 各シャードで閉じたウィンドウも、同じ時間帯のものを合算して同じレポートに含めます。
+ * 合算するのはレポートの間隔内に閉じたウィンドウだけで、遅れて閉じたシャードの分は次のレポートに含めます。
+ * 問い合わせを受け付ける場合は、レポートのスナップショットも公開します。
+ */
+public class StockStatsAggregator {
+
+    private final StockStats globalStats;
+    private final long reportIntervalMillis;
+
+    // 前回のレポート以降に統計情報を合算したシャード
+    private final Set<String> shardIds = new HashSet<>();
+
+    // 前回のレポート以降に閉じたウィンドウ(開始時刻ごとに全てのシャードを合算)
+    private final TreeMap<Long, PendingWindow> windows = new TreeMap<>();
+
+    // レポートのスナップショットの公開先(公開しない場合はnull)
+    private final StatsQueryService queryService;
+    private long intervalStartMillis = System.currentTimeMillis();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "stock-stats-aggregator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param globalStats 合算先の統計情報
+     * @param reportIntervalMillis レポート間隔
+     */
+    public StockStatsAggregator(StockStats globalStats, long reportIntervalMillis) {
+        this(globalStats, reportIntervalMillis, null);
+    }
+
+    /**
+     * @param globalStats 合算先の統計情報
+     * @param reportIntervalMillis レポート間隔
+     * @param queryService レポートのスナップショットの公開先(公開しない場合はnull)
+     */
+    public StockStatsAggregator(StockStats globalStats, long reportIntervalMillis, StatsQueryService queryService) {
+        this.globalStats = globalStats;
+        this.reportIntervalMillis = reportIntervalMillis;
+        this.queryService = queryService;
+        scheduler.scheduleAtFixedRate(this::reportAndReset, reportIntervalMillis, reportIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * シャードの統計情報を合算します。合算後に呼び出し元で統計情報をリセットしてください。
+     *
+     * @param shardId シャードID
+     * @param shardStats シャードの統計情報
+     */
+    public synchronized void merge(String shardId, StockStats shardStats) {
+        globalStats.merge(shardStats);
+        shardIds.add(shardId);
+    }
+
+    /**
+     * シャードで閉じたウィンドウを合算します。
+     *
+     * @param shardId シャードID
+     * @param window 閉じたウィンドウ
+     */
+    public synchronized void mergeWindow(String shardId, WindowResult window) {
+        PendingWindow pending = windows.get(window.getStartMillis());
+        if (pending == null) {
+            pending = new PendingWindow(window.getEndMillis());
+            windows.put(window.getStartMillis(), pending);
+        }
+        for (Map.Entry<String, TickerBar> entry : window.getBars().entrySet()) {
+            TickerBar bar = pending.bars.get(entry.getKey());
+            if (bar == null) {
+                bar = new TickerBar();
+                pending.bars.put(entry.getKey(), bar);
+            }
+            bar.merge(entry.getValue());
+        }
+        shardIds.add(shardId);
+    }
+
+    private void reportAndReset() {
+        StringBuilder report = new StringBuilder();
+        synchronized (this) {
+            List<WindowResult> closed = new ArrayList<>(windows.size());
+            for (Map.Entry<Long, PendingWindow> entry : windows.entrySet()) {
+                closed.add(new WindowResult(entry.getKey(), entry.getValue().endMillis, entry.getValue().bars));
+            }
+            report.append("****** Worker (").append(shardIds.size()).append(" shard(s), every ")
+                    .append(TimeUnit.MILLISECONDS.toSeconds(reportIntervalMillis))
+                    .append("s) ******************\n")
+                    .append(globalStats).append('\n');
+            for (WindowResult window : closed) {
+                report.append("------ Window ").append(window).append('\n');
+            }
+            report.append("****************************************************************\n");
+            if (queryService != null) {
+                long now = System.currentTimeMillis();
+                queryService.publishWorker(globalStats.snapshot("worker", intervalStartMillis, now, closed));
+                intervalStartMillis = now;
+            }
+            globalStats.reset();
+            shardIds.clear();
+            windows.clear();
+        }
+        System.out.println(report);
+    }
+
+    /**
+     * 定期的なレポートを停止します。
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * 合算中のウィンドウです。
+     */
+    private static final class PendingWindow {
+        final long endMillis;
+        final TreeMap<String, TickerBar> bars = new TreeMap<>();
+
+        PendingWindow(long endMillis) {
+            this.endMillis = endMillis;
+        }
+    }
+
+}
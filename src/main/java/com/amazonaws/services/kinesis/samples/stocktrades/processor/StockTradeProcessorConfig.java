@@ -0,0 +1,727 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.ShardMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.segment.RecordSegmentWriter;
+
+/**
+ * レコードプロセッサの設定です。
+ * 各項目はシステムプロパティ(例: -Dstocktrades.stats.topN=10)で変更できます。
+ * コードから設定する場合は{@link #builder()}で既定値から必要な項目だけを変更します。
+ */
+public class StockTradeProcessorConfig {
+
+    private static final String PREFIX = "stocktrades.";
+
+    // 取引タイプごとに報告する上位銘柄の数
+    private final int topN;
+
+    // 概算で数える場合に取引タイプごとに保持する銘柄の最大数(0の場合は正確に数える)
+    private final int approximateCapacity;
+
+    // 銘柄ごとの価格と数量の分位点の相対誤差(0の場合は分位点を求めない)
+    private final double quantileAccuracy;
+
+    // 分位点を求める銘柄の最大数
+    private final int quantileMaxTickers;
+
+    // ワーカー全体の取引統計情報のレポート間隔
+    private final long statsReportIntervalMillis;
+
+    // 各シャードの取引統計情報をワーカー全体の統計情報に合算する間隔
+    private final long statsPublishIntervalMillis;
+
+    // ウィンドウ集計のウィンドウ幅(0の場合はウィンドウ集計を行わない)
+    private final long windowSizeMillis;
+
+    // ウィンドウ集計のスライド幅(ウィンドウ幅と同じ場合はタンブリングウィンドウ)
+    private final long windowSlideMillis;
+
+    // ウィンドウ集計で到着順序の入れ替わりを許容する時間
+    private final long windowAllowedLatenessMillis;
+
+    // チェックポイントの最大間隔
+    private final long checkpointIntervalMillis;
+
+    // チェックポイントの最小間隔(スループットが高い場合にDynamoDBへの書き込みを抑える)
+    private final long checkpointMinIntervalMillis;
+
+    // チェックポイントを記録するレコード数(0の場合はレコード数では記録しない)
+    private final long checkpointRecords;
+
+    // チェックポイントを記録するバイト数(0の場合はバイト数では記録しない)
+    private final long checkpointBytes;
+
+    // 並列に処理するバッチの最小レコード数(0の場合は常に1スレッドで処理する)
+    private final int parallelMinBatchRecords;
+
+    // 並列に処理する場合のチャンクあたりのレコード数
+    private final int parallelChunkRecords;
+
+    // シャードごとのメトリクスをJMXで公開するかどうか
+    private final boolean metricsEnabled;
+
+    // 処理時間を計測するレコードの間隔(2のべき乗に切り上げる。0の場合はレコード単位では計測しない)
+    private final int metricsRecordSampleInterval;
+
+    // 集計状態のスナップショットを保存するディレクトリ(空の場合は保存しない)
+    private final String snapshotDir;
+
+    // 重複を検出する取引IDの範囲(0の場合は重複を排除しない)
+    private final long dedupHorizon;
+
+    // 重複を検出するために取引IDを保持するライター数
+    private final int dedupMaxWriters;
+
+    // 統計情報を問い合わせるHTTPサーバーのポート(0の場合は起動しない)
+    private final int queryPort;
+
+    // レコードプロセッサが統計情報のスナップショットを公開する間隔
+    private final long queryPublishIntervalMillis;
+
+    // スナップショットに含める直近のウィンドウの数
+    private final int queryWindows;
+
+    // 処理に失敗したレコードを保存するディレクトリ(空の場合は保存せず、ログに出力して読み飛ばす)
+    private final String deadLetterDir;
+
+    // 処理に失敗したレコードを保存するセグメントファイルの最大サイズ
+    private final long deadLetterSegmentBytes;
+
+    // 処理を止めずに許容する、処理に失敗したレコードの割合(0の場合は1件でも失敗したら処理を止め、1以上の場合は止めない)
+    private final double failureMaxRatio;
+
+    // 失敗の割合を判定する最小のレコード数
+    private final long failureMinRecords;
+
+    // 失敗の割合を求める時間
+    private final long failureWindowMillis;
+
+    // 受け取ったレコードを保存するディレクトリ(空の場合は保存しない)
+    private final String captureDir;
+
+    // 受け取ったレコードを保存するセグメントファイルの最大サイズ
+    private final long captureSegmentBytes;
+
+    private StockTradeProcessorConfig(Builder builder) {
+        this.topN = builder.topN;
+        this.approximateCapacity = builder.approximateCapacity;
+        this.quantileAccuracy = builder.quantileAccuracy;
+        this.quantileMaxTickers = builder.quantileMaxTickers;
+        this.statsReportIntervalMillis = builder.statsReportIntervalMillis;
+        this.statsPublishIntervalMillis = builder.statsPublishIntervalMillis;
+        this.windowSizeMillis = builder.windowSizeMillis;
+        this.windowSlideMillis = builder.windowSlideMillis;
+        this.windowAllowedLatenessMillis = builder.windowAllowedLatenessMillis;
+        this.checkpointIntervalMillis = builder.checkpointIntervalMillis;
+        this.checkpointMinIntervalMillis = builder.checkpointMinIntervalMillis;
+        this.checkpointRecords = builder.checkpointRecords;
+        this.checkpointBytes = builder.checkpointBytes;
+        this.parallelMinBatchRecords = builder.parallelMinBatchRecords;
+        this.parallelChunkRecords = builder.parallelChunkRecords;
+        this.metricsEnabled = builder.metricsEnabled;
+        this.metricsRecordSampleInterval = builder.metricsRecordSampleInterval;
+        this.snapshotDir = builder.snapshotDir;
+        this.dedupHorizon = builder.dedupHorizon;
+        this.dedupMaxWriters = builder.dedupMaxWriters;
+        this.queryPort = builder.queryPort;
+        this.queryPublishIntervalMillis = builder.queryPublishIntervalMillis;
+        this.queryWindows = builder.queryWindows;
+        this.deadLetterDir = builder.deadLetterDir;
+        this.deadLetterSegmentBytes = builder.deadLetterSegmentBytes;
+        this.failureMaxRatio = builder.failureMaxRatio;
+        this.failureMinRecords = builder.failureMinRecords;
+        this.failureWindowMillis = builder.failureWindowMillis;
+        this.captureDir = builder.captureDir;
+        this.captureSegmentBytes = builder.captureSegmentBytes;
+    }
+
+    /**
+     * @return 既定値の設定
+     */
+    public static StockTradeProcessorConfig defaults() {
+        return builder().build();
+    }
+
+    /**
+     * @return システムプロパティから読み込んだ設定
+     */
+    public static StockTradeProcessorConfig fromSystemProperties() {
+        Builder b = builder();
+        b.windowSizeMillis(Long.getLong(PREFIX + "window.sizeMillis", b.windowSizeMillis));
+        // スライド幅を指定しない場合はタンブリングウィンドウ
+        b.windowSlideMillis(Long.getLong(PREFIX + "window.slideMillis", b.windowSizeMillis));
+        return b
+                .topN(Integer.getInteger(PREFIX + "stats.topN", b.topN))
+                .approximateCapacity(Integer.getInteger(PREFIX + "stats.approximateCapacity", b.approximateCapacity))
+                .quantileAccuracy(getDouble(PREFIX + "stats.quantileAccuracy", b.quantileAccuracy))
+                .quantileMaxTickers(Integer.getInteger(PREFIX + "stats.quantileMaxTickers", b.quantileMaxTickers))
+                .statsReportIntervalMillis(Long.getLong(PREFIX + "stats.reportIntervalMillis",
+                        b.statsReportIntervalMillis))
+                .statsPublishIntervalMillis(Long.getLong(PREFIX + "stats.publishIntervalMillis",
+                        b.statsPublishIntervalMillis))
+                .windowAllowedLatenessMillis(Long.getLong(PREFIX + "window.allowedLatenessMillis",
+                        b.windowAllowedLatenessMillis))
+                .checkpointIntervalMillis(Long.getLong(PREFIX + "checkpoint.intervalMillis",
+                        b.checkpointIntervalMillis))
+                .checkpointMinIntervalMillis(Long.getLong(PREFIX + "checkpoint.minIntervalMillis",
+                        b.checkpointMinIntervalMillis))
+                .checkpointRecords(Long.getLong(PREFIX + "checkpoint.records", b.checkpointRecords))
+                .checkpointBytes(Long.getLong(PREFIX + "checkpoint.bytes", b.checkpointBytes))
+                .parallelMinBatchRecords(Integer.getInteger(PREFIX + "parallel.minBatchRecords",
+                        b.parallelMinBatchRecords))
+                .parallelChunkRecords(Integer.getInteger(PREFIX + "parallel.chunkRecords", b.parallelChunkRecords))
+                .metricsEnabled(getBoolean(PREFIX + "metrics.enabled", b.metricsEnabled))
+                .metricsRecordSampleInterval(Integer.getInteger(PREFIX + "metrics.recordSampleInterval",
+                        b.metricsRecordSampleInterval))
+                .snapshotDir(System.getProperty(PREFIX + "snapshot.dir", b.snapshotDir))
+                .dedupHorizon(Long.getLong(PREFIX + "dedup.horizon", b.dedupHorizon))
+                .dedupMaxWriters(Integer.getInteger(PREFIX + "dedup.maxWriters", b.dedupMaxWriters))
+                .queryPort(Integer.getInteger(PREFIX + "query.port", b.queryPort))
+                .queryPublishIntervalMillis(Long.getLong(PREFIX + "query.publishIntervalMillis",
+                        b.queryPublishIntervalMillis))
+                .queryWindows(Integer.getInteger(PREFIX + "query.windows", b.queryWindows))
+                .deadLetterDir(System.getProperty(PREFIX + "deadLetter.dir", b.deadLetterDir))
+                .deadLetterSegmentBytes(Long.getLong(PREFIX + "deadLetter.segmentBytes", b.deadLetterSegmentBytes))
+                .failureMaxRatio(getDouble(PREFIX + "failure.maxRatio", b.failureMaxRatio))
+                .failureMinRecords(Long.getLong(PREFIX + "failure.minRecords", b.failureMinRecords))
+                .failureWindowMillis(Long.getLong(PREFIX + "failure.windowMillis", b.failureWindowMillis))
+                .captureDir(System.getProperty(PREFIX + "capture.dir", b.captureDir))
+                .captureSegmentBytes(Long.getLong(PREFIX + "capture.segmentBytes", b.captureSegmentBytes))
+                .build();
+    }
+
+    /**
+     * @return 既定値から設定を組み立てるビルダー
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return この設定の値から設定を組み立てるビルダー
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.topN = topN;
+        builder.approximateCapacity = approximateCapacity;
+        builder.quantileAccuracy = quantileAccuracy;
+        builder.quantileMaxTickers = quantileMaxTickers;
+        builder.statsReportIntervalMillis = statsReportIntervalMillis;
+        builder.statsPublishIntervalMillis = statsPublishIntervalMillis;
+        builder.windowSizeMillis = windowSizeMillis;
+        builder.windowSlideMillis = windowSlideMillis;
+        builder.windowAllowedLatenessMillis = windowAllowedLatenessMillis;
+        builder.checkpointIntervalMillis = checkpointIntervalMillis;
+        builder.checkpointMinIntervalMillis = checkpointMinIntervalMillis;
+        builder.checkpointRecords = checkpointRecords;
+        builder.checkpointBytes = checkpointBytes;
+        builder.parallelMinBatchRecords = parallelMinBatchRecords;
+        builder.parallelChunkRecords = parallelChunkRecords;
+        builder.metricsEnabled = metricsEnabled;
+        builder.metricsRecordSampleInterval = metricsRecordSampleInterval;
+        builder.snapshotDir = snapshotDir;
+        builder.dedupHorizon = dedupHorizon;
+        builder.dedupMaxWriters = dedupMaxWriters;
+        builder.queryPort = queryPort;
+        builder.queryPublishIntervalMillis = queryPublishIntervalMillis;
+        builder.queryWindows = queryWindows;
+        builder.deadLetterDir = deadLetterDir;
+        builder.deadLetterSegmentBytes = deadLetterSegmentBytes;
+        builder.failureMaxRatio = failureMaxRatio;
+        builder.failureMinRecords = failureMinRecords;
+        builder.failureWindowMillis = failureWindowMillis;
+        builder.captureDir = captureDir;
+        builder.captureSegmentBytes = captureSegmentBytes;
+        return builder;
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static boolean getBoolean(String name, boolean defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    /**
+     * @return 設定に従った取引統計情報
+     */
+    public StockStats newStockStats() {
+        return new StockStats(topN, approximateCapacity, quantileAccuracy, quantileMaxTickers);
+    }
+
+    /**
+     * 並列処理のチャンクの部分統計です。分位点のスケッチは持たず、合算時にシャードの統計のスケッチに追加します。
+     *
+     * @return 設定に従った取引数のみの統計
+     */
+    StockStats newChunkStockStats() {
+        return new StockStats(topN, approximateCapacity);
+    }
+
+    /**
+     * @return 設定に従ったワーカー全体の取引統計情報の合算
+     */
+    public StockStatsAggregator newStockStatsAggregator() {
+        return newStockStatsAggregator(null);
+    }
+
+    /**
+     * @param queryService ワーカー全体のレポートの公開先(公開しない場合はnull)
+     * @return 設定に従ったワーカー全体の取引統計情報の合算
+     */
+    public StockStatsAggregator newStockStatsAggregator(StatsQueryService queryService) {
+        return new StockStatsAggregator(newStockStats(), statsReportIntervalMillis, queryService);
+    }
+
+    /**
+     * @return 設定に従った統計情報のスナップショットの公開先(問い合わせを受け付けない場合はnull)
+     */
+    public StatsQueryService newStatsQueryService() {
+        if (queryPort <= 0) {
+            return null;
+        }
+        return new StatsQueryService();
+    }
+
+    /**
+     * @param queryService 返すスナップショットの公開先(問い合わせを受け付けない場合はnull)
+     * @return 起動した統計情報のHTTPサーバー(問い合わせを受け付けない場合はnull)
+     */
+    public StatsQueryServer newStatsQueryServer(StatsQueryService queryService) throws IOException {
+        if (queryService == null) {
+            return null;
+        }
+        return new StatsQueryServer(queryService, queryPort);
+    }
+
+    /**
+     * @param listener 閉じたウィンドウの集計結果を受け取る処理
+     * @return 設定に従ったウィンドウ集計(ウィンドウ集計を行わない場合はnull)
+     */
+    public TradeWindowAggregator newTradeWindowAggregator(Consumer<WindowResult> listener) {
+        if (windowSizeMillis <= 0) {
+            return null;
+        }
+        return new TradeWindowAggregator(windowSizeMillis, windowSlideMillis, windowAllowedLatenessMillis, listener);
+    }
+
+    /**
+     * @param shardId シャードID
+     * @param metrics チェックポイントの記録時間を記録するメトリクス(記録しない場合はnull)
+     * @param listener チェックポイントを要求する直前に呼び出す処理(呼び出さない場合はnull)
+     * @return 設定に従ったチェックポイントの記録
+     */
+    CheckpointScheduler newCheckpointScheduler(String shardId, ShardMetrics metrics,
+                                               CheckpointScheduler.CheckpointListener listener) {
+        return new CheckpointScheduler(shardId, CheckpointScheduler.sharedExecutor(), checkpointIntervalMillis,
+                checkpointMinIntervalMillis, checkpointRecords, checkpointBytes, metrics, listener);
+    }
+
+    /**
+     * @param shardId シャードID
+     * @return 設定に従った集計状態のスナップショットの保存先(保存しない場合はnull)
+     */
+    StateSnapshotStore newStateSnapshotStore(String shardId) throws IOException {
+        if (snapshotDir.isEmpty()) {
+            return null;
+        }
+        return new StateSnapshotStore(Paths.get(snapshotDir), shardId);
+    }
+
+    /**
+     * @return 設定に従った取引IDの重複排除(重複を排除しない場合はnull)
+     */
+    TradeIdDeduplicator newTradeIdDeduplicator() {
+        if (dedupHorizon <= 0) {
+            return null;
+        }
+        return new TradeIdDeduplicator(dedupHorizon, dedupMaxWriters);
+    }
+
+    /**
+     * @param shardId シャードID
+     * @return 設定に従った処理に失敗したレコードの保存先(保存しない場合はnull)
+     */
+    RecordSegmentWriter newDeadLetterWriter(String shardId) {
+        if (deadLetterDir.isEmpty()) {
+            return null;
+        }
+        return new RecordSegmentWriter(Paths.get(deadLetterDir), shardId, deadLetterSegmentBytes);
+    }
+
+    /**
+     * @param shardId シャードID
+     * @return 設定に従った受け取ったレコードの保存先(保存しない場合はnull)
+     */
+    RecordSegmentWriter newCaptureWriter(String shardId) {
+        if (captureDir.isEmpty()) {
+            return null;
+        }
+        return new RecordSegmentWriter(Paths.get(captureDir), shardId, captureSegmentBytes);
+    }
+
+    /**
+     * @param nowMillis 現在時刻
+     * @return 設定に従った処理に失敗したレコードの割合の監視
+     */
+    RecordFailureBreaker newRecordFailureBreaker(long nowMillis) {
+        return new RecordFailureBreaker(failureMaxRatio, failureMinRecords, failureWindowMillis, nowMillis);
+    }
+
+    /**
+     * @param shardId シャードID
+     * @return 設定に従ったシャードのメトリクス(公開しない場合はnull)
+     */
+    public ShardMetrics newShardMetrics(String shardId) {
+        if (!metricsEnabled) {
+            return null;
+        }
+        return new ShardMetrics(shardId);
+    }
+
+    /**
+     * 重複排除はレコードの順に行う必要があるため、重複を排除する場合は並列に処理しません。
+     *
+     * @return 設定に従ったバッチの並列処理(常に1スレッドで処理する場合はnull)
+     */
+    ParallelBatchProcessor newParallelBatchProcessor() {
+        if (parallelMinBatchRecords <= 0 || dedupHorizon > 0) {
+            return null;
+        }
+        return new ParallelBatchProcessor(this, parallelMinBatchRecords, parallelChunkRecords,
+                ForkJoinPool.commonPool());
+    }
+
+    public int getTopN() {
+        return topN;
+    }
+
+    public int getApproximateCapacity() {
+        return approximateCapacity;
+    }
+
+    public double getQuantileAccuracy() {
+        return quantileAccuracy;
+    }
+
+    public int getQuantileMaxTickers() {
+        return quantileMaxTickers;
+    }
+
+    public long getStatsReportIntervalMillis() {
+        return statsReportIntervalMillis;
+    }
+
+    public long getStatsPublishIntervalMillis() {
+        return statsPublishIntervalMillis;
+    }
+
+    public long getWindowSizeMillis() {
+        return windowSizeMillis;
+    }
+
+    public long getWindowSlideMillis() {
+        return windowSlideMillis;
+    }
+
+    public long getWindowAllowedLatenessMillis() {
+        return windowAllowedLatenessMillis;
+    }
+
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    public long getCheckpointMinIntervalMillis() {
+        return checkpointMinIntervalMillis;
+    }
+
+    public long getCheckpointRecords() {
+        return checkpointRecords;
+    }
+
+    public long getCheckpointBytes() {
+        return checkpointBytes;
+    }
+
+    public int getParallelMinBatchRecords() {
+        return parallelMinBatchRecords;
+    }
+
+    public int getParallelChunkRecords() {
+        return parallelChunkRecords;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public int getMetricsRecordSampleInterval() {
+        return metricsRecordSampleInterval;
+    }
+
+    public String getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    public long getDedupHorizon() {
+        return dedupHorizon;
+    }
+
+    public int getDedupMaxWriters() {
+        return dedupMaxWriters;
+    }
+
+    public int getQueryPort() {
+        return queryPort;
+    }
+
+    public long getQueryPublishIntervalMillis() {
+        return queryPublishIntervalMillis;
+    }
+
+    public int getQueryWindows() {
+        return queryWindows;
+    }
+
+    public String getDeadLetterDir() {
+        return deadLetterDir;
+    }
+
+    public long getDeadLetterSegmentBytes() {
+        return deadLetterSegmentBytes;
+    }
+
+    public double getFailureMaxRatio() {
+        return failureMaxRatio;
+    }
+
+    public long getFailureMinRecords() {
+        return failureMinRecords;
+    }
+
+    public long getFailureWindowMillis() {
+        return failureWindowMillis;
+    }
+
+    public String getCaptureDir() {
+        return captureDir;
+    }
+
+    public long getCaptureSegmentBytes() {
+        return captureSegmentBytes;
+    }
+
+    /**
+     * {@link StockTradeProcessorConfig}のビルダーです。各項目の初期値が既定値です。
+     */
+    public static final class Builder {
+
+        private int topN = 5;
+        private int approximateCapacity = 0;
+        private double quantileAccuracy = 0.01;
+        private int quantileMaxTickers = 1000;
+        private long statsReportIntervalMillis = 60000L;
+        private long statsPublishIntervalMillis = 10000L;
+        private long windowSizeMillis = 60000L;
+        private long windowSlideMillis = 60000L;
+        private long windowAllowedLatenessMillis = 5000L;
+        private long checkpointIntervalMillis = 60000L;
+        private long checkpointMinIntervalMillis = 1000L;
+        private long checkpointRecords = 100000L;
+        private long checkpointBytes = 64L * 1024 * 1024;
+        private int parallelMinBatchRecords = 0;
+        private int parallelChunkRecords = 1000;
+        private boolean metricsEnabled = true;
+        private int metricsRecordSampleInterval = 64;
+        private String snapshotDir = "";
+        private long dedupHorizon = 0L;
+        private int dedupMaxWriters = 16;
+        private int queryPort = 0;
+        private long queryPublishIntervalMillis = 1000L;
+        private int queryWindows = 10;
+        private String deadLetterDir = "";
+        private long deadLetterSegmentBytes = 64L * 1024 * 1024;
+        private double failureMaxRatio = 0.05;
+        private long failureMinRecords = 100L;
+        private long failureWindowMillis = 60000L;
+        private String captureDir = "";
+        private long captureSegmentBytes = 256L * 1024 * 1024;
+
+        private Builder() {
+        }
+
+        public Builder topN(int topN) {
+            this.topN = topN;
+            return this;
+        }
+
+        public Builder approximateCapacity(int approximateCapacity) {
+            this.approximateCapacity = approximateCapacity;
+            return this;
+        }
+
+        public Builder quantileAccuracy(double quantileAccuracy) {
+            this.quantileAccuracy = quantileAccuracy;
+            return this;
+        }
+
+        public Builder quantileMaxTickers(int quantileMaxTickers) {
+            this.quantileMaxTickers = quantileMaxTickers;
+            return this;
+        }
+
+        public Builder statsReportIntervalMillis(long statsReportIntervalMillis) {
+            this.statsReportIntervalMillis = statsReportIntervalMillis;
+            return this;
+        }
+
+        public Builder statsPublishIntervalMillis(long statsPublishIntervalMillis) {
+            this.statsPublishIntervalMillis = statsPublishIntervalMillis;
+            return this;
+        }
+
+        public Builder windowSizeMillis(long windowSizeMillis) {
+            this.windowSizeMillis = windowSizeMillis;
+            return this;
+        }
+
+        public Builder windowSlideMillis(long windowSlideMillis) {
+            this.windowSlideMillis = windowSlideMillis;
+            return this;
+        }
+
+        public Builder windowAllowedLatenessMillis(long windowAllowedLatenessMillis) {
+            this.windowAllowedLatenessMillis = windowAllowedLatenessMillis;
+            return this;
+        }
+
+        public Builder checkpointIntervalMillis(long checkpointIntervalMillis) {
+            this.checkpointIntervalMillis = checkpointIntervalMillis;
+            return this;
+        }
+
+        public Builder checkpointMinIntervalMillis(long checkpointMinIntervalMillis) {
+            this.checkpointMinIntervalMillis = checkpointMinIntervalMillis;
+            return this;
+        }
+
+        public Builder checkpointRecords(long checkpointRecords) {
+            this.checkpointRecords = checkpointRecords;
+            return this;
+        }
+
+        public Builder checkpointBytes(long checkpointBytes) {
+            this.checkpointBytes = checkpointBytes;
+            return this;
+        }
+
+        public Builder parallelMinBatchRecords(int parallelMinBatchRecords) {
+            this.parallelMinBatchRecords = parallelMinBatchRecords;
+            return this;
+        }
+
+        public Builder parallelChunkRecords(int parallelChunkRecords) {
+            this.parallelChunkRecords = parallelChunkRecords;
+            return this;
+        }
+
+        public Builder metricsEnabled(boolean metricsEnabled) {
+            this.metricsEnabled = metricsEnabled;
+            return this;
+        }
+
+        public Builder metricsRecordSampleInterval(int metricsRecordSampleInterval) {
+            this.metricsRecordSampleInterval = metricsRecordSampleInterval;
+            return this;
+        }
+
+        public Builder snapshotDir(String snapshotDir) {
+            this.snapshotDir = snapshotDir;
+            return this;
+        }
+
+        public Builder dedupHorizon(long dedupHorizon) {
+            this.dedupHorizon = dedupHorizon;
+            return this;
+        }
+
+        public Builder dedupMaxWriters(int dedupMaxWriters) {
+            this.dedupMaxWriters = dedupMaxWriters;
+            return this;
+        }
+
+        public Builder queryPort(int queryPort) {
+            this.queryPort = queryPort;
+            return this;
+        }
+
+        public Builder queryPublishIntervalMillis(long queryPublishIntervalMillis) {
+            this.queryPublishIntervalMillis = queryPublishIntervalMillis;
+            return this;
+        }
+
+        public Builder queryWindows(int queryWindows) {
+            this.queryWindows = queryWindows;
+            return this;
+        }
+
+        public Builder deadLetterDir(String deadLetterDir) {
+            this.deadLetterDir = deadLetterDir;
+            return this;
+        }
+
+        public Builder deadLetterSegmentBytes(long deadLetterSegmentBytes) {
+            this.deadLetterSegmentBytes = deadLetterSegmentBytes;
+            return this;
+        }
+
+        public Builder failureMaxRatio(double failureMaxRatio) {
+            this.failureMaxRatio = failureMaxRatio;
+            return this;
+        }
+
+        public Builder failureMinRecords(long failureMinRecords) {
+            this.failureMinRecords = failureMinRecords;
+            return this;
+        }
+
+        public Builder failureWindowMillis(long failureWindowMillis) {
+            this.failureWindowMillis = failureWindowMillis;
+            return this;
+        }
+
+        public Builder captureDir(String captureDir) {
+            this.captureDir = captureDir;
+            return this;
+        }
+
+        public Builder captureSegmentBytes(long captureSegmentBytes) {
+            this.captureSegmentBytes = captureSegmentBytes;
+            return this;
+        }
+
+        /**
+         * @return 設定
+         * @throws IllegalArgumentException レコードの保存先と処理に失敗したレコードの保存先が同じ場合
+         */
+        public StockTradeProcessorConfig build() {
+            // どちらもシャードIDと連番でファイルを作るため、同じディレクトリでは名前が衝突する
+            if (!captureDir.isEmpty() && !deadLetterDir.isEmpty() && Paths.get(captureDir).toAbsolutePath().normalize()
+                    .equals(Paths.get(deadLetterDir).toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("captureDir and deadLetterDir must be different directories: "
+                        + captureDir);
+            }
+            return new StockTradeProcessorConfig(this);
+        }
+    }
+
+}
@@ -1,5 +1,16 @@
 package com.amazonaws.services.kinesis.samples.stocktrades.processor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -14,8 +25,11 @@ import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
 import software.amazon.kinesis.lifecycle.events.ShutdownRequestedInput;
 import software.amazon.kinesis.processor.ShardRecordProcessor;
 
-import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.ShardMetrics;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.segment.RecordSegmentWriter;
 import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
 
 /**
  * ストリームから取得した株式取引のレコードを処理するクラスです。
@@ -27,16 +41,119 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
 
     private String kinesisShardId;
 
-    // レポート間隔
-    private static final long REPORTING_INTERVAL_MILLIS = 60000L;
+    // レポート間隔(ワーカー全体で合算する場合は合算する間隔)
+    private final long reportingIntervalMillis;
     private long nextReportingTimeInMillis;
 
-    // チェックポイント(ストリームデータをどこまで処理したか)記録間隔
-    private static final long CHECKPOINT_INTERVAL_MILLIS = 60000L;
-    private long nextCheckpointTimeInMillis;
+    // チェックポイント(ストリームデータをどこまで処理したか)の記録
+    private final StockTradeProcessorConfig config;
+    private CheckpointScheduler checkpointScheduler;
+
+    // シャードの終了やシャットダウンの前に、非同期のチェックポイントの完了を待つ最大時間
+    private static final long CHECKPOINT_DRAIN_TIMEOUT_MILLIS = 10000L;
 
     // 取引統計情報
-    private StockStats stockStats = new StockStats();
+    private final StockStats stockStats;
+
+    // ワーカー全体の取引統計情報(シャードごとにレポートする場合はnull)
+    private final StockStatsAggregator statsAggregator;
+
+    // レコードの到着時刻に基づくウィンドウ集計(行わない場合はnull)
+    private final TradeWindowAggregator windowAggregator;
+    private final long windowAllowedLatenessMillis;
+
+    // レコードのデコード
+    private final TradeRecordReader reader = new TradeRecordReader();
+    private final TradeRecordReader.TradeSink tradeSink = this::processStockTrade;
+
+    // 再配信された取引の重複排除(行わない場合はnull)
+    private final TradeIdDeduplicator deduplicator;
+
+    // 大きなバッチの並列処理(常に1スレッドで処理する場合はnull)
+    private final ParallelBatchProcessor parallelBatchProcessor;
+
+    // 処理に失敗したレコードの隔離
+    private final RecordFailureBreaker failureBreaker;
+    private final ParallelBatchProcessor.FailureHandler failureHandler = this::quarantine;
+    // 処理に失敗したレコードの保存先(保存しない場合はnull)
+    private RecordSegmentWriter deadLetterWriter;
+    private long quarantinedRecords;
+
+    // 受け取ったレコードの保存先(保存しない場合はnull)
+    private RecordSegmentWriter captureWriter;
+
+    // シャードの処理状況のメトリクス(公開しない場合はnull)
+    private ShardMetrics metrics;
+    // 処理時間を計測するレコードを選ぶマスク(レコード単位で計測しない場合は-1)
+    private final long recordSampleMask;
+    private long recordSequence;
+
+    // 集計状態のスナップショットの保存先(保存しない場合はnull)
+    private StateSnapshotStore snapshotStore;
+    private final SnapshotBuffer snapshotBuffer = new SnapshotBuffer();
+    // 処理済みの最後のレコード
+    private String lastSequenceNumber;
+    private long lastSubSequenceNumber;
+
+    // 統計情報のスナップショットの公開先(公開しない場合はnull)
+    private final StatsQueryService queryService;
+    private AtomicReference<StatsSnapshot> querySlot;
+    private final long queryPublishIntervalMillis;
+    private long nextQueryPublishTimeInMillis;
+    // 直近に閉じたウィンドウ(公開しない場合はnull)
+    private final ArrayDeque<WindowResult> recentWindows;
+    private final int maxRecentWindows;
+    // 統計情報をリセットした時刻
+    private long statsStartTimeInMillis;
+
+    public StockTradeRecordProcessor() {
+        this(StockTradeProcessorConfig.defaults());
+    }
+
+    /**
+     * @param config レコードプロセッサの設定
+     */
+    public StockTradeRecordProcessor(StockTradeProcessorConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * @param config レコードプロセッサの設定
+     * @param statsAggregator ワーカー全体の取引統計情報(シャードごとにレポートする場合はnull)
+     */
+    public StockTradeRecordProcessor(StockTradeProcessorConfig config, StockStatsAggregator statsAggregator) {
+        this(config, statsAggregator, null);
+    }
+
+    /**
+     * @param config レコードプロセッサの設定
+     * @param statsAggregator ワーカー全体の取引統計情報(シャードごとにレポートする場合はnull)
+     * @param queryService 統計情報のスナップショットの公開先(公開しない場合はnull)
+     */
+    public StockTradeRecordProcessor(StockTradeProcessorConfig config, StockStatsAggregator statsAggregator,
+                                     StatsQueryService queryService) {
+        this.config = config;
+        this.stockStats = config.newStockStats();
+        this.statsAggregator = statsAggregator;
+        this.reportingIntervalMillis = statsAggregator != null
+                ? config.getStatsPublishIntervalMillis()
+                : config.getStatsReportIntervalMillis();
+        this.windowAggregator = config.newTradeWindowAggregator(this::reportWindow);
+        this.windowAllowedLatenessMillis = config.getWindowAllowedLatenessMillis();
+        this.queryService = queryService;
+        this.queryPublishIntervalMillis = config.getQueryPublishIntervalMillis();
+        this.maxRecentWindows = config.getQueryWindows();
+        this.recentWindows = queryService != null && windowAggregator != null && maxRecentWindows > 0
+                ? new ArrayDeque<>(maxRecentWindows)
+                : null;
+        this.deduplicator = config.newTradeIdDeduplicator();
+        this.parallelBatchProcessor = config.newParallelBatchProcessor();
+        this.failureBreaker = config.newRecordFailureBreaker(System.currentTimeMillis());
+        int sampleInterval = config.getMetricsRecordSampleInterval();
+        this.recordSampleMask = sampleInterval > 0
+                ? Long.highestOneBit(Math.max(1, (sampleInterval << 1) - 1)) - 1
+                : -1L;
+    }
 
     @Override
     public void initialize(InitializationInput initializationInput) {
@@ -44,77 +161,406 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
         log.info("Initializing record processor for shard: " + kinesisShardId);
         log.info("Initializing @ Sequence: " + initializationInput.extendedSequenceNumber().toString());
 
-        nextReportingTimeInMillis = System.currentTimeMillis() + REPORTING_INTERVAL_MILLIS;
-        nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+        nextReportingTimeInMillis = System.currentTimeMillis() + reportingIntervalMillis;
+        statsStartTimeInMillis = System.currentTimeMillis();
+        if (queryService != null) {
+            querySlot = queryService.register(kinesisShardId);
+        }
+        metrics = config.newShardMetrics(kinesisShardId);
+        if (metrics != null) {
+            metrics.register();
+        }
+        try {
+            snapshotStore = config.newStateSnapshotStore(kinesisShardId);
+        } catch (IOException e) {
+            log.warn("Could not open state snapshot of shard " + kinesisShardId + ", starting without it.", e);
+        }
+        if (snapshotStore != null) {
+            restoreSnapshot(initializationInput.extendedSequenceNumber());
+        }
+        deadLetterWriter = config.newDeadLetterWriter(kinesisShardId);
+        captureWriter = config.newCaptureWriter(kinesisShardId);
+        checkpointScheduler = config.newCheckpointScheduler(kinesisShardId, metrics,
+                snapshotStore != null ? this::writeSnapshot : null);
     }
 
     @Override
     public void processRecords(ProcessRecordsInput processRecordsInput) {
          try {
-            log.info("Processing " + processRecordsInput.records().size() + " record(s)");
-            // 統計情報更新
-            processRecordsInput.records().forEach(r -> processRecord(r));
+            long startNanos = System.nanoTime();
+            List<KinesisClientRecord> records = processRecordsInput.records();
+            if (log.isDebugEnabled()) {
+                log.debug("Processing " + records.size() + " record(s)");
+            }
+            if (captureWriter != null) {
+                capture(records);
+            }
+
+            // 統計情報更新(処理に失敗したレコードは隔離して次のレコードに進む)
+            failureBreaker.recordsReceived(records.size(), System.currentTimeMillis());
+            long quarantinedBefore = quarantinedRecords;
+            boolean parallel = parallelBatchProcessor != null && parallelBatchProcessor.accepts(records.size());
+            if (parallel) {
+                parallelBatchProcessor.process(records, stockStats, windowAggregator, failureHandler);
+            } else {
+                for (KinesisClientRecord record : records) {
+                    boolean parsed;
+                    try {
+                        parsed = readRecord(record);
+                    } catch (RuntimeException e) {
+                        quarantine(record, e);
+                        continue;
+                    }
+                    if (!parsed) {
+                        quarantine(record, null);
+                    }
+                }
+            }
+            long byteCount = 0;
+            for (KinesisClientRecord record : records) {
+                checkpointScheduler.recordProcessed(record);
+                byteCount += record.data().remaining();
+            }
+            if (!records.isEmpty()) {
+                KinesisClientRecord last = records.get(records.size() - 1);
+                lastSequenceNumber = last.sequenceNumber();
+                lastSubSequenceNumber = last.subSequenceNumber();
+            }
+
+            // シャードの最新位置までの遅れが分かれば、取引が届かなくてもウィンドウを閉じる
+            if (windowAggregator != null && processRecordsInput.millisBehindLatest() != null) {
+                windowAggregator.advanceWatermark(System.currentTimeMillis()
+                        - processRecordsInput.millisBehindLatest() - windowAllowedLatenessMillis);
+            }
 
             // レポートの表示とリセット
             if (System.currentTimeMillis() > nextReportingTimeInMillis) {
                 reportStats();
                 resetStats();
-                nextReportingTimeInMillis = System.currentTimeMillis() + REPORTING_INTERVAL_MILLIS;
+                nextReportingTimeInMillis = System.currentTimeMillis() + reportingIntervalMillis;
             }
 
-            // チェックポイント記録
-            if (System.currentTimeMillis() > nextCheckpointTimeInMillis) {
-                checkpoint(processRecordsInput.checkpointer());
-                nextCheckpointTimeInMillis = System.currentTimeMillis() + CHECKPOINT_INTERVAL_MILLIS;
+            // 統計情報のスナップショットの公開
+            if (querySlot != null && System.currentTimeMillis() >= nextQueryPublishTimeInMillis) {
+                publishSnapshot();
+                nextQueryPublishTimeInMillis = System.currentTimeMillis() + queryPublishIntervalMillis;
+            }
+
+            // チェックポイント記録(処理済みの最後のレコードまで、別スレッドで記録する)
+            checkpointScheduler.maybeCheckpoint(processRecordsInput.checkpointer());
+
+            if (metrics != null) {
+                metrics.recordBatch(records.size(), byteCount, System.nanoTime() - startNanos,
+                        processRecordsInput.millisBehindLatest());
+                metrics.updateTradeCounts(trades(), parseFailures(),
+                        deduplicator != null ? deduplicator.duplicates() : 0L,
+                        deduplicator != null ? deduplicator.sequenceResets() : 0L);
+                if (quarantinedRecords != quarantinedBefore) {
+                    metrics.updateQuarantinedRecords(quarantinedRecords);
+                }
             }
         } catch (Throwable t) {
-            log.error("Caught throwable while processing records. Aborting.");
+            log.error("Caught throwable while processing records. Aborting.", t);
             Runtime.getRuntime().halt(1);
         }
 
     }
 
+    /**
+     * 受け取ったレコードをそのまま保存します。保存できない場合は、以降の保存をやめて処理を続けます。
+     */
+    private void capture(List<KinesisClientRecord> records) {
+        try {
+            for (KinesisClientRecord record : records) {
+                captureWriter.append(record, null);
+            }
+        } catch (IOException e) {
+            log.warn("Could not capture records of shard " + kinesisShardId + ", disabling capture.", e);
+            closeCaptureWriter();
+            captureWriter = null;
+        }
+    }
+
+    /**
+     * @return レコードに含まれる全ての取引をデコードできた場合はtrue
+     */
+    private boolean readRecord(KinesisClientRecord record) {
+        if (metrics == null || recordSampleMask < 0 || (recordSequence++ & recordSampleMask) != 0) {
+            return reader.read(record, tradeSink);
+        }
+        long startNanos = System.nanoTime();
+        boolean parsed = reader.read(record, tradeSink);
+        metrics.recordRecordLatency(System.nanoTime() - startNanos);
+        return parsed;
+    }
+
+    /**
+     * 処理に失敗したレコードを保存して、処理を続けます。
+     * デコードできなかったレコードはデータの問題のため、失敗の割合には数えません。
+     * 例外で失敗したレコードと保存できなかったレコードの割合が上限を超えた場合は、
+     * 処理側の問題とみなして処理を止めます。
+     *
+     * @param record 処理に失敗したレコード
+     * @param cause 処理中に発生した例外(デコードできなかった場合はnull)
+     */
+    private void quarantine(KinesisClientRecord record, RuntimeException cause) {
+        quarantinedRecords++;
+        Exception failure = cause;
+        if (cause != null) {
+            log.warn("Quarantining record that failed to process. Shard: " + kinesisShardId
+                    + ", Sequence: " + record.sequenceNumber() + "/" + record.subSequenceNumber(), cause);
+        }
+        if (deadLetterWriter != null) {
+            try {
+                deadLetterWriter.append(record, cause != null ? cause.toString() : "Unable to parse trade");
+            } catch (IOException e) {
+                log.warn("Could not write dead-letter record of shard " + kinesisShardId + ", skipping it. Sequence: "
+                        + record.sequenceNumber() + "/" + record.subSequenceNumber(), e);
+                failure = e;
+            }
+        }
+        if (failure != null && failureBreaker.recordFailed(System.currentTimeMillis())) {
+            log.error(String.format("%.1f%% of recent records in shard %s failed to process. Aborting.",
+                    failureBreaker.failureRatio() * 100, kinesisShardId), failure);
+            Runtime.getRuntime().halt(1);
+        }
+    }
+
+    private long trades() {
+        return reader.trades() + (parallelBatchProcessor != null ? parallelBatchProcessor.trades() : 0L);
+    }
+
+    private long parseFailures() {
+        return reader.parseFailures()
+                + (parallelBatchProcessor != null ? parallelBatchProcessor.parseFailures() : 0L);
+    }
+
     private void reportStats() {
+        if (statsAggregator != null) {
+            statsAggregator.merge(kinesisShardId, stockStats);
+            return;
+        }
         System.out.println("****** Shard " + kinesisShardId + " ******************************\n" +
                 stockStats + "\n" +
                 "****************************************************************\n");
     }
 
+    private void reportWindow(WindowResult window) {
+        if (recentWindows != null) {
+            if (recentWindows.size() == maxRecentWindows) {
+                recentWindows.removeFirst();
+            }
+            recentWindows.addLast(window);
+        }
+        if (statsAggregator != null) {
+            statsAggregator.mergeWindow(kinesisShardId, window);
+            return;
+        }
+        System.out.println("****** Shard " + kinesisShardId + " Window ***********************\n" +
+                window + "\n" +
+                "****************************************************************\n");
+    }
+
     private void resetStats() {
-        stockStats = new StockStats();
+        stockStats.reset();
+        statsStartTimeInMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * 現在の統計情報の不変のスナップショットを公開します。
+     */
+    private void publishSnapshot() {
+        List<WindowResult> windows = recentWindows != null
+                ? new ArrayList<>(recentWindows)
+                : Collections.emptyList();
+        querySlot.set(stockStats.snapshot(kinesisShardId, statsStartTimeInMillis, System.currentTimeMillis(),
+                windows));
     }
 
-    private void processRecord(KinesisClientRecord record) {
-        byte[] arr = new byte[record.data().remaining()];
-        record.data().get(arr);
-        StockTrade trade = StockTrade.fromJsonAsBytes(arr);
-        if (trade == null) {
-            log.warn("Skipping record. Unable to parse record into StockTrade. Partition Key: " + record.partitionKey());
+    private void processStockTrade(long eventTime, StockTradeView trade) {
+        if (deduplicator != null && !deduplicator.firstSeen(trade.getId())) {
             return;
         }
         stockStats.addStockTrade(trade);
+        if (windowAggregator != null) {
+            windowAggregator.addStockTrade(eventTime, trade);
+        }
+    }
+
+    /**
+     * チェックポイントと同じ位置の集計状態をスナップショットに保存します。
+     * ワーカー全体で合算する場合、取引統計はレポートの間隔ごとに合算先へ移して消去するため保存しません
+     * (保存すると、合算済みの件数を復元後にもう一度合算してしまうため)。
+     */
+    private void writeSnapshot(String sequenceNumber, long subSequenceNumber) {
+        try {
+            snapshotBuffer.reset();
+            DataOutputStream out = new DataOutputStream(snapshotBuffer);
+            out.writeBoolean(statsAggregator == null);
+            if (statsAggregator == null) {
+                stockStats.writeTo(out);
+            }
+            out.writeBoolean(deduplicator != null);
+            if (deduplicator != null) {
+                deduplicator.writeTo(out);
+            }
+            // ウィンドウ集計は設定が異なると残りを読み込まないため、最後に書き込む
+            out.writeBoolean(windowAggregator != null);
+            if (windowAggregator != null) {
+                windowAggregator.writeTo(out);
+            }
+            out.flush();
+            snapshotStore.write(sequenceNumber, subSequenceNumber, snapshotBuffer.array(), snapshotBuffer.size());
+        } catch (IOException e) {
+            log.warn("Could not write state snapshot of shard " + kinesisShardId + ".", e);
+        }
+    }
+
+    /**
+     * チェックポイントと同じ位置のスナップショットがあれば、集計状態を復元します。
+     */
+    private void restoreSnapshot(ExtendedSequenceNumber checkpoint) {
+        if (checkpoint == null || checkpoint.sequenceNumber() == null) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        byte[] payload = snapshotStore.read(checkpoint.sequenceNumber(), checkpoint.subSequenceNumber());
+        if (payload == null) {
+            log.info("No state snapshot of shard " + kinesisShardId + " matches " + checkpoint + ", starting cold.");
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            boolean statsRestored = false;
+            if (in.readBoolean()) {
+                // ワーカー全体で合算する場合は取引統計を復元せず、後ろを読むために読み飛ばす
+                StockStats target = statsAggregator == null ? stockStats : config.newChunkStockStats();
+                target.readFrom(in);
+                statsRestored = statsAggregator == null;
+            }
+            boolean dedupRestored = false;
+            if (in.readBoolean()) {
+                // 重複排除を行わない場合も、後ろのウィンドウ集計を読むために読み飛ばす
+                TradeIdDeduplicator target = deduplicator != null ? deduplicator : new TradeIdDeduplicator(1, 1);
+                dedupRestored = target.readFrom(in) && deduplicator != null;
+            }
+            boolean windowRestored = false;
+            if (in.readBoolean() && windowAggregator != null) {
+                windowRestored = windowAggregator.readFrom(in);
+            }
+            log.info("Restored state snapshot of shard " + kinesisShardId + " at " + checkpoint
+                    + (statsRestored ? " with" : " without") + " stats,"
+                    + (windowRestored ? " with" : " without") + " windows and"
+                    + (dedupRestored ? " with" : " without") + " trade ids in "
+                    + (System.nanoTime() - startNanos) / 1000000 + "ms.");
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not restore state snapshot of shard " + kinesisShardId + ", starting cold.", e);
+            resetStats();
+        }
+    }
+
+    private void closeSnapshotStore() {
+        if (snapshotStore != null) {
+            snapshotStore.close();
+        }
+    }
+
+    private void closeDeadLetterWriter() {
+        if (deadLetterWriter == null) {
+            return;
+        }
+        try {
+            deadLetterWriter.close();
+        } catch (IOException e) {
+            log.warn("Could not close dead-letter segment of shard " + kinesisShardId, e);
+        }
+    }
+
+    private void closeCaptureWriter() {
+        if (captureWriter == null) {
+            return;
+        }
+        try {
+            captureWriter.close();
+        } catch (IOException e) {
+            log.warn("Could not close capture segment of shard " + kinesisShardId, e);
+        }
     }
 
     @Override
     public void leaseLost(LeaseLostInput leaseLostInput) {
         log.info("Lost lease, so terminating.");
+        // リースを失った後のチェックポイントは失敗するため、記録待ちのものは破棄する
+        drainCheckpoints();
+        unregisterMetrics();
+        unregisterQuery();
+        closeSnapshotStore();
+        closeDeadLetterWriter();
+        closeCaptureWriter();
     }
 
     @Override
     public void shardEnded(ShardEndedInput shardEndedInput) {
         try {
             log.info("Reached shard end checkpointing.");
+            reportStats();
+            resetStats();
+            drainCheckpoints();
             shardEndedInput.checkpointer().checkpoint();
         } catch (ShutdownException | InvalidStateException e) {
             log.error("Exception while checkpointing at shard end. Giving up.", e);
+        } finally {
+            unregisterMetrics();
+            unregisterQuery();
+            closeDeadLetterWriter();
+            closeCaptureWriter();
+            // 終了したシャードは再び処理されないため、スナップショットは不要
+            if (snapshotStore != null) {
+                snapshotStore.delete();
+            }
         }
     }
 
     @Override
     public void shutdownRequested(ShutdownRequestedInput shutdownRequestedInput) {
         log.info("Scheduler is shutting down, checkpointing.");
+        drainCheckpoints();
+        if (snapshotStore != null && lastSequenceNumber != null) {
+            // 集計状態は次にシャードを処理するワーカーに引き継ぐため、レポートせずに保存する
+            writeSnapshot(lastSequenceNumber, lastSubSequenceNumber);
+        } else {
+            reportStats();
+            resetStats();
+        }
         checkpoint(shutdownRequestedInput.checkpointer());
+        unregisterMetrics();
+        unregisterQuery();
+        closeSnapshotStore();
+        closeDeadLetterWriter();
+        closeCaptureWriter();
+    }
+
+    private void unregisterMetrics() {
+        if (metrics != null) {
+            metrics.unregister();
+        }
+    }
+
+    private void unregisterQuery() {
+        if (querySlot != null) {
+            queryService.unregister(kinesisShardId, querySlot);
+        }
+    }
 
+    private void drainCheckpoints() {
+        if (checkpointScheduler == null) {
+            return;
+        }
+        try {
+            checkpointScheduler.cancel(CHECKPOINT_DRAIN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void checkpoint(RecordProcessorCheckpointer checkpointer) {
@@ -130,4 +576,13 @@ public class StockTradeRecordProcessor implements ShardRecordProcessor {
         }
     }
 
+    /**
+     * スナップショットの書き込み用のバッファです。確保済みの配列を再利用します。
+     */
+    private static class SnapshotBuffer extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
 }
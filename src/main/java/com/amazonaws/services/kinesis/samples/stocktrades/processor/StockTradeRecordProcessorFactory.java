@@ -8,9 +8,38 @@ import software.amazon.kinesis.processor.ShardRecordProcessorFactory;
  *
  */
 public class StockTradeRecordProcessorFactory implements ShardRecordProcessorFactory {
+
+    private final StockTradeProcessorConfig config;
+
+    // 全てのレコードプロセッサで共有するワーカー全体の取引統計情報
+    private final StockStatsAggregator statsAggregator;
+
+    // 全てのレコードプロセッサが統計情報のスナップショットを公開する先(公開しない場合はnull)
+    private final StatsQueryService queryService;
+
+    public StockTradeRecordProcessorFactory() {
+        this(StockTradeProcessorConfig.fromSystemProperties());
+    }
+
+    /**
+     * @param config レコードプロセッサの設定
+     */
+    public StockTradeRecordProcessorFactory(StockTradeProcessorConfig config) {
+        this.config = config;
+        this.queryService = config.newStatsQueryService();
+        this.statsAggregator = config.newStockStatsAggregator(queryService);
+    }
+
+    /**
+     * @return 統計情報のスナップショットの公開先(問い合わせを受け付けない場合はnull)
+     */
+    public StatsQueryService getQueryService() {
+        return queryService;
+    }
+
     @Override
     public ShardRecordProcessor shardRecordProcessor() {
-        return new StockTradeRecordProcessor();
+        return new StockTradeRecordProcessor(config, statsAggregator, queryService);
     }
 
 }
@@ -58,7 +58,10 @@ public class StockTradesProcessor {
         KinesisAsyncClient kinesisClient = KinesisClientUtil.createKinesisAsyncClient(KinesisAsyncClient.builder().region(region));
         DynamoDbAsyncClient dynamoClient = DynamoDbAsyncClient.builder().region(region).build();
         CloudWatchAsyncClient cloudWatchClient = CloudWatchAsyncClient.builder().region(region).build();
-        StockTradeRecordProcessorFactory shardRecordProcessor = new StockTradeRecordProcessorFactory();
+        StockTradeProcessorConfig config = StockTradeProcessorConfig.fromSystemProperties();
+        StockTradeRecordProcessorFactory shardRecordProcessor = new StockTradeRecordProcessorFactory(config);
+        // 統計情報をlocalhostのHTTPで問い合わせられるようにする(stocktrades.query.portを指定した場合)
+        StatsQueryServer queryServer = config.newStatsQueryServer(shardRecordProcessor.getQueryService());
         ConfigsBuilder configsBuilder = new ConfigsBuilder(streamName, applicationName, kinesisClient, dynamoClient, cloudWatchClient, UUID.randomUUID().toString(), shardRecordProcessor);
 
         Scheduler scheduler = new Scheduler(
@@ -77,6 +80,9 @@ public class StockTradesProcessor {
             LOG.error("Caught throwable while processing data.", t);
             exitCode = 1;
         }
+        if (queryServer != null) {
+            queryServer.close();
+        }
         System.exit(exitCode);
 
     }
@@ -0,0 +1,159 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * ウィンドウ内の1銘柄の取引を集計したクラスです(件数・出来高・四本値・VWAP)。
+ */
+public class TickerBar {
+
+    private long count;
+    private long volume;
+    // 価格×株数の合計(VWAPの計算用)
+    private double notional;
+
+    private double open;
+    private long openTime;
+    private double high;
+    private double low;
+    private double close;
+    private long closeTime;
+
+    /**
+     * 取引を追加します。同じ時刻の取引は、先に受け取ったものを始値、後に受け取ったものを終値とします。
+     *
+     * @param eventTime 取引の時刻
+     * @param price 株価
+     * @param quantity 株数
+     */
+    void add(long eventTime, double price, long quantity) {
+        if (count == 0) {
+            open = high = low = close = price;
+            openTime = closeTime = eventTime;
+        } else {
+            if (eventTime < openTime) {
+                open = price;
+                openTime = eventTime;
+            }
+            if (eventTime >= closeTime) {
+                close = price;
+                closeTime = eventTime;
+            }
+            high = Math.max(high, price);
+            low = Math.min(low, price);
+        }
+        count++;
+        volume += quantity;
+        notional += price * quantity;
+    }
+
+    /**
+     * 別の集計を合算します。thisより後の時間帯の集計を渡すことを想定しています。
+     *
+     * @param other 合算する集計
+     */
+    void merge(TickerBar other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            copyFrom(other);
+            return;
+        }
+        if (other.openTime < openTime) {
+            open = other.open;
+            openTime = other.openTime;
+        }
+        if (other.closeTime >= closeTime) {
+            close = other.close;
+            closeTime = other.closeTime;
+        }
+        high = Math.max(high, other.high);
+        low = Math.min(low, other.low);
+        count += other.count;
+        volume += other.volume;
+        notional += other.notional;
+    }
+
+    void copyFrom(TickerBar other) {
+        count = other.count;
+        volume = other.volume;
+        notional = other.notional;
+        open = other.open;
+        openTime = other.openTime;
+        high = other.high;
+        low = other.low;
+        close = other.close;
+        closeTime = other.closeTime;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(count);
+        out.writeLong(volume);
+        out.writeDouble(notional);
+        out.writeDouble(open);
+        out.writeLong(openTime);
+        out.writeDouble(high);
+        out.writeDouble(low);
+        out.writeDouble(close);
+        out.writeLong(closeTime);
+    }
+
+    void readFrom(DataInput in) throws IOException {
+        count = in.readLong();
+        volume = in.readLong();
+        notional = in.readDouble();
+        open = in.readDouble();
+        openTime = in.readLong();
+        high = in.readDouble();
+        low = in.readDouble();
+        close = in.readDouble();
+        closeTime = in.readLong();
+    }
+
+    void clear() {
+        count = 0L;
+        volume = 0L;
+        notional = 0.0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public double getOpen() {
+        return open;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getClose() {
+        return close;
+    }
+
+    /**
+     * @return 出来高加重平均価格(出来高が0の場合は0)
+     */
+    public double getVwap() {
+        return volume == 0 ? 0.0 : notional / volume;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("件数 %d, 出来高 %d, 始値 %.02f, 高値 %.02f, 安値 %.02f, 終値 %.02f, VWAP %.02f",
+                count, volume, open, high, low, close, getVwap());
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * 1つの取引タイプについて、銘柄ごとの取引数を数えるインターフェースです。
+ */
+interface TickerCounter {
+
+    /**
+     * 銘柄の取引数を1増やします。
+     *
+     * @param tickerSymbol 銘柄
+     */
+    default void increment(String tickerSymbol) {
+        add(tickerSymbol, 1L);
+    }
+
+    /**
+     * 銘柄の取引数を増やします。
+     *
+     * @param tickerSymbol 銘柄
+     * @param count 増やす取引数(正の値)
+     */
+    void add(String tickerSymbol, long count);
+
+    /**
+     * 保持している全ての銘柄の取引数を受け取ります。
+     *
+     * @param consumer 銘柄と取引数を受け取る処理
+     */
+    void forEach(ObjLongConsumer<String> consumer);
+
+    /**
+     * @param tickerSymbol 銘柄
+     * @return 銘柄の取引数(概算の場合は上限値)
+     */
+    long count(String tickerSymbol);
+
+    /**
+     * @return 報告できる上位銘柄の数
+     */
+    int topSize();
+
+    /**
+     * @param rank 順位(0が最上位)
+     * @return 銘柄
+     */
+    String topSymbol(int rank);
+
+    /**
+     * @param rank 順位(0が最上位)
+     * @return 銘柄の取引数(概算の場合は上限値)
+     */
+    long topCount(int rank);
+
+    /**
+     * @return 取引数の最大誤差(正確に数えている場合は0)
+     */
+    long maxError();
+
+    /**
+     * 取引数をリセットします。確保済みのメモリは再利用します。
+     */
+    void reset();
+
+}
@@ -0,0 +1,121 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.util.Arrays;
+
+/**
+ * 銘柄を0から始まる連番のIDに対応付けるクラスです。
+ * オープンアドレス法のハッシュ表で管理し、検索時にオブジェクトを生成しません。
+ * 銘柄は個別には削除できず、{@link #clear()}で全て削除します。スレッドセーフではありません。
+ */
+class TickerRegistry {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // ハッシュ表(空きスロットはnull)
+    private String[] keys = new String[INITIAL_CAPACITY * 2];
+    private int[] ids = new int[INITIAL_CAPACITY * 2];
+
+    // IDごとの銘柄
+    private String[] symbols = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * 銘柄のIDを返します。未登録の場合は新しいIDを割り当てます。
+     *
+     * @param tickerSymbol 銘柄
+     * @return 銘柄のID
+     */
+    int intern(String tickerSymbol) {
+        int mask = keys.length - 1;
+        int index = mix(tickerSymbol.hashCode()) & mask;
+        while (true) {
+            String key = keys[index];
+            if (key == null) {
+                break;
+            }
+            if (key == tickerSymbol || key.equals(tickerSymbol)) {
+                return ids[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        int id = size++;
+        if (id == symbols.length) {
+            symbols = Arrays.copyOf(symbols, symbols.length * 2);
+        }
+        symbols[id] = tickerSymbol;
+        keys[index] = tickerSymbol;
+        ids[index] = id;
+        // 負荷率を1/2以下に保つ
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return id;
+    }
+
+    /**
+     * 登録済みの銘柄のIDを返します。
+     *
+     * @param tickerSymbol 銘柄
+     * @return 銘柄のID(未登録の場合は-1)
+     */
+    int idOf(String tickerSymbol) {
+        int mask = keys.length - 1;
+        int index = mix(tickerSymbol.hashCode()) & mask;
+        while (true) {
+            String key = keys[index];
+            if (key == null) {
+                return -1;
+            }
+            if (key == tickerSymbol || key.equals(tickerSymbol)) {
+                return ids[index];
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @param id 銘柄のID
+     * @return 銘柄
+     */
+    String symbolOf(int id) {
+        return symbols[id];
+    }
+
+    /**
+     * @return 登録済みの銘柄数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 全ての銘柄を削除します。以降は再び0からIDを割り当てます。確保済みのハッシュ表は再利用します。
+     */
+    void clear() {
+        Arrays.fill(keys, null);
+        Arrays.fill(symbols, 0, size, null);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        String[] newKeys = new String[capacity];
+        int[] newIds = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int index = mix(symbols[id].hashCode()) & mask;
+            while (newKeys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            newKeys[index] = symbols[id];
+            newIds[index] = id;
+        }
+        keys = newKeys;
+        ids = newIds;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
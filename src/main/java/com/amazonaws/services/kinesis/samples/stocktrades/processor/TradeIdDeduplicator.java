@@ -0,0 +1,214 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TradeIds;
+
+/**
+ * 直近の取引IDの範囲をビットマップで保持し、同じ取引IDの再配信を検出するクラスです。
+ *
+ * <p>取引IDを{@link TradeIds}に従ってライターIDと連番に分け、ライターごとに、
+ * これまでに受け取った最大の連番からhorizon個前までの連番を受け取ったかどうかを1ビットで記録します。
+ * ビットマップは連番を添字とするリングバッファで、最大の連番が進んだ分だけ古い範囲を消去して再利用するため、
+ * メモリ使用量はライターあたりhorizon / 8バイトで一定です。1件あたりの処理はO(1)です(消去は進んだ連番の数に対して償却O(1))。
+ * 保持するライター数を超えた場合は、最も長く取引を受け取っていないライターのビットマップを破棄します。
+ *
+ * <p>連番が範囲より前に戻った場合は、ライターが同じライターIDのまま再起動して連番をやり直したとみなし、
+ * そのライターのビットマップを作り直して取引を受け付けます。この場合は重複とは別に数えます。
+ * スレッドセーフではありません。
+ */
+class TradeIdDeduplicator {
+
+    private static final Log LOG = LogFactory.getLog(TradeIdDeduplicator.class);
+
+    private static final int WORD_BITS = 64;
+
+    private final long horizon;
+    private final long mask;
+    private final int maxWriters;
+
+    // ライターごとのビットマップ(取引を受け取った順)
+    private final LinkedHashMap<Long, WriterWindow> windows;
+
+    // 直前の取引のライター(連続する取引はほとんど同じライターのため、検索を省く)
+    private long lastWriterId = -1L;
+    private WriterWindow lastWindow;
+
+    private long duplicates;
+    private long sequenceResets;
+
+    /**
+     * @param horizon 重複を検出する連番の範囲(64以上の2のべき乗に切り上げます)
+     * @param maxWriters ビットマップを保持するライター数
+     */
+    TradeIdDeduplicator(long horizon, int maxWriters) {
+        if (horizon <= 0 || horizon > (1L << 34)) {
+            throw new IllegalArgumentException("horizon must be between 1 and 2^34");
+        }
+        if (maxWriters <= 0) {
+            throw new IllegalArgumentException("maxWriters must be positive");
+        }
+        long bits = Math.max(WORD_BITS, Long.highestOneBit(horizon - 1) << 1);
+        this.horizon = bits;
+        this.mask = bits - 1;
+        this.maxWriters = maxWriters;
+        this.windows = new LinkedHashMap<Long, WriterWindow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, WriterWindow> eldest) {
+                return size() > TradeIdDeduplicator.this.maxWriters;
+            }
+        };
+    }
+
+    /**
+     * 取引IDを記録します。
+     *
+     * @param id 取引ID
+     * @return 初めて受け取った場合はtrue、重複の場合はfalse
+     */
+    boolean firstSeen(long id) {
+        long writerId = TradeIds.writerOf(id);
+        long sequence = TradeIds.sequenceOf(id);
+        WriterWindow window = lastWindow;
+        if (writerId != lastWriterId) {
+            window = windows.get(writerId);
+            if (window == null) {
+                window = new WriterWindow(new long[(int) (horizon / WORD_BITS)]);
+                windows.put(writerId, window);
+            }
+            lastWriterId = writerId;
+            lastWindow = window;
+        }
+
+        if (window.highestSequence == Long.MIN_VALUE || sequence > window.highestSequence) {
+            advanceTo(window, sequence);
+        } else if (window.highestSequence - sequence >= horizon) {
+            sequenceResets++;
+            LOG.warn("Trade id sequence of writer " + writerId + " went back from " + window.highestSequence
+                    + " to " + sequence + ", assuming the writer restarted with the same id");
+            Arrays.fill(window.words, 0L);
+            window.highestSequence = sequence;
+        }
+        long bit = sequence & mask;
+        int word = (int) (bit >>> 6);
+        long flag = 1L << bit;
+        if ((window.words[word] & flag) != 0) {
+            duplicates++;
+            return false;
+        }
+        window.words[word] |= flag;
+        return true;
+    }
+
+    /**
+     * 最大の連番を進め、範囲から外れた連番のビットを消去します。
+     */
+    private void advanceTo(WriterWindow window, long sequence) {
+        long highest = window.highestSequence;
+        if (highest == Long.MIN_VALUE || sequence - highest >= horizon) {
+            Arrays.fill(window.words, 0L);
+            window.highestSequence = sequence;
+            return;
+        }
+        // (highest, sequence]のビットを消去する(範囲に残っていた古い連番の記録)
+        long[] words = window.words;
+        for (long next = highest + 1; next <= sequence; ) {
+            long bit = next & mask;
+            int word = (int) (bit >>> 6);
+            int offset = (int) (bit & (WORD_BITS - 1));
+            long count = Math.min(WORD_BITS - offset, sequence - next + 1);
+            long clear = count == WORD_BITS ? -1L : ((1L << count) - 1) << offset;
+            words[word] &= ~clear;
+            next += count;
+        }
+        window.highestSequence = sequence;
+    }
+
+    /**
+     * @return 重複として検出した取引の数
+     */
+    long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return ライターの連番が範囲より前に戻った(ライターIDを再利用して連番をやり直した)回数
+     */
+    long sequenceResets() {
+        return sequenceResets;
+    }
+
+    /**
+     * ビットマップをスナップショットに書き込みます。
+     *
+     * @param out 書き込み先
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(horizon);
+        out.writeInt(windows.size());
+        // 受け取った順に書き込み、読み込み後も同じ順でライターを破棄する
+        for (Map.Entry<Long, WriterWindow> entry : windows.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue().highestSequence);
+            for (long word : entry.getValue().words) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    /**
+     * スナップショットからビットマップを復元します。範囲が書き込み時と異なる場合は読み込んだ内容を破棄します。
+     *
+     * @param in 読み込み元
+     * @return 復元した場合はtrue
+     */
+    boolean readFrom(DataInput in) throws IOException {
+        long savedHorizon = in.readLong();
+        int writers = in.readInt();
+        boolean matches = savedHorizon == horizon;
+        if (matches) {
+            windows.clear();
+            lastWriterId = -1L;
+            lastWindow = null;
+        }
+        for (int i = 0; i < writers; i++) {
+            long writerId = in.readLong();
+            long highestSequence = in.readLong();
+            long[] words = new long[matches ? (int) (savedHorizon / WORD_BITS) : 0];
+            for (long j = 0; j < savedHorizon / WORD_BITS; j++) {
+                long word = in.readLong();
+                if (matches) {
+                    words[(int) j] = word;
+                }
+            }
+            if (matches) {
+                WriterWindow window = new WriterWindow(words);
+                window.highestSequence = highestSequence;
+                windows.put(writerId, window);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * 1ライターのビットマップです。
+     */
+    private static final class WriterWindow {
+        final long[] words;
+        // これまでに受け取った最大の連番(まだ受け取っていない場合はLong.MIN_VALUE)
+        long highestSequence = Long.MIN_VALUE;
+
+        WriterWindow(long[] words) {
+            this.words = words;
+        }
+    }
+
+}
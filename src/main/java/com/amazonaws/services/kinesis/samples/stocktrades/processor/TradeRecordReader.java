@@ -0,0 +1,145 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.AggregatedRecord;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeDecoder;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * レコードを株式取引にデコードするクラスです。
+ * 集約レコードは展開し、デコードできない取引はログに出力して読み飛ばします。
+ * 集約レコードの取引は全てをデコードできた場合にだけ渡すため、レコード単位で隔離して再処理しても二重に数えません。
+ * レコードごとにオブジェクトを生成しないよう、デコーダと取引の値を使い回します。
+ * スレッドセーフではありません。
+ */
+class TradeRecordReader {
+
+    private static final Log log = LogFactory.getLog(TradeRecordReader.class);
+
+    /**
+     * デコードした取引を受け取る処理です。
+     * 取引の値は次の取引で上書きされるため、呼び出しの中でのみ参照してください。
+     */
+    interface TradeSink {
+        void accept(long eventTime, StockTradeView trade);
+    }
+
+    private final StockTradeDecoder decoder = new StockTradeDecoder();
+    private final StockTradeView trade = new StockTradeView();
+    private final AggregatedRecord.RecordHandler aggregatedRecordHandler = this::readStockTrade;
+
+    private KinesisClientRecord currentRecord;
+    private long currentEventTime;
+    private TradeSink currentSink;
+
+    // 展開中の集約レコードのデコード済みの取引(全てデコードできるまで保持する)
+    private boolean buffering;
+    private int pendingCount;
+    private String[] pendingTickers = new String[0];
+    private TradeType[] pendingTypes = new TradeType[0];
+    private double[] pendingPrices = new double[0];
+    private long[] pendingQuantities = new long[0];
+    private long[] pendingIds = new long[0];
+
+    // デコードした取引の数とデコードに失敗した数
+    private long trades;
+    private long parseFailures;
+
+    /**
+     * レコードに含まれる取引をデコードします。
+     *
+     * @param record レコード
+     * @param sink デコードした取引を受け取る処理
+     * @return レコードに含まれる全ての取引をデコードできた場合はtrue
+     */
+    boolean read(KinesisClientRecord record, TradeSink sink) {
+        long failuresBefore = parseFailures;
+        ByteBuffer data = record.data();
+        currentRecord = record;
+        currentSink = sink;
+        currentEventTime = record.approximateArrivalTimestamp() != null
+                ? record.approximateArrivalTimestamp().toEpochMilli()
+                : System.currentTimeMillis();
+        if (!AggregatedRecord.isAggregated(data)) {
+            readStockTrade(data, data.position(), data.remaining());
+            return parseFailures == failuresBefore;
+        }
+        // 集約レコードは展開して全ての取引をデコードしてから処理
+        pendingCount = 0;
+        buffering = true;
+        try {
+            AggregatedRecord.forEach(data, aggregatedRecordHandler);
+        } catch (IllegalArgumentException e) {
+            parseFailures++;
+            log.warn("Skipping record. Unable to unpack aggregated record. Partition Key: " + record.partitionKey(), e);
+        } finally {
+            buffering = false;
+        }
+        if (parseFailures != failuresBefore) {
+            // デコードできた取引も渡さず、レコード全体を失敗とする
+            return false;
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            trade.set(pendingTickers[i], pendingTypes[i], pendingPrices[i], pendingQuantities[i], pendingIds[i]);
+            trades++;
+            sink.accept(currentEventTime, trade);
+        }
+        return true;
+    }
+
+    private void readStockTrade(ByteBuffer data, int offset, int length) {
+        try {
+            decoder.decode(data, offset, length, trade);
+        } catch (IllegalArgumentException e) {
+            parseFailures++;
+            log.warn("Skipping record. Unable to parse record into StockTrade. Partition Key: "
+                    + currentRecord.partitionKey(), e);
+            return;
+        }
+        if (buffering) {
+            addPending();
+            return;
+        }
+        trades++;
+        currentSink.accept(currentEventTime, trade);
+    }
+
+    private void addPending() {
+        if (pendingCount == pendingIds.length) {
+            int capacity = Math.max(16, pendingCount * 2);
+            pendingTickers = Arrays.copyOf(pendingTickers, capacity);
+            pendingTypes = Arrays.copyOf(pendingTypes, capacity);
+            pendingPrices = Arrays.copyOf(pendingPrices, capacity);
+            pendingQuantities = Arrays.copyOf(pendingQuantities, capacity);
+            pendingIds = Arrays.copyOf(pendingIds, capacity);
+        }
+        pendingTickers[pendingCount] = trade.getTickerSymbol();
+        pendingTypes[pendingCount] = trade.getTradeType();
+        pendingPrices[pendingCount] = trade.getPrice();
+        pendingQuantities[pendingCount] = trade.getQuantity();
+        pendingIds[pendingCount] = trade.getId();
+        pendingCount++;
+    }
+
+    /**
+     * @return これまでにデコードした取引の数
+     */
+    long trades() {
+        return trades;
+    }
+
+    /**
+     * @return これまでにデコードに失敗したレコードまたは取引の数
+     */
+    long parseFailures() {
+        return parseFailures;
+    }
+
+}
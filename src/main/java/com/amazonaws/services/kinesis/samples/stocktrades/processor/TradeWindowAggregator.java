@@ -0,0 +1,271 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+
+/**
+ * レコードの到着時刻(イベント時刻)を基準に、銘柄ごとの取引をウィンドウ単位で集計するクラスです。
+ * タンブリングウィンドウ(幅とスライドが同じ)とスライディングウィンドウに対応します。
+ *
+ * <p>取引はスライド幅ごとの区間(ペイン)に集計し、ウィンドウを閉じるときに含まれるペインを合算します。
+ * これまでに受け取った最大のイベント時刻から許容遅延を引いた時刻をウォーターマークとし、
+ * 終了時刻がウォーターマーク以前のウィンドウを閉じて通知します。
+ * どのウィンドウからも参照されなくなったペインは解放して再利用するため、
+ * 保持するペインの数は(ウィンドウ幅 + 許容遅延) / スライド幅程度に収まります。
+ * 閉じたウィンドウにしか含まれない時刻の取引は遅延データとして破棄します。
+ * スレッドセーフではありません。
+ */
+public class TradeWindowAggregator {
+
+    private final long sizeMillis;
+    private final long slideMillis;
+    private final long allowedLatenessMillis;
+    private final Consumer<WindowResult> listener;
+
+    // ペイン番号(イベント時刻 / スライド幅)をインデックスとするリングバッファ
+    private final Pane[] panes;
+    private final int mask;
+
+    // 解放したTickerBarの再利用
+    private final ArrayDeque<TickerBar> freeBars = new ArrayDeque<>();
+
+    private long maxEventTime = Long.MIN_VALUE;
+    private long watermark = Long.MIN_VALUE;
+    // 次に閉じるウィンドウの開始時刻(最初の取引を受け取るまではLong.MIN_VALUE)
+    private long nextWindowStart = Long.MIN_VALUE;
+    private long lateTrades;
+
+    /**
+     * @param sizeMillis ウィンドウ幅
+     * @param slideMillis スライド幅(ウィンドウ幅を割り切れる値。ウィンドウ幅と同じ場合はタンブリングウィンドウ)
+     * @param allowedLatenessMillis 到着順序の入れ替わりを許容する時間
+     * @param listener 閉じたウィンドウの集計結果を受け取る処理
+     */
+    public TradeWindowAggregator(long sizeMillis, long slideMillis, long allowedLatenessMillis,
+                                 Consumer<WindowResult> listener) {
+        if (sizeMillis <= 0 || slideMillis <= 0 || sizeMillis % slideMillis != 0 || allowedLatenessMillis < 0) {
+            throw new IllegalArgumentException("sizeMillis must be a positive multiple of slideMillis");
+        }
+        this.sizeMillis = sizeMillis;
+        this.slideMillis = slideMillis;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.listener = listener;
+
+        long livePanes = (sizeMillis + allowedLatenessMillis) / slideMillis + 2;
+        int capacity = Integer.highestOneBit((int) Math.min(livePanes, 1 << 20) - 1) << 1;
+        this.panes = new Pane[capacity];
+        for (int i = 0; i < capacity; i++) {
+            panes[i] = new Pane();
+        }
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 取引を追加します。
+     *
+     * @param eventTime 取引のイベント時刻
+     * @param trade 株式取引
+     * @return 集計した場合はtrue、遅延データとして破棄した場合はfalse
+     */
+    public boolean addStockTrade(long eventTime, StockTradeView trade) {
+        if (nextWindowStart == Long.MIN_VALUE) {
+            // 最初の取引より許容遅延だけ前の時刻を含むもっとも古いウィンドウから開始する
+            long earliest = eventTime - allowedLatenessMillis;
+            nextWindowStart = Math.floorDiv(earliest, slideMillis) * slideMillis - sizeMillis + slideMillis;
+        }
+        if (eventTime > maxEventTime) {
+            maxEventTime = eventTime;
+            advanceWatermark(eventTime - allowedLatenessMillis);
+        }
+
+        long paneNumber = Math.floorDiv(eventTime, slideMillis);
+        if (paneNumber * slideMillis < nextWindowStart) {
+            lateTrades++;
+            return false;
+        }
+        // ペインの数は上限内に収まるため、同じ位置に別の使用中のペインが残っていることはない
+        Pane pane = panes[(int) (paneNumber & mask)];
+        pane.number = paneNumber;
+        TickerBar bar = pane.bars.get(trade.getTickerSymbol());
+        if (bar == null) {
+            bar = freeBars.isEmpty() ? new TickerBar() : freeBars.pop();
+            pane.bars.put(trade.getTickerSymbol(), bar);
+        }
+        bar.add(eventTime, trade.getPrice(), trade.getQuantity());
+        return true;
+    }
+
+    /**
+     * ウォーターマークを進め、終了時刻がウォーターマーク以前のウィンドウを閉じます。
+     * 取引が届かない間も、シャードの最新位置に追いついていることが分かればウィンドウを閉じるために使います。
+     *
+     * @param newWatermark 新しいウォーターマーク(現在の値より小さい場合は無視します)
+     */
+    public void advanceWatermark(long newWatermark) {
+        if (newWatermark <= watermark) {
+            return;
+        }
+        watermark = newWatermark;
+        if (nextWindowStart == Long.MIN_VALUE) {
+            return;
+        }
+        while (nextWindowStart <= watermark - sizeMillis) {
+            emitWindow(nextWindowStart);
+            // 閉じたウィンドウの先頭のペインはもう参照されない
+            releasePane(Math.floorDiv(nextWindowStart, slideMillis));
+            nextWindowStart += slideMillis;
+            if (isEmptyFrom(nextWindowStart)) {
+                // 取引のない期間はまとめて読み飛ばす
+                long skipTo = Math.floorDiv(watermark - sizeMillis, slideMillis) * slideMillis + slideMillis;
+                nextWindowStart = Math.max(nextWindowStart, skipTo);
+            }
+        }
+    }
+
+    private void emitWindow(long start) {
+        TreeMap<String, TickerBar> bars = new TreeMap<>();
+        long first = Math.floorDiv(start, slideMillis);
+        long last = first + sizeMillis / slideMillis;
+        for (long paneNumber = first; paneNumber < last; paneNumber++) {
+            Pane pane = panes[(int) (paneNumber & mask)];
+            if (pane.number != paneNumber) {
+                continue;
+            }
+            for (Map.Entry<String, TickerBar> entry : pane.bars.entrySet()) {
+                TickerBar bar = bars.get(entry.getKey());
+                if (bar == null) {
+                    bar = new TickerBar();
+                    bars.put(entry.getKey(), bar);
+                }
+                bar.merge(entry.getValue());
+            }
+        }
+        if (!bars.isEmpty()) {
+            listener.accept(new WindowResult(start, start + sizeMillis, bars));
+        }
+    }
+
+    private void releasePane(long paneNumber) {
+        Pane pane = panes[(int) (paneNumber & mask)];
+        if (pane.number != paneNumber) {
+            return;
+        }
+        for (TickerBar bar : pane.bars.values()) {
+            bar.clear();
+            freeBars.push(bar);
+        }
+        pane.bars.clear();
+        pane.number = Long.MIN_VALUE;
+    }
+
+    private boolean isEmptyFrom(long start) {
+        long first = Math.floorDiv(start, slideMillis);
+        long last = Math.floorDiv(maxEventTime, slideMillis);
+        for (long paneNumber = first; paneNumber <= last && paneNumber - first <= mask; paneNumber++) {
+            if (panes[(int) (paneNumber & mask)].number == paneNumber) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 集計中のペインとウォーターマークをスナップショットに書き込みます。
+     *
+     * @param out 書き込み先
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeLong(sizeMillis);
+        out.writeLong(slideMillis);
+        out.writeLong(allowedLatenessMillis);
+        out.writeLong(maxEventTime);
+        out.writeLong(watermark);
+        out.writeLong(nextWindowStart);
+        out.writeLong(lateTrades);
+        int livePanes = 0;
+        for (Pane pane : panes) {
+            if (pane.number != Long.MIN_VALUE) {
+                livePanes++;
+            }
+        }
+        out.writeInt(livePanes);
+        for (Pane pane : panes) {
+            if (pane.number == Long.MIN_VALUE) {
+                continue;
+            }
+            out.writeLong(pane.number);
+            out.writeInt(pane.bars.size());
+            for (Map.Entry<String, TickerBar> entry : pane.bars.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
+
+    /**
+     * スナップショットから集計中のペインとウォーターマークを復元します。それまでの集計は破棄します。
+     * ウィンドウの設定が書き込み時と異なる場合は復元せず、それ以降のデータも読み込みません。
+     *
+     * @param in 読み込み元
+     * @return 復元した場合はtrue
+     */
+    boolean readFrom(DataInput in) throws IOException {
+        if (in.readLong() != sizeMillis || in.readLong() != slideMillis || in.readLong() != allowedLatenessMillis) {
+            return false;
+        }
+        for (Pane pane : panes) {
+            if (pane.number != Long.MIN_VALUE) {
+                releasePane(pane.number);
+            }
+        }
+        maxEventTime = in.readLong();
+        watermark = in.readLong();
+        nextWindowStart = in.readLong();
+        lateTrades = in.readLong();
+        int livePanes = in.readInt();
+        for (int i = 0; i < livePanes; i++) {
+            long paneNumber = in.readLong();
+            Pane pane = panes[(int) (paneNumber & mask)];
+            pane.number = paneNumber;
+            int bars = in.readInt();
+            for (int j = 0; j < bars; j++) {
+                String tickerSymbol = in.readUTF();
+                TickerBar bar = freeBars.isEmpty() ? new TickerBar() : freeBars.pop();
+                bar.readFrom(in);
+                pane.bars.put(tickerSymbol, bar);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 現在のウォーターマーク
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * @return 遅延データとして破棄した取引の数
+     */
+    public long getLateTrades() {
+        return lateTrades;
+    }
+
+    /**
+     * スライド幅ごとの区間の集計です。
+     */
+    private static class Pane {
+        long number = Long.MIN_VALUE;
+        final Map<String, TickerBar> bars = new HashMap<>();
+    }
+
+}
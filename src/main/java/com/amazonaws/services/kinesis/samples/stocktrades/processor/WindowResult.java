@@ -0,0 +1,54 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * 閉じたウィンドウの集計結果です。
+ */
+public class WindowResult {
+
+    private final long startMillis;
+    private final long endMillis;
+    private final SortedMap<String, TickerBar> bars;
+
+    WindowResult(long startMillis, long endMillis, SortedMap<String, TickerBar> bars) {
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.bars = Collections.unmodifiableSortedMap(bars);
+    }
+
+    /**
+     * @return ウィンドウの開始時刻(この時刻を含む)
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return ウィンドウの終了時刻(この時刻を含まない)
+     */
+    public long getEndMillis() {
+        return endMillis;
+    }
+
+    /**
+     * @return 銘柄ごとの集計(銘柄順)
+     */
+    public SortedMap<String, TickerBar> getBars() {
+        return bars;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Instant.ofEpochMilli(startMillis)).append(" - ").append(Instant.ofEpochMilli(endMillis));
+        for (Map.Entry<String, TickerBar> entry : bars.entrySet()) {
+            sb.append(String.format("%n%s: %s", entry.getKey(), entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+}
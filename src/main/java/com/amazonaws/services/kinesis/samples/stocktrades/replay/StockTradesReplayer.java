@@ -0,0 +1,297 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.replay;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import software.amazon.awssdk.services.kinesis.model.Record;
+import software.amazon.kinesis.lifecycle.events.InitializationInput;
+import software.amazon.kinesis.lifecycle.events.ProcessRecordsInput;
+import software.amazon.kinesis.lifecycle.events.ShardEndedInput;
+import software.amazon.kinesis.processor.Checkpointer;
+import software.amazon.kinesis.processor.PreparedCheckpointer;
+import software.amazon.kinesis.processor.RecordProcessorCheckpointer;
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+import software.amazon.kinesis.retrieval.kpl.ExtendedSequenceNumber;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeProcessorConfig;
+import com.amazonaws.services.kinesis.samples.stocktrades.processor.StockTradeRecordProcessor;
+import com.amazonaws.services.kinesis.samples.stocktrades.segment.RecordSegmentReader;
+
+/**
+ * stocktrades.capture.dirに保存したレコードを、ストリームから受け取ったときと同じ順にレコードプロセッサに渡します。
+ * 本番と同じ形のデータでのベンチマークや、ストリームを読み直さずに集計をやり直すために使います。
+ *
+ * <p>シャードごとに1スレッドでレコードプロセッサを動かし、レコードの到着時刻の間隔を再生速度で割った間隔で渡します。
+ * 再生速度を指定しない場合は、待たずにできるだけ速く渡します。
+ * チェックポイントは記録せず、レコードの保存、処理に失敗したレコードの保存、集計状態のスナップショットの保存は行いません。
+ * 処理に失敗したレコードはログに出力して読み飛ばし、失敗の割合が多くても処理を止めません。
+ * 各シャードの統計情報はシャードの最後のレコードを渡した後に表示します。
+ */
+public class StockTradesReplayer {
+
+    private static final Logger ROOT_LOGGER = Logger.getLogger("");
+
+    // 1回のprocessRecordsで渡す最大レコード数を指定するシステムプロパティ
+    private static final String BATCH_RECORDS_PROPERTY = "stocktrades.replay.batchRecords";
+
+    private static void checkUsage(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: " + StockTradesReplayer.class.getSimpleName()
+                    + " <capture directory> [speed (1 = real time, omit for max speed)]");
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkUsage(args);
+        ROOT_LOGGER.setLevel(Level.WARNING);
+
+        Path directory = Paths.get(args[0]);
+        double speed = args.length == 2 ? Double.parseDouble(args[1]) : 0.0;
+        int batchRecords = Integer.getInteger(BATCH_RECORDS_PROPERTY, 1000);
+
+        // 再生中のレコードを保存し直したり、本番のスナップショットを上書きしたりしない
+        StockTradeProcessorConfig config = StockTradeProcessorConfig.fromSystemProperties().toBuilder()
+                .captureDir("")
+                .snapshotDir("")
+                .deadLetterDir("")
+                .failureMaxRatio(1.0)
+                .build();
+
+        SortedMap<String, List<Path>> segments = RecordSegmentReader.list(directory);
+        if (segments.isEmpty()) {
+            System.err.println("No segments found in " + directory);
+            System.exit(1);
+        }
+        List<ShardReplay> replays = new ArrayList<>();
+        for (Map.Entry<String, List<Path>> entry : segments.entrySet()) {
+            replays.add(new ShardReplay(entry.getKey(), entry.getValue(), config, batchRecords, speed));
+        }
+        long originMillis = speed > 0.0 ? firstArrivalMillis(replays) : 0L;
+
+        long startNanos = System.nanoTime();
+        List<FutureTask<ShardReplay>> tasks = new ArrayList<>();
+        for (ShardReplay replay : replays) {
+            FutureTask<ShardReplay> task = new FutureTask<>(() -> replay.run(originMillis, startNanos), replay);
+            Thread t = new Thread(task, "stock-trades-replayer-" + replay.shardId);
+            t.setDaemon(true);
+            t.start();
+            tasks.add(task);
+        }
+        long records = 0;
+        long bytes = 0;
+        for (FutureTask<ShardReplay> task : tasks) {
+            ShardReplay replay = task.get();
+            records += replay.records;
+            bytes += replay.bytes;
+        }
+
+        double seconds = Math.max(1L, System.nanoTime() - startNanos) / 1e9;
+        System.out.println(String.format("Replayed %,d record(s) (%,.1f MB) of %d shard(s) in %.1fs: "
+                        + "%,.0f record(s)/s, %,.1f MB/s",
+                records, bytes / 1e6, segments.size(), seconds, records / seconds, bytes / 1e6 / seconds));
+        System.exit(0);
+    }
+
+    /**
+     * @return 全てのシャードで最も早いレコードの到着時刻(再生の起点)
+     */
+    private static long firstArrivalMillis(List<ShardReplay> replays) throws IOException {
+        long first = Long.MAX_VALUE;
+        for (ShardReplay replay : replays) {
+            KinesisClientRecord record = replay.peek();
+            if (record != null && record.approximateArrivalTimestamp() != null) {
+                first = Math.min(first, record.approximateArrivalTimestamp().toEpochMilli());
+            }
+        }
+        return first;
+    }
+
+    /**
+     * 1シャードのセグメントファイルをレコードプロセッサに渡します。
+     */
+    private static class ShardReplay {
+        private final String shardId;
+        private final List<Path> paths;
+        private final StockTradeRecordProcessor processor;
+        private final int batchRecords;
+        private final double speed;
+        // 再生の起点(runで設定)
+        private long originMillis;
+        private long startNanos;
+
+        // 読み込み中のセグメントと、次に読み込むセグメントの位置
+        private RecordSegmentReader reader;
+        private int nextPath;
+        // peekで先に読み込んだレコード
+        private KinesisClientRecord peeked;
+
+        long records;
+        long bytes;
+
+        ShardReplay(String shardId, List<Path> paths, StockTradeProcessorConfig config, int batchRecords,
+                    double speed) {
+            this.shardId = shardId;
+            this.paths = paths;
+            this.processor = new StockTradeRecordProcessor(config);
+            this.batchRecords = batchRecords;
+            this.speed = speed;
+        }
+
+        /**
+         * @return 最初のレコード(レコードがない場合はnull)。読み込んだレコードはrunでそのまま渡します
+         */
+        KinesisClientRecord peek() throws IOException {
+            if (peeked == null) {
+                peeked = next();
+            }
+            return peeked;
+        }
+
+        /**
+         * 各セグメントは1度だけマップし、読み終えたセグメントは参照を外してGCで解放させます。
+         *
+         * @return 次のレコード(全てのセグメントを読み終えた場合はnull)
+         */
+        private KinesisClientRecord next() throws IOException {
+            if (peeked != null) {
+                KinesisClientRecord record = peeked;
+                peeked = null;
+                return record;
+            }
+            while (true) {
+                if (reader != null) {
+                    KinesisClientRecord record = reader.next();
+                    if (record != null) {
+                        return record;
+                    }
+                    reader = null;
+                }
+                if (nextPath == paths.size()) {
+                    return null;
+                }
+                reader = new RecordSegmentReader(paths.get(nextPath++));
+            }
+        }
+
+        void run(long originMillis, long startNanos) {
+            this.originMillis = originMillis;
+            this.startNanos = startNanos;
+            processor.initialize(InitializationInput.builder()
+                    .shardId(shardId)
+                    .extendedSequenceNumber(ExtendedSequenceNumber.TRIM_HORIZON)
+                    .build());
+            List<KinesisClientRecord> batch = new ArrayList<>(batchRecords);
+            try {
+                KinesisClientRecord record;
+                while ((record = next()) != null) {
+                    long dueNanos = dueNanos(record);
+                    // 次のレコードまで待つ場合は、それまでに溜まったレコードを先に渡す
+                    if (batch.size() >= batchRecords || (!batch.isEmpty() && dueNanos > System.nanoTime())) {
+                        process(batch);
+                        batch = new ArrayList<>(batchRecords);
+                    }
+                    waitUntil(dueNanos);
+                    batch.add(record);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read segments of shard " + shardId, e);
+            }
+            if (!batch.isEmpty()) {
+                process(batch);
+            }
+            processor.shardEnded(ShardEndedInput.builder().checkpointer(NoOpCheckpointer.INSTANCE).build());
+        }
+
+        private void process(List<KinesisClientRecord> batch) {
+            // 最後のレコードの到着時刻を最新位置とみなし、ウィンドウ集計を再生した時間で進める
+            KinesisClientRecord last = batch.get(batch.size() - 1);
+            Long millisBehindLatest = last.approximateArrivalTimestamp() != null
+                    ? System.currentTimeMillis() - last.approximateArrivalTimestamp().toEpochMilli()
+                    : null;
+            for (KinesisClientRecord record : batch) {
+                bytes += record.data().remaining();
+            }
+            records += batch.size();
+            processor.processRecords(ProcessRecordsInput.builder()
+                    .records(batch)
+                    .millisBehindLatest(millisBehindLatest)
+                    .checkpointer(NoOpCheckpointer.INSTANCE)
+                    .build());
+        }
+
+        private long dueNanos(KinesisClientRecord record) {
+            if (speed <= 0.0 || record.approximateArrivalTimestamp() == null) {
+                return startNanos;
+            }
+            long offsetMillis = record.approximateArrivalTimestamp().toEpochMilli() - originMillis;
+            return startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(offsetMillis) / speed);
+        }
+
+        private static void waitUntil(long dueNanos) {
+            long remaining;
+            while ((remaining = dueNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    /**
+     * 何も記録しないチェックポイントです。
+     */
+    private static class NoOpCheckpointer implements RecordProcessorCheckpointer {
+        static final NoOpCheckpointer INSTANCE = new NoOpCheckpointer();
+
+        @Override
+        public void checkpoint() {
+        }
+
+        @Override
+        public void checkpoint(Record record) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber) {
+        }
+
+        @Override
+        public void checkpoint(String sequenceNumber, long subSequenceNumber) {
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint() {
+            return null;
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint(Record record) {
+            return null;
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint(String sequenceNumber) {
+            return null;
+        }
+
+        @Override
+        public PreparedCheckpointer prepareCheckpoint(String sequenceNumber, long subSequenceNumber) {
+            return null;
+        }
+
+        @Override
+        public Checkpointer checkpointer() {
+            return null;
+        }
+    }
+
+}
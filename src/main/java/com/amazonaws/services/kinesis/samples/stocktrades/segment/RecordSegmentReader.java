@@ -0,0 +1,169 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.segment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * {@link RecordSegmentWriter}が書き込んだセグメントファイルを読み込むクラスです。
+ *
+ * <p>ファイル全体をメモリにマップし、レコードのデータはマップした領域をそのまま参照します(コピーしません)。
+ * 書き込み途中で終了したなどで、長さやCRC32が合わないレコードに達した場合は、そこで読み込みを終えます。
+ * スレッドセーフではありません。
+ */
+public class RecordSegmentReader {
+
+    private static final Log LOG = LogFactory.getLog(RecordSegmentReader.class);
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final CRC32 crc = new CRC32();
+
+    private String note;
+    private boolean truncated;
+
+    /**
+     * @param path セグメントファイル
+     */
+    public RecordSegmentReader(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segment is too large to map: " + path);
+            }
+            // マップした領域はチャネルを閉じた後も参照できる
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < RecordSegmentWriter.FILE_HEADER_BYTES
+                || buffer.getInt() != RecordSegmentWriter.MAGIC
+                || buffer.getInt() != RecordSegmentWriter.VERSION) {
+            throw new IOException("Not a record segment: " + path);
+        }
+    }
+
+    /**
+     * 次のレコードを読み込みます。
+     *
+     * @return レコード(ファイルの終わりに達した場合はnull)
+     */
+    public KinesisClientRecord next() {
+        if (truncated || buffer.remaining() < RecordSegmentWriter.RECORD_HEADER_BYTES) {
+            return finish();
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        int checksum = buffer.getInt(start + 4);
+        if (length < 4 || length > buffer.remaining() - 4) {
+            return finish();
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + RecordSegmentWriter.RECORD_HEADER_BYTES).limit(start + 4 + length);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return finish();
+        }
+        buffer.position(start + 4 + length);
+
+        long arrivalMillis = body.getLong();
+        long subSequenceNumber = body.getLong();
+        String partitionKey = getString(body);
+        String explicitHashKey = getString(body);
+        String sequenceNumber = getString(body);
+        note = getString(body);
+        int dataLength = body.getInt();
+        ByteBuffer data = body.slice();
+        data.limit(dataLength);
+        return KinesisClientRecord.builder()
+                .approximateArrivalTimestamp(arrivalMillis != 0L ? Instant.ofEpochMilli(arrivalMillis) : null)
+                .subSequenceNumber(subSequenceNumber)
+                .partitionKey(partitionKey)
+                .explicitHashKey(explicitHashKey)
+                .sequenceNumber(sequenceNumber)
+                .data(data)
+                .build();
+    }
+
+    /**
+     * @return 直前に読み込んだレコードを保存した理由など(ない場合はnull)
+     */
+    public String getNote() {
+        return note;
+    }
+
+    /**
+     * @return ファイルの途中で読み込みを終えた場合はtrue
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    private KinesisClientRecord finish() {
+        if (!truncated && buffer.hasRemaining()) {
+            truncated = true;
+            LOG.warn("Ignoring " + buffer.remaining() + " byte(s) of incomplete or corrupt records at offset "
+                    + buffer.position() + " of " + path);
+        }
+        note = null;
+        return null;
+    }
+
+    private static String getString(ByteBuffer body) {
+        int length = body.getShort() & 0xffff;
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer bytes = body.slice();
+        bytes.limit(length);
+        body.position(body.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * ディレクトリのセグメントファイルを接頭辞(シャードIDなど)ごとに連番の順に並べます。
+     *
+     * @param directory セグメントファイルのディレクトリ
+     * @return 接頭辞ごとのセグメントファイル(接頭辞順)
+     */
+    public static SortedMap<String, List<Path>> list(Path directory) throws IOException {
+        SortedMap<String, TreeMap<Long, Path>> indexed = new TreeMap<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, "*-*" + RecordSegmentWriter.SUFFIX)) {
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                int separator = name.lastIndexOf('-');
+                String prefix = name.substring(0, separator);
+                try {
+                    long index = Long.parseLong(name.substring(separator + 1,
+                            name.length() - RecordSegmentWriter.SUFFIX.length()));
+                    indexed.computeIfAbsent(prefix, p -> new TreeMap<>()).put(index, path);
+                } catch (NumberFormatException e) {
+                    // 他の形式のファイルは無視する
+                }
+            }
+        }
+        SortedMap<String, List<Path>> segments = new TreeMap<>();
+        for (Map.Entry<String, TreeMap<Long, Path>> entry : indexed.entrySet()) {
+            segments.put(entry.getKey(), new ArrayList<>(entry.getValue().values()));
+        }
+        return segments;
+    }
+
+}
@@ -0,0 +1,189 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.segment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import software.amazon.kinesis.retrieval.KinesisClientRecord;
+
+/**
+ * ストリームのレコードをそのままの形でセグメントファイルに追記するクラスです。
+ *
+ * <p>セグメントファイルは{@code <prefix>-<連番>.segment}という名前で、一定のサイズを超えたら次のファイルに切り替えます。
+ * 連番は既存のファイルの続きから始めるため、再起動しても既存のファイルは上書きしません。
+ * ディレクトリとファイルは最初のレコードを追記するときに作成します。
+ * 各ファイルの形式は次のとおりで、レコードごとにCRC32で書き込みが完了しているかを確認できます。
+ *
+ * <pre>
+ * magic(4) version(4)
+ * レコード: length(4) crc32(4) arrivalMillis(8) subSequenceNumber(8)
+ *          partitionKeyLength(2) partitionKey explicitHashKeyLength(2) explicitHashKey
+ *          sequenceNumberLength(2) sequenceNumber noteLength(2) note dataLength(4) data
+ * </pre>
+ *
+ * <p>lengthはcrc32以降のレコードの長さ、crc32はarrivalMillis以降のCRC32です。文字列はUTF-8で、
+ * ない場合は長さを0とします。noteにはレコードを保存した理由などを記録します。
+ * 書き込んだ内容はOSのページキャッシュに残るため、プロセスが異常終了しても失われません。
+ * スレッドセーフではありません。
+ */
+public class RecordSegmentWriter implements AutoCloseable {
+
+    static final int MAGIC = 0x53545247;
+    static final int VERSION = 1;
+    static final int FILE_HEADER_BYTES = 8;
+    // lengthとcrc32
+    static final int RECORD_HEADER_BYTES = 8;
+    static final String SUFFIX = ".segment";
+
+    private static final int MAX_STRING_BYTES = 0xffff;
+
+    private final Path directory;
+    private final String prefix;
+    private final long maxSegmentBytes;
+
+    private FileChannel channel;
+    private long segmentBytes;
+    private long nextIndex = -1;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private final CRC32 crc = new CRC32();
+
+    private long records;
+
+    /**
+     * @param directory セグメントファイルを保存するディレクトリ
+     * @param prefix セグメントファイル名の接頭辞
+     * @param maxSegmentBytes 1ファイルの最大サイズ(超えたら次のファイルに切り替える)
+     */
+    public RecordSegmentWriter(Path directory, String prefix, long maxSegmentBytes) {
+        if (maxSegmentBytes <= FILE_HEADER_BYTES) {
+            throw new IllegalArgumentException("maxSegmentBytes is too small");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * レコードを追記します。
+     *
+     * @param record レコード
+     * @param note レコードを保存した理由など(ない場合はnull)
+     */
+    public void append(KinesisClientRecord record, String note) throws IOException {
+        byte[] partitionKey = utf8(record.partitionKey());
+        byte[] explicitHashKey = utf8(record.explicitHashKey());
+        byte[] sequenceNumber = utf8(record.sequenceNumber());
+        byte[] noteBytes = utf8(note);
+        ByteBuffer data = record.data().duplicate();
+        int length = 4 + 8 + 8 + 2 + partitionKey.length + 2 + explicitHashKey.length + 2 + sequenceNumber.length
+                + 2 + noteBytes.length + 4 + data.remaining();
+
+        if (buffer.capacity() < 4 + length) {
+            buffer = ByteBuffer.allocate(Math.max(4 + length, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(record.approximateArrivalTimestamp() != null
+                ? record.approximateArrivalTimestamp().toEpochMilli()
+                : 0L);
+        buffer.putLong(record.subSequenceNumber());
+        putString(partitionKey);
+        putString(explicitHashKey);
+        putString(sequenceNumber);
+        putString(noteBytes);
+        buffer.putInt(data.remaining());
+        buffer.put(data);
+        crc.reset();
+        crc.update(buffer.array(), RECORD_HEADER_BYTES, buffer.position() - RECORD_HEADER_BYTES);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+
+        // 空のファイルには最大サイズを超えるレコードも書き込む
+        boolean full = segmentBytes > FILE_HEADER_BYTES && segmentBytes + buffer.remaining() > maxSegmentBytes;
+        if (channel == null || full) {
+            roll();
+        }
+        segmentBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        records++;
+    }
+
+    /**
+     * @return これまでに追記したレコードの数
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void roll() throws IOException {
+        close();
+        if (nextIndex < 0) {
+            Files.createDirectories(directory);
+            nextIndex = lastIndex(directory, prefix) + 1;
+        }
+        Path path = directory.resolve(String.format("%s-%06d%s", prefix, nextIndex++, SUFFIX));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        segmentBytes = FILE_HEADER_BYTES;
+    }
+
+    private void putString(byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] utf8(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            byte[] truncated = new byte[MAX_STRING_BYTES];
+            System.arraycopy(bytes, 0, truncated, 0, MAX_STRING_BYTES);
+            return truncated;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 既存のセグメントファイルの最大の連番(ない場合は-1)
+     */
+    private static long lastIndex(Path directory, String prefix) throws IOException {
+        long last = -1;
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, prefix + "-*" + SUFFIX)) {
+            for (Path path : paths) {
+                String name = path.getFileName().toString();
+                String index = name.substring(prefix.length() + 1, name.length() - SUFFIX.length());
+                try {
+                    last = Math.max(last, Long.parseLong(index));
+                } catch (NumberFormatException e) {
+                    // 他の形式のファイルは無視する
+                }
+            }
+        }
+        return last;
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * シャードごとの送信レートをAIMD(加算増加・乗算減少)で調整するトークンバケットです。
+ *
+ * <p>上限を指定しない場合、スロットリングされるまではレートを制限しません。
+ * スロットリングされると、直前の送信レートに減少率を掛けたレートに制限し、
+ * その後はスロットリングされずに送信できるたびにレートを少しずつ増やします。
+ * スロットリングされない状態が続いた場合は、再び制限を外します。
+ *
+ * <p>スレッドセーフではありません。呼び出し元で同期してください。
+ */
+class AdaptiveShardLimiter {
+
+    private static final Log LOG = LogFactory.getLog(AdaptiveShardLimiter.class);
+
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // 1回のスロットリングへの対応として、この時間内の続くスロットリングではレートを減らさない
+    private static final long THROTTLE_HOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    // 上限を指定しない場合に、スロットリングされない状態が続いたら制限を外すまでの時間
+    private static final long UNLIMIT_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // 一度に送信できるレコード数(秒間のレートに対する割合)
+    private static final double BURST_SECONDS = 0.2;
+
+    private final ShardMap shardMap;
+    private final BatchProducerConfig config;
+
+    // シャードごとの秒間送信レコード数(制限しない場合は無限大)とトークン
+    private final double[] rates;
+    private final double[] tokens;
+    private final long[] refilledNanos;
+    // 1秒あたりに増やすレート
+    private final double[] increasePerSecond;
+    private final long[] increasedNanos;
+    private final long[] throttledNanos;
+    // 直近の送信レートの計測
+    private final long[] sentInWindow;
+    private final long[] windowStartNanos;
+    private final double[] observedRates;
+
+    /**
+     * @param shardMap ストリームのシャード
+     * @param config 送信レートの設定
+     */
+    AdaptiveShardLimiter(ShardMap shardMap, BatchProducerConfig config) {
+        int shardCount = shardMap.shardCount();
+        this.shardMap = shardMap;
+        this.config = config;
+        this.rates = new double[shardCount];
+        this.tokens = new double[shardCount];
+        this.refilledNanos = new long[shardCount];
+        this.increasePerSecond = new double[shardCount];
+        this.increasedNanos = new long[shardCount];
+        this.throttledNanos = new long[shardCount];
+        this.sentInWindow = new long[shardCount];
+        this.windowStartNanos = new long[shardCount];
+        this.observedRates = new double[shardCount];
+        long now = System.nanoTime();
+        for (int shard = 0; shard < shardCount; shard++) {
+            rates[shard] = config.getMaxShardRecordsPerSecond() > 0
+                    ? config.getMaxShardRecordsPerSecond()
+                    : Double.POSITIVE_INFINITY;
+            tokens[shard] = burst(rates[shard]);
+            refilledNanos[shard] = now;
+            windowStartNanos[shard] = now;
+            throttledNanos[shard] = now - UNLIMIT_AFTER_NANOS;
+        }
+    }
+
+    /**
+     * @param shard シャードの番号
+     * @param now 現在時刻(ナノ秒)
+     * @return 今送信できるレコード数(制限しない場合は{@link Integer#MAX_VALUE})
+     */
+    int available(int shard, long now) {
+        if (Double.isInfinite(rates[shard])) {
+            return Integer.MAX_VALUE;
+        }
+        refill(shard, now);
+        return (int) tokens[shard];
+    }
+
+    /**
+     * @param shard シャードの番号
+     * @param records レコード数
+     * @param now 現在時刻(ナノ秒)
+     * @return 指定した数のレコードを送信できるようになるまでの時間(ナノ秒、今送信できる場合は0)
+     */
+    long nanosUntilAvailable(int shard, int records, long now) {
+        if (Double.isInfinite(rates[shard])) {
+            return 0L;
+        }
+        refill(shard, now);
+        double missing = Math.min(records, burst(shard)) - tokens[shard];
+        if (missing <= 0.0) {
+            return 0L;
+        }
+        return (long) Math.ceil(missing * SECOND_NANOS / rates[shard]);
+    }
+
+    /**
+     * @param shard シャードの番号
+     * @return 一度に送信できるレコード数の上限(制限しない場合は{@link Integer#MAX_VALUE})
+     */
+    int burst(int shard) {
+        return Double.isInfinite(rates[shard]) ? Integer.MAX_VALUE : (int) burst(rates[shard]);
+    }
+
+    /**
+     * 送信したレコード数だけトークンを消費します。
+     */
+    void consume(int shard, int records, long now) {
+        tokens[shard] -= records;
+        if (now - windowStartNanos[shard] >= SECOND_NANOS) {
+            observedRates[shard] = sentInWindow[shard] * (double) SECOND_NANOS / (now - windowStartNanos[shard]);
+            sentInWindow[shard] = 0;
+            windowStartNanos[shard] = now;
+        }
+        sentInWindow[shard] += records;
+    }
+
+    /**
+     * スロットリングされずに送信できたことを記録し、レートを増やします。
+     */
+    void onSuccess(int shard, long now) {
+        if (Double.isInfinite(rates[shard])) {
+            return;
+        }
+        long elapsed = Math.min(SECOND_NANOS, now - increasedNanos[shard]);
+        increasedNanos[shard] = now;
+        if (elapsed <= 0) {
+            return;
+        }
+        double max = config.getMaxShardRecordsPerSecond();
+        if (max <= 0 && now - throttledNanos[shard] >= UNLIMIT_AFTER_NANOS) {
+            rates[shard] = Double.POSITIVE_INFINITY;
+            LOG.info("No throttling on shard " + shardMap.shardId(shard) + " for a while, removing its rate limit");
+            return;
+        }
+        refill(shard, now);
+        double rate = rates[shard] + increasePerSecond[shard] * elapsed / SECOND_NANOS;
+        rates[shard] = max > 0 ? Math.min(max, rate) : rate;
+    }
+
+    /**
+     * スロットリングされたことを記録し、レートを減らします。
+     */
+    void onThrottle(int shard, long now) {
+        if (now - throttledNanos[shard] < THROTTLE_HOLD_NANOS) {
+            return;
+        }
+        throttledNanos[shard] = now;
+        double base = rates[shard];
+        if (Double.isInfinite(base)) {
+            // 制限していなかった場合は、直近の送信レートを基準にする
+            long elapsed = now - windowStartNanos[shard];
+            double current = elapsed > 0 ? sentInWindow[shard] * (double) SECOND_NANOS / elapsed : 0.0;
+            base = Math.max(observedRates[shard], current);
+        }
+        double rate = Math.max(config.getMinShardRecordsPerSecond(), base * config.getDecreaseFactor());
+        rates[shard] = rate;
+        increasePerSecond[shard] = rate * config.getIncreaseRatio();
+        increasedNanos[shard] = now;
+        refilledNanos[shard] = now;
+        tokens[shard] = Math.min(tokens[shard], 0.0);
+        LOG.info("Throttled on shard " + shardMap.shardId(shard) + ", limiting to " + Math.round(rate)
+                + " record(s)/s");
+    }
+
+    private void refill(int shard, long now) {
+        long elapsed = now - refilledNanos[shard];
+        if (elapsed <= 0) {
+            return;
+        }
+        refilledNanos[shard] = now;
+        double rate = rates[shard];
+        tokens[shard] = Math.min(burst(rate), tokens[shard] + rate * elapsed / SECOND_NANOS);
+    }
+
+    private static double burst(double rate) {
+        return Math.max(1.0, rate * BURST_SECONDS);
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@link StockTradeBatchProducer}の送信バッファ、再送、シャードごとの送信レート制御の設定です。
+ * 各項目はシステムプロパティ(例: -Dstocktrades.producer.bufferRecords=50000)で変更できます。
+ */
+public class BatchProducerConfig {
+
+    private static final String PREFIX = "stocktrades.producer.";
+
+    /**
+     * 送信バッファが一杯の場合の動作です。
+     */
+    public enum OverflowPolicy {
+        // 空きができるまで送信元を待機させる
+        BLOCK,
+        // 新しいレコードを破棄する
+        DROP
+    }
+
+    // 送信バッファに保持できるレコード数(送信中と再送待ちを含む)
+    private final int bufferRecords;
+
+    // 送信バッファが一杯の場合の動作
+    private final OverflowPolicy overflowPolicy;
+
+    // 1レコードあたりの最大送信回数
+    private final int maxAttempts;
+
+    // 再送の待機時間の基準値と上限(指数バックオフにフルジッターを加える)
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    // シャードあたりの秒間送信レコード数の上限(0の場合はスロットリングされるまで制限しない)
+    private final double maxShardRecordsPerSecond;
+
+    // スロットリング後のシャードあたりの秒間送信レコード数の下限
+    private final double minShardRecordsPerSecond;
+
+    // スロットリングされた場合に送信レートに掛ける割合
+    private final double decreaseFactor;
+
+    // スロットリングされていない間に1秒ごとに増やす送信レートの割合(減らした直後のレートに対する割合)
+    private final double increaseRatio;
+
+    public BatchProducerConfig(int bufferRecords, OverflowPolicy overflowPolicy, int maxAttempts,
+                               long baseBackoffMillis, long maxBackoffMillis, double maxShardRecordsPerSecond,
+                               double minShardRecordsPerSecond, double decreaseFactor, double increaseRatio) {
+        if (bufferRecords <= 0 || maxAttempts <= 0 || baseBackoffMillis <= 0 || minShardRecordsPerSecond <= 0
+                || decreaseFactor <= 0 || decreaseFactor >= 1 || increaseRatio <= 0) {
+            throw new IllegalArgumentException("Invalid producer configuration");
+        }
+        this.bufferRecords = bufferRecords;
+        this.overflowPolicy = overflowPolicy;
+        this.maxAttempts = maxAttempts;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = Math.max(baseBackoffMillis, maxBackoffMillis);
+        this.maxShardRecordsPerSecond = maxShardRecordsPerSecond;
+        this.minShardRecordsPerSecond = minShardRecordsPerSecond;
+        this.decreaseFactor = decreaseFactor;
+        this.increaseRatio = increaseRatio;
+    }
+
+    /**
+     * @return 既定値の設定
+     */
+    public static BatchProducerConfig defaults() {
+        return new BatchProducerConfig(100000, OverflowPolicy.BLOCK, 10, 100L, 10000L, 0.0, 50.0, 0.5, 0.1);
+    }
+
+    /**
+     * @return システムプロパティから読み込んだ設定
+     */
+    public static BatchProducerConfig fromSystemProperties() {
+        BatchProducerConfig defaults = defaults();
+        return new BatchProducerConfig(
+                Integer.getInteger(PREFIX + "bufferRecords", defaults.bufferRecords),
+                OverflowPolicy.valueOf(System.getProperty(PREFIX + "overflowPolicy",
+                        defaults.overflowPolicy.name()).toUpperCase()),
+                Integer.getInteger(PREFIX + "maxAttempts", defaults.maxAttempts),
+                Long.getLong(PREFIX + "baseBackoffMillis", defaults.baseBackoffMillis),
+                Long.getLong(PREFIX + "maxBackoffMillis", defaults.maxBackoffMillis),
+                getDouble(PREFIX + "maxShardRecordsPerSecond", defaults.maxShardRecordsPerSecond),
+                getDouble(PREFIX + "minShardRecordsPerSecond", defaults.minShardRecordsPerSecond),
+                getDouble(PREFIX + "decreaseFactor", defaults.decreaseFactor),
+                getDouble(PREFIX + "increaseRatio", defaults.increaseRatio));
+    }
+
+    /**
+     * 指数バックオフの上限までの範囲から、再送までの待機時間をランダムに決めます(フルジッター)。
+     *
+     * @param attempt 失敗した送信の回数(1以上)
+     * @return 再送までの待機時間
+     */
+    public long backoffMillis(int attempt) {
+        long ceiling = baseBackoffMillis << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffMillis) {
+            ceiling = maxBackoffMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    public int getBufferRecords() {
+        return bufferRecords;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseBackoffMillis() {
+        return baseBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public double getMaxShardRecordsPerSecond() {
+        return maxShardRecordsPerSecond;
+    }
+
+    public double getMinShardRecordsPerSecond() {
+        return minShardRecordsPerSecond;
+    }
+
+    public double getDecreaseFactor() {
+        return decreaseFactor;
+    }
+
+    public double getIncreaseRatio() {
+        return increaseRatio;
+    }
+
+}
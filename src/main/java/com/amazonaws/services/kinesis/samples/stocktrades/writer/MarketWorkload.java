@@ -0,0 +1,110 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TradeIds;
+
+/**
+ * 実際の市場に近い取引を生成するワークロードです。
+ *
+ * <ul>
+ * <li>銘柄はZipf分布に従って選び、少数の銘柄に取引が集中します。</li>
+ * <li>価格は銘柄ごとの幾何ランダムウォークで、取引のたびに変動します。</li>
+ * <li>株数は指数分布に従い、小口の取引が多く大口の取引は少なくなります。</li>
+ * <li>送信レートは周期的なバーストで一時的に増加します。</li>
+ * </ul>
+ *
+ * <p>乱数はシードから生成するため、同じ設定であれば同じ取引の列を生成します。
+ * 銘柄や価格は配列で保持し、取引ごとにオブジェクトを生成しません。
+ * スレッドセーフではありません。{@link MarketWorkloadConfig#newWorkloads(int)}でスレッドごとに作成してください。
+ * 価格の変動はインスタンスごとに独立しています。
+ * 取引IDは{@link TradeIds}の連番からブロック単位で確保するため、取引の列と違い実行ごとに変わります。
+ */
+public class MarketWorkload implements TradeWorkload {
+
+    private static final long MAX_QUANTITY = 1000000L;
+
+    // 一度に確保する取引IDの連番の数
+    private static final int SEQUENCE_BLOCK = 1024;
+
+    private final String[] tickerSymbols;
+    private final double[] cumulativeWeights;
+    private final double[] prices;
+    private final SplittableRandom random;
+    private final double volatility;
+    private final double meanQuantity;
+    private final double sellProbability;
+    private final long burstPeriodMillis;
+    private final long burstDurationMillis;
+    private final double burstMultiplier;
+
+    private final long writerId = TradeIds.localWriterId();
+    private long nextSequence;
+    private long sequenceBlockEnd;
+
+    // Box-Muller法で生成した2つ目の正規乱数
+    private double spareGaussian;
+    private boolean hasSpareGaussian;
+
+    MarketWorkload(MarketWorkloadConfig config, String[] tickerSymbols, double[] cumulativeWeights,
+                   double[] initialPrices, SplittableRandom random) {
+        this.tickerSymbols = tickerSymbols;
+        this.cumulativeWeights = cumulativeWeights;
+        this.prices = initialPrices.clone();
+        this.random = random;
+        this.volatility = config.getVolatility();
+        this.meanQuantity = config.getMeanQuantity();
+        this.sellProbability = config.getSellProbability();
+        this.burstPeriodMillis = config.getBurstPeriodMillis();
+        this.burstDurationMillis = config.getBurstDurationMillis();
+        this.burstMultiplier = config.getBurstMultiplier();
+    }
+
+    @Override
+    public StockTradeView nextTrade(StockTradeView trade) {
+        int symbol = nextSymbol();
+        double price = prices[symbol] * Math.exp(volatility * nextGaussian());
+        prices[symbol] = Math.max(0.01, price);
+
+        TradeType tradeType = random.nextDouble() < sellProbability ? TradeType.SELL : TradeType.BUY;
+        long quantity = Math.min(MAX_QUANTITY, 1L + (long) (-Math.log(1.0 - random.nextDouble()) * meanQuantity));
+        if (nextSequence == sequenceBlockEnd) {
+            nextSequence = TradeIds.reserveSequences(SEQUENCE_BLOCK);
+            sequenceBlockEnd = nextSequence + SEQUENCE_BLOCK;
+        }
+        long id = TradeIds.of(writerId, nextSequence++);
+        return trade.set(tickerSymbols[symbol], tradeType, Math.round(prices[symbol] * 100.0) / 100.0, quantity, id);
+    }
+
+    @Override
+    public double rateMultiplier(long elapsedMillis) {
+        if (burstPeriodMillis <= 0 || elapsedMillis % burstPeriodMillis >= burstDurationMillis) {
+            return 1.0;
+        }
+        return burstMultiplier;
+    }
+
+    private int nextSymbol() {
+        int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+        // 累積確率が乱数を超える最初の銘柄
+        index = index >= 0 ? index + 1 : -index - 1;
+        return Math.min(index, tickerSymbols.length - 1);
+    }
+
+    private double nextGaussian() {
+        if (hasSpareGaussian) {
+            hasSpareGaussian = false;
+            return spareGaussian;
+        }
+        double u1 = 1.0 - random.nextDouble();
+        double u2 = random.nextDouble();
+        double radius = Math.sqrt(-2.0 * Math.log(u1));
+        spareGaussian = radius * Math.sin(2.0 * Math.PI * u2);
+        hasSpareGaussian = true;
+        return radius * Math.cos(2.0 * Math.PI * u2);
+    }
+
+}
@@ -0,0 +1,164 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.SplittableRandom;
+
+/**
+ * {@link MarketWorkload}の設定です。
+ * 各項目はシステムプロパティ(例: -Dstocktrades.workload.symbols=5000)で変更できます。
+ */
+public class MarketWorkloadConfig {
+
+    private static final String PREFIX = "stocktrades.workload.";
+
+    // 乱数のシード(同じシードとスレッド数であれば取引IDを除いて同じ取引の列を生成する)
+    private final long seed;
+
+    // 銘柄の数(先頭の25銘柄は実在の銘柄、それ以降は合成した銘柄)
+    private final int symbols;
+
+    // 銘柄の人気の偏りを表すZipf分布の指数(0の場合は一様)
+    private final double zipfExponent;
+
+    // 1取引あたりの価格の変動率(対数収益率の標準偏差)
+    private final double volatility;
+
+    // 1取引あたりの平均株数
+    private final long meanQuantity;
+
+    // 売り注文の割合
+    private final double sellProbability;
+
+    // バーストの周期(0の場合はバーストしない)
+    private final long burstPeriodMillis;
+
+    // 各周期の先頭でバーストが続く時間
+    private final long burstDurationMillis;
+
+    // バースト中の送信レートの倍率
+    private final double burstMultiplier;
+
+    public MarketWorkloadConfig(long seed, int symbols, double zipfExponent, double volatility, long meanQuantity,
+                                double sellProbability, long burstPeriodMillis, long burstDurationMillis,
+                                double burstMultiplier) {
+        if (symbols <= 0 || meanQuantity <= 0) {
+            throw new IllegalArgumentException("symbols and meanQuantity must be positive");
+        }
+        this.seed = seed;
+        this.symbols = symbols;
+        this.zipfExponent = zipfExponent;
+        this.volatility = volatility;
+        this.meanQuantity = meanQuantity;
+        this.sellProbability = sellProbability;
+        this.burstPeriodMillis = burstPeriodMillis;
+        this.burstDurationMillis = burstDurationMillis;
+        this.burstMultiplier = burstMultiplier;
+    }
+
+    /**
+     * @return 既定値の設定
+     */
+    public static MarketWorkloadConfig defaults() {
+        return new MarketWorkloadConfig(42L, 1000, 1.1, 0.0005, 300L, 0.4, 0L, 0L, 1.0);
+    }
+
+    /**
+     * @return システムプロパティから読み込んだ設定
+     */
+    public static MarketWorkloadConfig fromSystemProperties() {
+        MarketWorkloadConfig defaults = defaults();
+        return new MarketWorkloadConfig(
+                Long.getLong(PREFIX + "seed", defaults.seed),
+                Integer.getInteger(PREFIX + "symbols", defaults.symbols),
+                getDouble(PREFIX + "zipfExponent", defaults.zipfExponent),
+                getDouble(PREFIX + "volatility", defaults.volatility),
+                Long.getLong(PREFIX + "meanQuantity", defaults.meanQuantity),
+                getDouble(PREFIX + "sellProbability", defaults.sellProbability),
+                Long.getLong(PREFIX + "burst.periodMillis", defaults.burstPeriodMillis),
+                Long.getLong(PREFIX + "burst.durationMillis", defaults.burstDurationMillis),
+                getDouble(PREFIX + "burst.multiplier", defaults.burstMultiplier));
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * 銘柄の一覧と人気の分布を共有する、送信スレッドごとのワークロードを作成します。
+     * 取引IDはスレッド間で重複しないように割り当てます。
+     *
+     * @param count 作成する数(送信するスレッド数)
+     * @return ワークロード
+     */
+    public MarketWorkload[] newWorkloads(int count) {
+        String[] tickerSymbols = new String[symbols];
+        double[] initialPrices = new double[symbols];
+        String[] knownSymbols = StockTradeGenerator.tickerSymbols();
+        double[] knownPrices = StockTradeGenerator.basePrices();
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < symbols; i++) {
+            if (i < knownSymbols.length) {
+                tickerSymbols[i] = knownSymbols[i];
+                initialPrices[i] = knownPrices[i];
+            } else {
+                tickerSymbols[i] = String.format("S%05d", i);
+                // 5ドルから500ドルの対数一様分布
+                initialPrices[i] = Math.round(Math.exp(Math.log(5.0) + random.nextDouble() * Math.log(100.0)) * 100.0)
+                        / 100.0;
+            }
+        }
+        double[] cumulativeWeights = new double[symbols];
+        double total = 0.0;
+        for (int i = 0; i < symbols; i++) {
+            total += 1.0 / Math.pow(i + 1, zipfExponent);
+            cumulativeWeights[i] = total;
+        }
+        for (int i = 0; i < symbols; i++) {
+            cumulativeWeights[i] /= total;
+        }
+
+        MarketWorkload[] workloads = new MarketWorkload[count];
+        for (int i = 0; i < count; i++) {
+            workloads[i] = new MarketWorkload(this, tickerSymbols, cumulativeWeights, initialPrices,
+                    random.split());
+        }
+        return workloads;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getSymbols() {
+        return symbols;
+    }
+
+    public double getZipfExponent() {
+        return zipfExponent;
+    }
+
+    public double getVolatility() {
+        return volatility;
+    }
+
+    public long getMeanQuantity() {
+        return meanQuantity;
+    }
+
+    public double getSellProbability() {
+        return sellProbability;
+    }
+
+    public long getBurstPeriodMillis() {
+        return burstPeriodMillis;
+    }
+
+    public long getBurstDurationMillis() {
+        return burstDurationMillis;
+    }
+
+    public double getBurstMultiplier() {
+        return burstMultiplier;
+    }
+
+}
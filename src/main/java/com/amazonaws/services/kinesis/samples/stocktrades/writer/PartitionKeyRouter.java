@@ -0,0 +1,270 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.SaltedPartitionKey;
+
+/**
+ * パーティションキーごとの送信レートを計測し、取引の多いキー(ホットキー)を複数のシャードに分散するクラスです。
+ *
+ * <p>1秒ごとにキーごとのレートを集計し、1つのキーが1シャードの書き込み上限を超えそうな場合は、
+ * キーにソルトを付けて複数のシャードに分散します。ソルトは取引IDから決めるため、同じ取引は常に同じシャードに送信します。
+ * 分散先のシャードは、ストリームのシャードのハッシュキーの範囲と各シャードへの送信レートの見込みから、
+ * 書き込み上限に余裕のあるシャードを選び、明示的なハッシュキーで指定します。
+ * ホットキーでないキーはこれまで通りキーのMD5ハッシュでシャードが決まります。
+ *
+ * <p>スレッドセーフです。
+ */
+public class PartitionKeyRouter {
+
+    private static final Log LOG = LogFactory.getLog(PartitionKeyRouter.class);
+
+    private static final String PREFIX = "stocktrades.routing.";
+
+    // レートを集計する間隔
+    private static final long WINDOW_MILLIS = 1000L;
+
+    // 分散数を減らすレートの割合(分散数が頻繁に増減しないようにする)
+    private static final double SHRINK_RATIO = 0.7;
+
+    /**
+     * 送信先です。
+     */
+    public static final class Route {
+        private final String partitionKey;
+        private final String explicitHashKey;
+        private final int shardIndex;
+
+        Route(String partitionKey, String explicitHashKey, int shardIndex) {
+            this.partitionKey = partitionKey;
+            this.explicitHashKey = explicitHashKey;
+            this.shardIndex = shardIndex;
+        }
+
+        public String getPartitionKey() {
+            return partitionKey;
+        }
+
+        /**
+         * @return 明示的なハッシュキー(パーティションキーでシャードを決める場合はnull)
+         */
+        public String getExplicitHashKey() {
+            return explicitHashKey;
+        }
+    }
+
+    /**
+     * キーごとのレートと送信先です。
+     */
+    private static final class KeyState {
+        final String key;
+        final int naturalShard;
+        final Route unsalted;
+        final LongAdder count = new LongAdder();
+        volatile Route[] routes;
+        // 直前の集計区間のレートと分散数(集計中のみ参照)
+        double rate;
+        int fanOut;
+
+        KeyState(String key, int naturalShard) {
+            this.key = key;
+            this.naturalShard = naturalShard;
+            this.unsalted = new Route(key, null, naturalShard);
+            this.routes = new Route[] {unsalted};
+        }
+    }
+
+    private final ShardMap shardMap;
+    private final double shardRecordsPerSecond;
+    private final double utilization;
+    private final int maxFanOut;
+
+    private final ConcurrentMap<String, KeyState> keys = new ConcurrentHashMap<>();
+    private volatile long windowEndMillis;
+    private long windowStartMillis;
+
+    /**
+     * @param shardMap ストリームのシャード
+     * @param shardRecordsPerSecond シャードあたりの秒間書き込みレコード数の上限
+     * @param utilization 1つのキーに使う書き込み上限の割合(0より大きく1以下)
+     * @param maxFanOut 1つのキーを分散するシャード数の上限
+     */
+    public PartitionKeyRouter(ShardMap shardMap, double shardRecordsPerSecond, double utilization, int maxFanOut) {
+        if (shardRecordsPerSecond <= 0 || utilization <= 0 || utilization > 1 || maxFanOut <= 0) {
+            throw new IllegalArgumentException("Invalid routing budget");
+        }
+        this.shardMap = shardMap;
+        this.shardRecordsPerSecond = shardRecordsPerSecond;
+        this.utilization = utilization;
+        this.maxFanOut = Math.min(maxFanOut, shardMap.shardCount());
+        this.windowStartMillis = System.currentTimeMillis();
+        this.windowEndMillis = windowStartMillis + WINDOW_MILLIS;
+    }
+
+    /**
+     * システムプロパティ(例: -Dstocktrades.routing.enabled=true)の設定で作成します。
+     *
+     * @param shardMap ストリームのシャード
+     * @return ルーター(ルーティングしない場合はnull)
+     */
+    public static PartitionKeyRouter fromSystemProperties(ShardMap shardMap) {
+        if (!Boolean.getBoolean(PREFIX + "enabled")) {
+            return null;
+        }
+        return new PartitionKeyRouter(shardMap,
+                Double.parseDouble(System.getProperty(PREFIX + "shardRecordsPerSecond", "1000")),
+                Double.parseDouble(System.getProperty(PREFIX + "utilization", "0.8")),
+                Integer.getInteger(PREFIX + "maxFanOut", 8));
+    }
+
+    /**
+     * 送信先を決めます。
+     *
+     * @param key パーティションキー
+     * @param tradeId 取引ID(ホットキーのソルトを決めるために使います)
+     * @return 送信先
+     */
+    public Route route(String key, long tradeId) {
+        long now = System.currentTimeMillis();
+        if (now >= windowEndMillis) {
+            rollWindow(now);
+        }
+        KeyState state = keys.get(key);
+        if (state == null) {
+            state = keys.computeIfAbsent(key, k -> new KeyState(k, shardMap.shardOf(k, null)));
+        }
+        state.count.increment();
+        Route[] routes = state.routes;
+        return routes.length == 1 ? routes[0] : routes[(int) Math.floorMod(tradeId, (long) routes.length)];
+    }
+
+    /**
+     * @param route 送信先
+     * @return 送信先のシャードID
+     */
+    public String shardIdOf(Route route) {
+        return shardMap.shardId(route.shardIndex);
+    }
+
+    private synchronized void rollWindow(long now) {
+        if (now < windowEndMillis) {
+            return;
+        }
+        double seconds = Math.max(1L, now - windowStartMillis) / 1000.0;
+        double budget = shardRecordsPerSecond * utilization;
+        double[] shardLoads = new double[shardMap.shardCount()];
+        List<List<KeyState>> shardKeys = new ArrayList<>(shardMap.shardCount());
+        for (int i = 0; i < shardMap.shardCount(); i++) {
+            shardKeys.add(new ArrayList<>());
+        }
+        List<KeyState> routedKeys = new ArrayList<>();
+
+        // 1つのシャードに収まらないキーは分散し、それ以外は本来のシャードに送る見込みで集計する
+        Iterator<Map.Entry<String, KeyState>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            KeyState state = it.next().getValue();
+            long count = state.count.sumThenReset();
+            if (count == 0) {
+                // 送信されなくなったキーは保持しない
+                it.remove();
+                continue;
+            }
+            state.rate = count / seconds;
+            int current = state.routes.length;
+            int fanOut = (int) Math.ceil(state.rate / budget);
+            if (fanOut < current && state.rate > budget * (current - 1) * SHRINK_RATIO) {
+                fanOut = current;
+            }
+            state.fanOut = Math.max(1, Math.min(maxFanOut, fanOut));
+            if (state.fanOut > 1) {
+                routedKeys.add(state);
+            } else {
+                shardLoads[state.naturalShard] += state.rate;
+                shardKeys.get(state.naturalShard).add(state);
+            }
+        }
+
+        // 書き込み上限を超えるシャードからは、レートの高いキーから順に他のシャードに移す
+        for (int shard = 0; shard < shardMap.shardCount(); shard++) {
+            List<KeyState> candidates = shardKeys.get(shard);
+            candidates.sort((a, b) -> Double.compare(b.rate, a.rate));
+            for (int i = 0; i < candidates.size() - 1 && shardLoads[shard] > budget; i++) {
+                KeyState state = candidates.get(i);
+                shardLoads[shard] -= state.rate;
+                routedKeys.add(state);
+                candidates.set(i, null);
+            }
+            for (KeyState state : candidates) {
+                if (state != null && state.routes[0] != state.unsalted) {
+                    state.routes = new Route[] {state.unsalted};
+                }
+            }
+        }
+
+        // 送信レートの高い順に送信先を決める
+        routedKeys.sort((a, b) -> Double.compare(b.rate, a.rate));
+        for (KeyState state : routedKeys) {
+            state.routes = assign(state, shardLoads);
+        }
+
+        windowStartMillis = now;
+        windowEndMillis = now + WINDOW_MILLIS;
+    }
+
+    /**
+     * キーの送信先のシャードを決めます。これまでの送信先の書き込み上限に余裕があれば、送信先を変えません。
+     */
+    private Route[] assign(KeyState state, double[] shardLoads) {
+        int fanOut = state.fanOut;
+        double share = state.rate / fanOut;
+        Route[] current = state.routes;
+        if (current.length == fanOut && current[0] != state.unsalted) {
+            boolean fits = true;
+            for (Route route : current) {
+                if (shardLoads[route.shardIndex] + share > shardRecordsPerSecond) {
+                    fits = false;
+                    break;
+                }
+            }
+            if (fits) {
+                for (Route route : current) {
+                    shardLoads[route.shardIndex] += share;
+                }
+                return current;
+            }
+        }
+
+        // 送信レートの見込みが最も低いシャードから順に選ぶ(同じ場合は本来のシャードを優先する)
+        Route[] routes = new Route[fanOut];
+        boolean[] used = new boolean[shardMap.shardCount()];
+        for (int salt = 0; salt < fanOut; salt++) {
+            int selected = -1;
+            for (int i = 0; i < shardMap.shardCount(); i++) {
+                int shard = (state.naturalShard + i) % shardMap.shardCount();
+                if (!used[shard] && (selected < 0 || shardLoads[shard] < shardLoads[selected])) {
+                    selected = shard;
+                }
+            }
+            used[selected] = true;
+            shardLoads[selected] += share;
+            // 1つのシャードに移すだけの場合はソルトを付けない
+            String partitionKey = fanOut == 1 ? state.key : SaltedPartitionKey.salt(state.key, salt);
+            routes[salt] = new Route(partitionKey, shardMap.midpointHashKey(selected), selected);
+        }
+        if (current.length != fanOut) {
+            LOG.info("Routing partition key " + state.key + " to " + fanOut + " shard(s) at "
+                    + Math.round(state.rate) + " record(s)/s");
+        }
+        return routes;
+    }
+
+}
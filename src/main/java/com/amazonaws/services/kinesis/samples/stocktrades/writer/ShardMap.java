@@ -0,0 +1,173 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * ストリームのオープンなシャードのハッシュキーの範囲から、レコードの送信先のシャードを求めるクラスです。
+ * シャードはハッシュキーの順に0から番号を付けます。
+ * シャードの一覧は作成時のものを使うため、リシャーディング後は作成し直してください。
+ */
+public class ShardMap {
+
+    private static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // シャードを覚えておくキーの数(パーティションキーの種類が多い場合に、メモリを使い過ぎないようにする)
+    private static final int MAX_CACHED_KEYS = 10000;
+
+    private final String[] shardIds;
+    private final BigInteger[] startingHashKeys;
+    private final String[] midpointHashKeys;
+
+    // パーティションキーと明示的なハッシュキーごとのシャード(送信のたびにハッシュを計算しない)
+    private final ConcurrentMap<String, Integer> partitionKeyShards = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> explicitHashKeyShards = new ConcurrentHashMap<>();
+
+    /**
+     * @param shards ストリームのシャード(クローズしたシャードは無視します)
+     */
+    public ShardMap(List<Shard> shards) {
+        List<Shard> openShards = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.sequenceNumberRange() == null || shard.sequenceNumberRange().endingSequenceNumber() == null) {
+                openShards.add(shard);
+            }
+        }
+        if (openShards.isEmpty()) {
+            throw new IllegalArgumentException("No open shards");
+        }
+        openShards.sort((a, b) -> new BigInteger(a.hashKeyRange().startingHashKey())
+                .compareTo(new BigInteger(b.hashKeyRange().startingHashKey())));
+        int shardCount = openShards.size();
+        this.shardIds = new String[shardCount];
+        this.startingHashKeys = new BigInteger[shardCount];
+        this.midpointHashKeys = new String[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            Shard shard = openShards.get(i);
+            BigInteger start = new BigInteger(shard.hashKeyRange().startingHashKey());
+            BigInteger end = new BigInteger(shard.hashKeyRange().endingHashKey());
+            shardIds[i] = shard.shardId();
+            startingHashKeys[i] = start;
+            midpointHashKeys[i] = start.add(end).shiftRight(1).toString();
+        }
+    }
+
+    /**
+     * シャードの一覧が分からない場合に、ストリーム全体を1つのシャードとみなすマップを作成します。
+     *
+     * @return ストリーム全体を1つのシャードとみなすマップ
+     */
+    public static ShardMap wholeStream() {
+        return new ShardMap(Collections.singletonList(Shard.builder()
+                .shardId("stream")
+                .hashKeyRange(HashKeyRange.builder()
+                        .startingHashKey("0")
+                        .endingHashKey(MAX_HASH_KEY.toString())
+                        .build())
+                .build()));
+    }
+
+    /**
+     * ストリームのシャードを取得して作成します。
+     *
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @return シャードのマップ
+     */
+    public static ShardMap fromStream(KinesisAsyncClient kinesisClient, String streamName)
+            throws InterruptedException, ExecutionException {
+        List<Shard> shards = new ArrayList<>();
+        String exclusiveStartShardId = null;
+        while (true) {
+            DescribeStreamResponse response = kinesisClient.describeStream(DescribeStreamRequest.builder()
+                    .streamName(streamName)
+                    .exclusiveStartShardId(exclusiveStartShardId)
+                    .build()).get();
+            List<Shard> page = response.streamDescription().shards();
+            shards.addAll(page);
+            if (!Boolean.TRUE.equals(response.streamDescription().hasMoreShards()) || page.isEmpty()) {
+                break;
+            }
+            exclusiveStartShardId = page.get(page.size() - 1).shardId();
+        }
+        return new ShardMap(shards);
+    }
+
+    /**
+     * @return シャード数
+     */
+    public int shardCount() {
+        return shardIds.length;
+    }
+
+    /**
+     * @param partitionKey パーティションキー
+     * @param explicitHashKey 明示的なハッシュキー(パーティションキーでシャードを決める場合はnull)
+     * @return 送信先のシャードの番号
+     */
+    public int shardOf(String partitionKey, String explicitHashKey) {
+        if (shardIds.length == 1) {
+            return 0;
+        }
+        ConcurrentMap<String, Integer> cache = explicitHashKey != null ? explicitHashKeyShards : partitionKeyShards;
+        String key = explicitHashKey != null ? explicitHashKey : partitionKey;
+        Integer cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int shard = computeShard(partitionKey, explicitHashKey);
+        if (cache.size() < MAX_CACHED_KEYS) {
+            cache.put(key, shard);
+        }
+        return shard;
+    }
+
+    private int computeShard(String partitionKey, String explicitHashKey) {
+        BigInteger hashKey = explicitHashKey != null
+                ? new BigInteger(explicitHashKey)
+                : new BigInteger(1, MD5.get().digest(partitionKey.getBytes(StandardCharsets.UTF_8)));
+        int index = Arrays.binarySearch(startingHashKeys, hashKey);
+        // 開始ハッシュキーがハッシュキー以下の最後のシャード
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * @param shard シャードの番号
+     * @return シャードID
+     */
+    public String shardId(int shard) {
+        return shardIds[shard];
+    }
+
+    /**
+     * @param shard シャードの番号
+     * @return シャードのハッシュキーの範囲の中央のハッシュキー
+     */
+    public String midpointHashKey(int shard) {
+        return midpointHashKeys[shard];
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.AggregatedRecord;
+
+/**
+ * パーティションキーごとに株式取引のレコードを集約するクラスです。
+ */
+class StockTradeAggregator {
+
+    /**
+     * 集約済みのレコードを受け取るインターフェースです。
+     */
+    interface RecordSink {
+        void accept(String partitionKey, String explicitHashKey, byte[] data) throws InterruptedException;
+    }
+
+    /**
+     * 集約中のレコードと送信先のハッシュキーです。
+     */
+    private static class PendingRecord {
+        final AggregatedRecord.Builder builder;
+        String explicitHashKey;
+
+        PendingRecord(AggregatedRecord.Builder builder, String explicitHashKey) {
+            this.builder = builder;
+            this.explicitHashKey = explicitHashKey;
+        }
+    }
+
+    private final int maxAggregatedRecordBytes;
+
+    // パーティションキーごとの集約中のレコード
+    private final Map<String, PendingRecord> pendingRecords = new HashMap<>();
+
+    /**
+     * @param maxAggregatedRecordBytes 集約レコードの最大サイズ
+     */
+    StockTradeAggregator(int maxAggregatedRecordBytes) {
+        this.maxAggregatedRecordBytes = maxAggregatedRecordBytes;
+    }
+
+    /**
+     * レコードを集約します。集約レコードが最大サイズに達した場合はsinkに渡します。
+     *
+     * @param partitionKey パーティションキー
+     * @param explicitHashKey 明示的なハッシュキー(パーティションキーでシャードを決める場合はnull)
+     * @param data データ
+     * @param sink 集約済みのレコードを受け取る処理
+     */
+    synchronized void add(String partitionKey, String explicitHashKey, byte[] data, RecordSink sink)
+            throws InterruptedException {
+        PendingRecord pending = pendingRecords.get(partitionKey);
+        if (pending == null) {
+            pending = new PendingRecord(new AggregatedRecord.Builder(maxAggregatedRecordBytes), explicitHashKey);
+            pendingRecords.put(partitionKey, pending);
+        }
+        AggregatedRecord.Builder builder = pending.builder;
+        if (!Objects.equals(pending.explicitHashKey, explicitHashKey)) {
+            // 送信先が変わった場合は、それまでのレコードを元の送信先に送る
+            if (builder.count() > 0) {
+                sink.accept(partitionKey, pending.explicitHashKey, builder.build());
+            }
+            pending.explicitHashKey = explicitHashKey;
+        }
+        if (!builder.fits(data.length)) {
+            if (builder.count() == 0) {
+                // 単独でも最大サイズを超えるレコードは集約せずに送信する
+                sink.accept(partitionKey, explicitHashKey, data);
+                return;
+            }
+            sink.accept(partitionKey, explicitHashKey, builder.build());
+        }
+        builder.add(data);
+    }
+
+    /**
+     * 集約中の全てのレコードをsinkに渡します。
+     *
+     * @param sink 集約済みのレコードを受け取る処理
+     */
+    synchronized void flush(RecordSink sink) throws InterruptedException {
+        Iterator<Map.Entry<String, PendingRecord>> it = pendingRecords.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PendingRecord> entry = it.next();
+            PendingRecord pending = entry.getValue();
+            if (pending.builder.count() > 0) {
+                sink.accept(entry.getKey(), pending.explicitHashKey, pending.builder.build());
+            }
+            // 流れてこなくなったキーのBuilderを残さない
+            it.remove();
+        }
+    }
+
+}
@@ -0,0 +1,625 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * 株式取引情報をまとめてPutRecordsで送信するクラスです。
+ * 500件、5MB、または滞留時間(linger)のいずれかに達した時点でバッチを送信し、
+ * 複数のバッチを同時に送信中(in-flight)にできます。
+ * 集約を有効にした場合は、同じパーティションキーの取引を1つのレコードにまとめてから送信します。
+ * ルーターを指定した場合は、取引の多い銘柄を複数のシャードに分散して送信します。
+ *
+ * <p>送信待ちのレコードは上限のあるバッファにシャードごとに保持し、
+ * バッファが一杯の場合は設定に応じて送信元を待機させるか、レコードを破棄します。
+ * スロットリングされたシャードには{@link AdaptiveShardLimiter}で送信レートを調整しながら送信し、
+ * 失敗したレコードはジッター付きの指数バックオフの後にシャードの先頭に戻して再送します。
+ */
+public class StockTradeBatchProducer implements AutoCloseable {
+
+    private static final Log LOG = LogFactory.getLog(StockTradeBatchProducer.class);
+
+    // PutRecordsの1リクエストあたりの上限
+    static final int MAX_BATCH_RECORDS = 500;
+    static final int MAX_BATCH_BYTES = 5 * 1024 * 1024;
+    static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    private static final String THROTTLED_ERROR_CODE = "ProvisionedThroughputExceededException";
+
+    /**
+     * 送信待ちのレコードです。
+     */
+    private static final class BufferedRecord {
+        final PutRecordsRequestEntry entry;
+        final int size;
+        final int shard;
+        final long enqueuedNanos;
+        int attempts;
+
+        BufferedRecord(PutRecordsRequestEntry entry, int size, int shard, long enqueuedNanos) {
+            this.entry = entry;
+            this.size = size;
+            this.shard = shard;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final KinesisAsyncClient kinesisClient;
+    private final String streamName;
+    private final long lingerNanos;
+    private final StockTradeCodec.Format format;
+    private final BatchProducerConfig config;
+
+    // 同時に送信中にできるバッチ数
+    private final Semaphore inFlightBatches;
+
+    // 送信バッファの空き(送信中と再送待ちのレコードも枠を使う)
+    private final Semaphore bufferSlots;
+
+    // 集約中のレコードの滞留時間の確認用
+    private final ScheduledExecutorService flusher = newDaemonScheduler("stock-trade-batch-flusher");
+    // 再送用
+    private final ScheduledExecutorService scheduler = newDaemonScheduler("stock-trade-batch-retry");
+    // バッチの送信用
+    private final Thread dispatcher;
+
+    // レコードの集約(集約しない場合はnull)
+    private final StockTradeAggregator aggregator;
+
+    // ホットキーの分散(分散しない場合はnull)
+    private final PartitionKeyRouter router;
+
+    private final ShardMap shardMap;
+
+    // 以下はthisで同期する
+    // シャードごとの送信待ちのレコード
+    private final ArrayDeque<BufferedRecord>[] queues;
+    private int queuedRecords;
+    private final AdaptiveShardLimiter limiter;
+    // 次のバッチで最初にレコードを取り出すシャード
+    private int nextShard;
+    // 送信するバッチがない場合に、送信スレッドが次に起きる時刻
+    // (送信待ちのレコードがない場合はLong.MAX_VALUE、in-flightの枠や起こした後の確認を待つ場合はLong.MIN_VALUE)
+    private long wakeUpNanos = Long.MIN_VALUE;
+
+    // この時刻までに追加したレコードは滞留時間に関わらず送信する
+    private volatile long flushUpToNanos = Long.MIN_VALUE;
+
+    private final LongAdder droppedRecords = new LongAdder();
+    private final LongAdder retriedRecords = new LongAdder();
+    private final LongAdder throttledRecords = new LongAdder();
+    private final LongAdder failedRecords = new LongAdder();
+
+    private volatile boolean closed;
+    private volatile boolean stopped;
+
+    /**
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @param lingerMillis バッチを送信するまでの最大滞留時間
+     * @param maxInFlightBatches 同時に送信中にできるバッチ数
+     */
+    public StockTradeBatchProducer(KinesisAsyncClient kinesisClient, String streamName,
+                                   long lingerMillis, int maxInFlightBatches) {
+        this(kinesisClient, streamName, lingerMillis, maxInFlightBatches, 0, StockTradeCodec.Format.JSON);
+    }
+
+    /**
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @param lingerMillis バッチを送信するまでの最大滞留時間
+     * @param maxInFlightBatches 同時に送信中にできるバッチ数
+     * @param maxAggregatedRecordBytes 集約レコードの最大サイズ(0の場合は集約しない)
+     * @param format 株式取引のデータ形式
+     */
+    public StockTradeBatchProducer(KinesisAsyncClient kinesisClient, String streamName,
+                                   long lingerMillis, int maxInFlightBatches, int maxAggregatedRecordBytes,
+                                   StockTradeCodec.Format format) {
+        this(kinesisClient, streamName, lingerMillis, maxInFlightBatches, maxAggregatedRecordBytes, format, null);
+    }
+
+    /**
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @param lingerMillis バッチを送信するまでの最大滞留時間
+     * @param maxInFlightBatches 同時に送信中にできるバッチ数
+     * @param maxAggregatedRecordBytes 集約レコードの最大サイズ(0の場合は集約しない)
+     * @param format 株式取引のデータ形式
+     * @param router ホットキーの分散(分散しない場合はnull)
+     */
+    public StockTradeBatchProducer(KinesisAsyncClient kinesisClient, String streamName,
+                                   long lingerMillis, int maxInFlightBatches, int maxAggregatedRecordBytes,
+                                   StockTradeCodec.Format format, PartitionKeyRouter router) {
+        this(kinesisClient, streamName, lingerMillis, maxInFlightBatches, maxAggregatedRecordBytes, format, router,
+                ShardMap.wholeStream(), BatchProducerConfig.defaults());
+    }
+
+    /**
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @param lingerMillis バッチを送信するまでの最大滞留時間
+     * @param maxInFlightBatches 同時に送信中にできるバッチ数
+     * @param maxAggregatedRecordBytes 集約レコードの最大サイズ(0の場合は集約しない)
+     * @param format 株式取引のデータ形式
+     * @param router ホットキーの分散(分散しない場合はnull)
+     * @param shardMap ストリームのシャード(送信レートをシャードごとに調整するために使います)
+     * @param config 送信バッファと再送の設定
+     */
+    public StockTradeBatchProducer(KinesisAsyncClient kinesisClient, String streamName,
+                                   long lingerMillis, int maxInFlightBatches, int maxAggregatedRecordBytes,
+                                   StockTradeCodec.Format format, PartitionKeyRouter router,
+                                   ShardMap shardMap, BatchProducerConfig config) {
+        if (lingerMillis <= 0 || maxInFlightBatches <= 0) {
+            throw new IllegalArgumentException("lingerMillis and maxInFlightBatches must be positive");
+        }
+        this.kinesisClient = kinesisClient;
+        this.streamName = streamName;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.format = format;
+        this.config = config;
+        this.inFlightBatches = new Semaphore(maxInFlightBatches);
+        this.bufferSlots = new Semaphore(config.getBufferRecords());
+        this.aggregator = maxAggregatedRecordBytes > 0
+                ? new StockTradeAggregator(Math.min(maxAggregatedRecordBytes, MAX_RECORD_BYTES))
+                : null;
+        this.router = router;
+        this.shardMap = shardMap;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ArrayDeque<BufferedRecord>[] queues = new ArrayDeque[shardMap.shardCount()];
+        this.queues = queues;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        this.limiter = new AdaptiveShardLimiter(shardMap, config);
+        if (aggregator != null) {
+            flusher.scheduleWithFixedDelay(this::flushAggregator, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+        this.dispatcher = new Thread(this::dispatch, "stock-trade-batch-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * 株式取引情報を送信バッファに追加します。
+     * 送信バッファが一杯の場合は、設定に応じて空きができるまで待機するか、取引情報を破棄します。
+     *
+     * @param trade 株式取引情報
+     */
+    public void send(StockTrade trade) throws InterruptedException {
+        byte[] bytes;
+        try {
+            bytes = StockTradeCodec.encode(trade, format);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Could not encode stock trade: " + trade, e);
+            return;
+        }
+        if (router == null) {
+            send(trade.getTickerSymbol(), null, bytes);
+            return;
+        }
+        PartitionKeyRouter.Route route = router.route(trade.getTickerSymbol(), trade.getId());
+        send(route.getPartitionKey(), route.getExplicitHashKey(), bytes);
+    }
+
+    /**
+     * パーティションキーとデータを送信バッファに追加します。
+     *
+     * @param partitionKey パーティションキー
+     * @param data データ
+     */
+    public void send(String partitionKey, byte[] data) throws InterruptedException {
+        send(partitionKey, null, data);
+    }
+
+    /**
+     * パーティションキーとデータを送信バッファに追加します。
+     *
+     * @param partitionKey パーティションキー
+     * @param explicitHashKey 明示的なハッシュキー(パーティションキーでシャードを決める場合はnull)
+     * @param data データ
+     */
+    public void send(String partitionKey, String explicitHashKey, byte[] data) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Producer is closed");
+        }
+        if (aggregator != null) {
+            aggregator.add(partitionKey, explicitHashKey, data, this::enqueue);
+        } else {
+            enqueue(partitionKey, explicitHashKey, data);
+        }
+    }
+
+    private void enqueue(String partitionKey, String explicitHashKey, byte[] data) throws InterruptedException {
+        int size = recordSize(partitionKey, data);
+        if (size > MAX_RECORD_BYTES) {
+            LOG.warn("Skipping record larger than " + MAX_RECORD_BYTES + " bytes. Partition Key: " + partitionKey);
+            return;
+        }
+        if (config.getOverflowPolicy() == BatchProducerConfig.OverflowPolicy.DROP) {
+            if (!bufferSlots.tryAcquire()) {
+                droppedRecords.increment();
+                return;
+            }
+        } else {
+            bufferSlots.acquire();
+        }
+        PutRecordsRequestEntry entry = PutRecordsRequestEntry.builder()
+                .partitionKey(partitionKey)
+                .explicitHashKey(explicitHashKey)
+                .data(SdkBytes.fromByteArray(data))
+                .build();
+        BufferedRecord record = new BufferedRecord(entry, size, shardMap.shardOf(partitionKey, explicitHashKey),
+                System.nanoTime());
+
+        boolean wakeUp;
+        synchronized (this) {
+            queues[record.shard].addLast(record);
+            // バッチが一杯になるか、送信スレッドが起きる時刻より前に滞留時間に達する場合は起こす
+            wakeUp = ++queuedRecords >= MAX_BATCH_RECORDS || record.enqueuedNanos + lingerNanos < wakeUpNanos;
+            if (wakeUp) {
+                wakeUpNanos = Long.MIN_VALUE;
+            }
+        }
+        if (wakeUp) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /**
+     * 送信バッファのレコードを滞留時間に関わらず送信します。送信の完了は待ちません。
+     */
+    public void flush() throws InterruptedException {
+        if (aggregator != null) {
+            aggregator.flush(this::enqueue);
+        }
+        flushUpToNanos = System.nanoTime();
+        LockSupport.unpark(dispatcher);
+    }
+
+    /**
+     * 送信バッファのレコードを送信し、再送を含めて全て完了するまで待機します。
+     * 待機中に割り込まれた場合は送信を打ち切り、割り込み状態を戻して返ります(残りのレコードは送信しません)。
+     */
+    @Override
+    public void close() {
+        try {
+            if (aggregator != null) {
+                aggregator.flush(this::enqueue);
+            }
+            closed = true;
+            flushUpToNanos = Long.MAX_VALUE;
+            LockSupport.unpark(dispatcher);
+            bufferSlots.acquire(config.getBufferRecords());
+            bufferSlots.release(config.getBufferRecords());
+            stopped = true;
+            LockSupport.unpark(dispatcher);
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            closed = true;
+            stopped = true;
+            LockSupport.unpark(dispatcher);
+            Thread.currentThread().interrupt();
+        } finally {
+            flusher.shutdown();
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * @return 送信バッファが一杯で破棄したレコード数
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * @return 再送したレコード数
+     */
+    public long getRetriedRecords() {
+        return retriedRecords.sum();
+    }
+
+    /**
+     * @return スロットリングされたレコード数
+     */
+    public long getThrottledRecords() {
+        return throttledRecords.sum();
+    }
+
+    /**
+     * @return 最大送信回数に達しても送信できなかったレコード数
+     */
+    public long getFailedRecords() {
+        return failedRecords.sum();
+    }
+
+    private void flushAggregator() {
+        try {
+            aggregator.flush(this::enqueue);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * バッチを取り出して送信します。送信するバッチがない場合は、次に取り出せるようになる時刻まで待機します。
+     * 待機中はレコードの追加、再送待ちのレコードの戻し、送信の完了、flushで起こされます。
+     */
+    private void dispatch() {
+        while (!stopped) {
+            List<BufferedRecord> batch = null;
+            long now = System.nanoTime();
+            long wakeUp = Long.MIN_VALUE;
+            boolean acquired = inFlightBatches.tryAcquire();
+            synchronized (this) {
+                if (acquired) {
+                    batch = takeBatch(now);
+                    if (batch == null) {
+                        wakeUp = nextDispatchNanos(now);
+                    }
+                }
+                wakeUpNanos = wakeUp;
+            }
+            if (batch != null) {
+                putRecords(batch);
+                continue;
+            }
+            if (acquired) {
+                inFlightBatches.release();
+            }
+            if (wakeUp == Long.MIN_VALUE || wakeUp == Long.MAX_VALUE) {
+                // in-flightの枠が空くか、レコードが追加されるまで待つ
+                LockSupport.park(this);
+            } else if (wakeUp > now) {
+                LockSupport.parkNanos(this, wakeUp - now);
+            }
+        }
+    }
+
+    /**
+     * 送信するバッチを取り出します。500件に満たない場合は、滞留時間に達したレコードがある場合のみ取り出します。
+     * 送信レートを制限しているシャードからは、送信できる数だけ取り出します。
+     *
+     * @return バッチ(送信するものがない場合はnull)
+     */
+    private List<BufferedRecord> takeBatch(long now) {
+        if (queuedRecords == 0) {
+            return null;
+        }
+        long flushUpTo = Math.max(flushUpToNanos, now - lingerNanos);
+        int[] allowances = new int[queues.length];
+        long eligible = 0;
+        boolean lingered = false;
+        for (int shard = 0; shard < queues.length; shard++) {
+            ArrayDeque<BufferedRecord> queue = queues[shard];
+            if (queue.isEmpty()) {
+                continue;
+            }
+            int allowance = Math.min(queue.size(), limiter.available(shard, now));
+            if (allowance <= 0) {
+                continue;
+            }
+            allowances[shard] = allowance;
+            eligible += allowance;
+            // 送信レートを制限しているシャードは、まとめて送信できるまで待つ
+            if (queue.peekFirst().enqueuedNanos <= flushUpTo
+                    && (allowance == queue.size() || allowance >= limiter.burst(shard))) {
+                lingered = true;
+            }
+        }
+        if (eligible == 0 || (eligible < MAX_BATCH_RECORDS && !lingered)) {
+            return null;
+        }
+
+        // シャードを順番に1件ずつ取り出し、特定のシャードのレコードばかりにならないようにする
+        List<BufferedRecord> batch = new ArrayList<>((int) Math.min(eligible, MAX_BATCH_RECORDS));
+        int[] taken = new int[queues.length];
+        int batchBytes = 0;
+        boolean progress = true;
+        while (progress && batch.size() < MAX_BATCH_RECORDS) {
+            progress = false;
+            for (int i = 0; i < queues.length && batch.size() < MAX_BATCH_RECORDS; i++) {
+                int shard = (nextShard + i) % queues.length;
+                if (taken[shard] >= allowances[shard]) {
+                    continue;
+                }
+                BufferedRecord record = queues[shard].peekFirst();
+                if (batchBytes + record.size > MAX_BATCH_BYTES) {
+                    continue;
+                }
+                queues[shard].pollFirst();
+                batch.add(record);
+                batchBytes += record.size;
+                taken[shard]++;
+                progress = true;
+            }
+        }
+        nextShard = (nextShard + 1) % queues.length;
+        for (int shard = 0; shard < queues.length; shard++) {
+            if (taken[shard] > 0) {
+                limiter.consume(shard, taken[shard], now);
+            }
+        }
+        queuedRecords -= batch.size();
+        return batch;
+    }
+
+    /**
+     * 送信待ちのレコードが滞留時間に達し、かつ送信レートの制限で送信できるようになる最も早い時刻を返します。
+     *
+     * @return 時刻(ナノ秒、送信待ちのレコードがない場合は{@link Long#MAX_VALUE})
+     */
+    private long nextDispatchNanos(long now) {
+        long flushUpTo = flushUpToNanos;
+        long next = Long.MAX_VALUE;
+        for (int shard = 0; shard < queues.length; shard++) {
+            ArrayDeque<BufferedRecord> queue = queues[shard];
+            if (queue.isEmpty()) {
+                continue;
+            }
+            long enqueuedNanos = queue.peekFirst().enqueuedNanos;
+            long lingered = enqueuedNanos <= flushUpTo ? now : enqueuedNanos + lingerNanos;
+            int records = Math.min(queue.size(), limiter.burst(shard));
+            long available = now + limiter.nanosUntilAvailable(shard, records, now);
+            next = Math.min(next, Math.max(lingered, available));
+        }
+        return next;
+    }
+
+    /**
+     * バッチを送信します。呼び出し元でin-flightの枠を確保している必要があり、枠は送信が完了した時点で解放されます。
+     * 失敗したレコードは再送待ちにするため、再送の完了は待ちません。
+     */
+    private void putRecords(List<BufferedRecord> batch) {
+        List<PutRecordsRequestEntry> entries = new ArrayList<>(batch.size());
+        for (BufferedRecord record : batch) {
+            record.attempts++;
+            entries.add(record.entry);
+        }
+        PutRecordsRequest request = PutRecordsRequest.builder()
+                .streamName(streamName)
+                .records(entries)
+                .build();
+        kinesisClient.putRecords(request).whenComplete((response, error) -> {
+            try {
+                if (error != null) {
+                    onRequestFailed(batch, error);
+                } else {
+                    onResponse(batch, response);
+                }
+            } finally {
+                inFlightBatches.release();
+                LockSupport.unpark(dispatcher);
+            }
+        });
+    }
+
+    private void onRequestFailed(List<BufferedRecord> batch, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof ProvisionedThroughputExceededException) {
+            throttledRecords.add(batch.size());
+            synchronized (this) {
+                long now = System.nanoTime();
+                for (BufferedRecord record : batch) {
+                    limiter.onThrottle(record.shard, now);
+                }
+            }
+        } else {
+            LOG.error("Exception while sending " + batch.size() + " record(s) to Kinesis.", error);
+        }
+        retry(batch);
+    }
+
+    private void onResponse(List<BufferedRecord> batch, PutRecordsResponse response) {
+        List<BufferedRecord> failed = new ArrayList<>();
+        int succeeded = 0;
+        int throttled = 0;
+        String errorMessage = null;
+        boolean anyFailed = response.failedRecordCount() != null && response.failedRecordCount() > 0;
+        List<PutRecordsResultEntry> results = response.records();
+        synchronized (this) {
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                BufferedRecord record = batch.get(i);
+                String errorCode = anyFailed ? results.get(i).errorCode() : null;
+                if (errorCode == null) {
+                    limiter.onSuccess(record.shard, now);
+                    succeeded++;
+                } else {
+                    if (THROTTLED_ERROR_CODE.equals(errorCode)) {
+                        limiter.onThrottle(record.shard, now);
+                        throttled++;
+                    } else {
+                        errorMessage = errorCode + ": " + results.get(i).errorMessage();
+                    }
+                    failed.add(record);
+                }
+            }
+        }
+        if (succeeded > 0) {
+            bufferSlots.release(succeeded);
+        }
+        if (failed.isEmpty()) {
+            return;
+        }
+        throttledRecords.add(throttled);
+        if (errorMessage != null) {
+            LOG.warn((failed.size() - throttled) + " of " + batch.size() + " record(s) failed. " + errorMessage);
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug(throttled + " of " + batch.size() + " record(s) throttled.");
+        }
+        retry(failed);
+    }
+
+    /**
+     * 最大送信回数に達していないレコードを、待機時間の後にシャードの先頭に戻します。
+     */
+    private void retry(List<BufferedRecord> records) {
+        List<BufferedRecord> retries = new ArrayList<>(records.size());
+        int attempts = 0;
+        for (BufferedRecord record : records) {
+            if (record.attempts >= config.getMaxAttempts()) {
+                failedRecords.increment();
+                bufferSlots.release();
+            } else {
+                retries.add(record);
+                attempts = Math.max(attempts, record.attempts);
+            }
+        }
+        if (retries.size() < records.size()) {
+            LOG.error("Giving up on " + (records.size() - retries.size()) + " record(s) after "
+                    + config.getMaxAttempts() + " attempt(s).");
+        }
+        if (retries.isEmpty()) {
+            return;
+        }
+        retriedRecords.add(retries.size());
+        scheduler.schedule(() -> requeue(retries), config.backoffMillis(attempts), TimeUnit.MILLISECONDS);
+    }
+
+    private void requeue(List<BufferedRecord> records) {
+        synchronized (this) {
+            for (int i = records.size() - 1; i >= 0; i--) {
+                BufferedRecord record = records.get(i);
+                queues[record.shard].addFirst(record);
+            }
+            queuedRecords += records.size();
+        }
+        LockSupport.unpark(dispatcher);
+    }
+
+    private static ScheduledExecutorService newDaemonScheduler(String name) {
+        return Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static int recordSize(String partitionKey, byte[] data) {
+        return partitionKey.getBytes(StandardCharsets.UTF_8).length + data.length;
+    }
+
+}
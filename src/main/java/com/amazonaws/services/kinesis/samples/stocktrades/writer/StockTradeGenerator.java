@@ -2,15 +2,19 @@ package com.amazonaws.services.kinesis.samples.stocktrades.writer;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TradeIds;
 
 /**
  * 株式取引情報を生成するクラスです。
+ * 25銘柄から一様に選び、基準価格の±20%の価格で取引を生成します。
+ * 乱数はスレッドごとに持つため、複数のスレッドから競合せずに呼び出せます。
+ * 取引IDは{@link TradeIds}でプロセスのライターIDと連番から生成します。
  */
-public class StockTradeGenerator {
+public class StockTradeGenerator implements TradeWorkload {
 
     private static final List<StockPrice> STOCK_PRICES = new ArrayList<StockPrice>();
     static {
@@ -47,10 +51,13 @@ public class StockTradeGenerator {
 
     private static final double PROBABILITY_SELL = 0.4;
 
-    private final Random random = new Random();
-    private AtomicLong id = new AtomicLong(1);
-
     public StockTrade getRandomTrade() {
+        return nextTrade(new StockTradeView()).toStockTrade();
+    }
+
+    @Override
+    public StockTradeView nextTrade(StockTradeView trade) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
         StockPrice stockPrice = STOCK_PRICES.get(random.nextInt(STOCK_PRICES.size()));
         double deviation = (random.nextDouble() - 0.5) * 2.0 * MAX_DEVIATION;
         double price = stockPrice.price * (1 + deviation);
@@ -63,7 +70,29 @@ public class StockTradeGenerator {
 
         long quantity = random.nextInt(MAX_QUANTITY) + 1;
 
-        return new StockTrade(stockPrice.tickerSymbol, tradeType, price, quantity, id.getAndIncrement());
+        return trade.set(stockPrice.tickerSymbol, tradeType, price, quantity, TradeIds.nextId());
+    }
+
+    /**
+     * @return 生成する銘柄
+     */
+    static String[] tickerSymbols() {
+        String[] tickerSymbols = new String[STOCK_PRICES.size()];
+        for (int i = 0; i < tickerSymbols.length; i++) {
+            tickerSymbols[i] = STOCK_PRICES.get(i).tickerSymbol;
+        }
+        return tickerSymbols;
+    }
+
+    /**
+     * @return 生成する銘柄の基準価格
+     */
+    static double[] basePrices() {
+        double[] basePrices = new double[STOCK_PRICES.size()];
+        for (int i = 0; i < basePrices.length; i++) {
+            basePrices[i] = STOCK_PRICES.get(i).price;
+        }
+        return basePrices;
     }
 
     private static class StockPrice {
@@ -0,0 +1,269 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.kinesis.common.KinesisClientUtil;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.metrics.LatencyHistogram;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+
+/**
+ * 指定したレートで株式取引情報を送信し、送信のレイテンシを計測する負荷生成クラスです。
+ *
+ * <p>送信はオープンループで行います。各取引の送信予定の時刻は開始時刻とレートから決め、
+ * 前の送信の完了を待たずに非同期に送信します。レイテンシは実際に送信した時刻ではなく予定の時刻から計測するため、
+ * 送信中のリクエスト数が上限に達して送信が遅れた場合も、その待ち時間がレイテンシに含まれます。
+ * スロットリングや失敗で完了した送信もレイテンシに含め、成功と失敗に分けた値も報告します。
+ * 各スレッドはワークロードを1つずつ持ち、レートを等分して送信します。
+ * ワークロードがバーストを指定した場合は、その間の送信予定の間隔を短くします。
+ */
+public class StockTradeLoadGenerator {
+
+    private static final Log LOG = LogFactory.getLog(StockTradeLoadGenerator.class);
+
+    // レコードのデータ形式を指定するシステムプロパティ
+    private static final String FORMAT_PROPERTY = "stocktrades.format";
+
+    private static final double[] REPORT_PERCENTILES = {50.0, 90.0, 99.0, 99.9, 99.99};
+
+    private final KinesisAsyncClient kinesisClient;
+    private final String streamName;
+    private final StockTradeCodec.Format format;
+    private final double recordsPerSecond;
+    private final TradeWorkload[] workloads;
+    private final PartitionKeyRouter router;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    // 予定の時刻から送信が完了するまでの時間(全ての送信、成功した送信、スロットリングまたは失敗した送信)
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final LatencyHistogram successLatencyMicros = new LatencyHistogram();
+    private final LatencyHistogram errorLatencyMicros = new LatencyHistogram();
+    // 予定の時刻から送信を開始するまでの時間(負荷生成側の遅れ)
+    private final LatencyHistogram sendDelayMicros = new LatencyHistogram();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private long elapsedNanos;
+
+    /**
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @param format データ形式
+     * @param recordsPerSecond 秒間の送信レコード数
+     * @param workloads 送信するスレッドごとのワークロード(要素数がスレッド数)
+     * @param maxInFlight 同時に送信中にできるリクエスト数
+     * @param router ホットキーの分散(分散しない場合はnull)
+     */
+    public StockTradeLoadGenerator(KinesisAsyncClient kinesisClient, String streamName,
+                                   StockTradeCodec.Format format, double recordsPerSecond, TradeWorkload[] workloads,
+                                   int maxInFlight, PartitionKeyRouter router) {
+        if (recordsPerSecond <= 0 || workloads.length == 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("recordsPerSecond, workloads and maxInFlight must be positive");
+        }
+        this.kinesisClient = kinesisClient;
+        this.streamName = streamName;
+        this.format = format;
+        this.recordsPerSecond = recordsPerSecond;
+        this.workloads = workloads.clone();
+        this.maxInFlight = maxInFlight;
+        this.router = router;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * 指定した時間だけ送信し、送信中のリクエストが全て完了するまで待機します。
+     *
+     * @param durationMillis 送信する時間
+     */
+    public void run(long durationMillis) throws InterruptedException {
+        // 初回の変換でのクラスの読み込みを送信予定の遅れに含めない
+        StockTradeCodec.encode(new StockTradeGenerator().getRandomTrade(), format);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        Thread[] senders = new Thread[workloads.length];
+        for (int i = 0; i < senders.length; i++) {
+            int index = i;
+            senders[i] = new Thread(() -> send(index, startNanos, endNanos), "stock-trade-load-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        elapsedNanos = System.nanoTime() - startNanos;
+    }
+
+    private void send(int index, long startNanos, long endNanos) {
+        TradeWorkload workload = workloads[index];
+        StockTradeView view = new StockTradeView();
+        // スレッドごとの送信間隔。スレッド間で送信予定をずらす
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) * workloads.length / recordsPerSecond;
+        double offsetNanos = intervalNanos * index / workloads.length;
+        while (true) {
+            long intendedNanos = startNanos + (long) offsetNanos;
+            if (intendedNanos >= endNanos) {
+                return;
+            }
+            offsetNanos += intervalNanos
+                    / workload.rateMultiplier(TimeUnit.NANOSECONDS.toMillis(intendedNanos - startNanos));
+            long waitNanos;
+            while ((waitNanos = intendedNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+
+            StockTrade trade = workload.nextTrade(view).toStockTrade();
+            byte[] bytes;
+            try {
+                bytes = StockTradeCodec.encode(trade, format);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Could not encode stock trade: " + trade, e);
+                failed.increment();
+                continue;
+            }
+            PutRecordRequest.Builder builder = PutRecordRequest.builder();
+            if (router != null) {
+                PartitionKeyRouter.Route route = router.route(trade.getTickerSymbol(), trade.getId());
+                builder.partitionKey(route.getPartitionKey()).explicitHashKey(route.getExplicitHashKey());
+            } else {
+                builder.partitionKey(trade.getTickerSymbol());
+            }
+            PutRecordRequest request = builder
+                    .streamName(streamName)
+                    .data(SdkBytes.fromByteArray(bytes))
+                    .build();
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            sendDelayMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos));
+            try {
+                kinesisClient.putRecord(request).whenComplete((response, error) -> {
+                    try {
+                        recordResult(intendedNanos, error);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // 送信前に例外になった場合も許可を返し、失敗として数える
+                try {
+                    recordResult(intendedNanos, e);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        }
+    }
+
+    private void recordResult(long intendedNanos, Throwable error) {
+        long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedNanos);
+        latencyMicros.record(latency);
+        if (error == null) {
+            successLatencyMicros.record(latency);
+            succeeded.increment();
+        } else {
+            errorLatencyMicros.record(latency);
+            if (unwrap(error) instanceof ProvisionedThroughputExceededException) {
+                throttled.increment();
+            } else {
+                LOG.debug("Exception while sending data to Kinesis.", error);
+                failed.increment();
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    /**
+     * @return 送信結果とレイテンシのパーセンタイルのレポート
+     */
+    public String report() {
+        long total = succeeded.sum() + throttled.sum() + failed.sum();
+        double seconds = Math.max(1L, elapsedNanos) / 1e9;
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Target %,.0f record(s)/s for %.1fs with %d thread(s), %d in flight%n",
+                recordsPerSecond, seconds, workloads.length, maxInFlight));
+        builder.append(String.format("Sent %,d record(s) (%,.0f/s): succeeded %,d, throttled %,d, failed %,d%n",
+                total, total / seconds, succeeded.sum(), throttled.sum(), failed.sum()));
+        builder.append("Latency from intended send time (ms):");
+        appendPercentiles(builder, latencyMicros);
+        builder.append(String.format("%n  succeeded:"));
+        appendPercentiles(builder, successLatencyMicros);
+        builder.append(String.format("%n  throttled or failed:"));
+        appendPercentiles(builder, errorLatencyMicros);
+        builder.append(String.format("%nSend delay behind schedule (ms):"));
+        appendPercentiles(builder, sendDelayMicros);
+        return builder.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder builder, LatencyHistogram histogram) {
+        for (double percentile : REPORT_PERCENTILES) {
+            builder.append(String.format(" p%s %.3f", formatPercentile(percentile),
+                    histogram.getValueAtPercentile(percentile) / 1000.0));
+        }
+        builder.append(String.format(" max %.3f", histogram.getMax() / 1000.0));
+    }
+
+    private static String formatPercentile(double percentile) {
+        return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+    }
+
+    private static void checkUsage(String[] args) {
+        if (args.length < 4 || args.length > 6) {
+            System.err.println("Usage: " + StockTradeLoadGenerator.class.getSimpleName()
+                    + " <stream name> <region> <records per second> <duration seconds> [threads [max in flight]]");
+            System.exit(1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkUsage(args);
+
+        String streamName = args[0];
+        String regionName = args[1];
+        Region region = Region.of(regionName);
+        if (region == null) {
+            System.err.println(regionName + " is not a valid AWS region.");
+            System.exit(1);
+        }
+        double recordsPerSecond = Double.parseDouble(args[2]);
+        long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args[3]));
+        int threads = args.length >= 5 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        int maxInFlight = args.length == 6 ? Integer.parseInt(args[5]) : 1000;
+        StockTradeCodec.Format format = StockTradeCodec.Format.valueOf(
+                System.getProperty(FORMAT_PROPERTY, StockTradeCodec.Format.JSON.name()).toUpperCase());
+
+        KinesisAsyncClient kinesisClient = KinesisClientUtil.createKinesisAsyncClient(KinesisAsyncClient.builder().region(region));
+        StockTradesWriter.validateStream(kinesisClient, streamName);
+
+        StockTradeLoadGenerator loadGenerator = new StockTradeLoadGenerator(kinesisClient, streamName, format,
+                recordsPerSecond, TradeWorkload.fromSystemProperties(threads), maxInFlight,
+                PartitionKeyRouter.fromSystemProperties(ShardMap.fromStream(kinesisClient, streamName)));
+        loadGenerator.run(durationMillis);
+        System.out.println(loadGenerator.report());
+        System.exit(0);
+    }
+
+}
@@ -9,8 +9,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeCodec;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.ProvisionedThroughputExceededException;
 import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
 import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
 import software.amazon.kinesis.common.KinesisClientUtil;
@@ -22,15 +24,21 @@ public class StockTradesWriter {
 
     private static final Log LOG = LogFactory.getLog(StockTradesWriter.class);
 
+    // バッチ送信時に同時に送信中にできるバッチ数
+    private static final int MAX_IN_FLIGHT_BATCHES = 8;
+
+    // レコードのデータ形式を指定するシステムプロパティ
+    private static final String FORMAT_PROPERTY = "stocktrades.format";
+
     private static void checkUsage(String[] args) {
-        if (args.length != 2) {
+        if (args.length < 2 || args.length > 4) {
             System.err.println("Usage: " + StockTradesWriter.class.getSimpleName()
-                    + " <stream name> <region>");
+                    + " <stream name> <region> [linger millis [max aggregated record bytes]]");
             System.exit(1);
         }
     }
 
-    private static void validateStream(KinesisAsyncClient kinesisClient, String streamName) {
+    static void validateStream(KinesisAsyncClient kinesisClient, String streamName) {
         try {
             DescribeStreamRequest describeStreamRequest =  DescribeStreamRequest.builder().streamName(streamName).build();
             DescribeStreamResponse describeStreamResponse = kinesisClient.describeStream(describeStreamRequest).get();
@@ -51,26 +59,88 @@ public class StockTradesWriter {
      * @param trade 株式取引情報
      * @param kinesisClient Kinesis Client
      * @param streamName ストリーム名
+     * @param format データ形式
+     * @param router ホットキーの分散(分散しない場合はnull)
+     * @param producerConfig 再送の設定
      */
-    private static void sendStockTrade(StockTrade trade, KinesisAsyncClient kinesisClient, String streamName) {
-        byte[] bytes = trade.toJsonAsBytes();
-        if (bytes == null) {
-            LOG.warn("Could not get JSON bytes for stock trade");
+    private static void sendStockTrade(StockTrade trade, KinesisAsyncClient kinesisClient, String streamName,
+                                       StockTradeCodec.Format format, PartitionKeyRouter router,
+                                       BatchProducerConfig producerConfig) {
+        byte[] bytes;
+        try {
+            bytes = StockTradeCodec.encode(trade, format);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Could not encode stock trade", e);
             return;
         }
 
         LOG.info("Putting trade: " + trade.toString());
-        PutRecordRequest request = PutRecordRequest.builder()
-                .partitionKey(trade.getTickerSymbol())
+        PutRecordRequest.Builder builder = PutRecordRequest.builder();
+        if (router != null) {
+            PartitionKeyRouter.Route route = router.route(trade.getTickerSymbol(), trade.getId());
+            builder.partitionKey(route.getPartitionKey()).explicitHashKey(route.getExplicitHashKey());
+        } else {
+            builder.partitionKey(trade.getTickerSymbol());
+        }
+        PutRecordRequest request = builder
                 .streamName(streamName)
                 .data(SdkBytes.fromByteArray(bytes))
                 .build();
-        try {
-            kinesisClient.putRecord(request).get();
-        } catch (InterruptedException e) {
-            LOG.info("Interrupted, assuming shutdown.");
-        } catch (ExecutionException e) {
-            LOG.error("Exception while sending data to Kinesis. Will try again next cycle.", e);
+        // 失敗した場合はジッター付きの指数バックオフの後に再送する
+        for (int attempt = 1; ; attempt++) {
+            try {
+                kinesisClient.putRecord(request).get();
+                return;
+            } catch (InterruptedException e) {
+                LOG.info("Interrupted, assuming shutdown.");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                if (attempt >= producerConfig.getMaxAttempts()) {
+                    LOG.error("Giving up on trade " + trade.getId() + " after " + attempt + " attempt(s).", e);
+                    return;
+                }
+                if (e.getCause() instanceof ProvisionedThroughputExceededException) {
+                    LOG.warn("Throttled while sending data to Kinesis. Attempt: " + attempt);
+                } else {
+                    LOG.error("Exception while sending data to Kinesis. Attempt: " + attempt, e);
+                }
+            }
+            try {
+                Thread.sleep(producerConfig.backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                LOG.info("Interrupted, assuming shutdown.");
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 株式取引情報をまとめてストリームに送信し続けます。
+     * 送信中のバッチ数が上限に達するまでは待機せずに次の取引情報を生成します。
+     *
+     * @param kinesisClient Kinesis Client
+     * @param streamName ストリーム名
+     * @param lingerMillis バッチを送信するまでの最大滞留時間
+     * @param maxAggregatedRecordBytes 集約レコードの最大サイズ(0の場合は集約しない)
+     * @param format データ形式
+     * @param router ホットキーの分散(分散しない場合はnull)
+     * @param shardMap ストリームのシャード
+     * @param producerConfig 送信バッファと再送の設定
+     */
+    private static void sendStockTradesInBatches(KinesisAsyncClient kinesisClient, String streamName,
+                                                 long lingerMillis, int maxAggregatedRecordBytes,
+                                                 StockTradeCodec.Format format, PartitionKeyRouter router,
+                                                 ShardMap shardMap, BatchProducerConfig producerConfig)
+            throws InterruptedException {
+        StockTradeGenerator stockTradeGenerator = new StockTradeGenerator();
+        try (StockTradeBatchProducer producer = new StockTradeBatchProducer(kinesisClient, streamName,
+                lingerMillis, MAX_IN_FLIGHT_BATCHES, maxAggregatedRecordBytes, format, router, shardMap,
+                producerConfig)) {
+            while (true) {
+                producer.send(stockTradeGenerator.getRandomTrade());
+            }
         }
     }
 
@@ -90,11 +160,30 @@ public class StockTradesWriter {
         // Validate that the stream exists and is active
         validateStream(kinesisClient, streamName);
 
+        // Use JSON unless another record format is requested, e.g. -Dstocktrades.format=binary
+        StockTradeCodec.Format format = StockTradeCodec.Format.valueOf(
+                System.getProperty(FORMAT_PROPERTY, StockTradeCodec.Format.JSON.name()).toUpperCase());
+
+        // Spread hot partition keys across shards when requested, e.g. -Dstocktrades.routing.enabled=true
+        ShardMap shardMap = ShardMap.fromStream(kinesisClient, streamName);
+        PartitionKeyRouter router = PartitionKeyRouter.fromSystemProperties(shardMap);
+
+        // Buffer size, overflow policy and retries, e.g. -Dstocktrades.producer.overflowPolicy=drop
+        BatchProducerConfig producerConfig = BatchProducerConfig.fromSystemProperties();
+
+        // Send stock trades in batches when a linger time is given
+        if (args.length >= 3) {
+            int maxAggregatedRecordBytes = args.length == 4 ? Integer.parseInt(args[3]) : 0;
+            sendStockTradesInBatches(kinesisClient, streamName, Long.parseLong(args[2]), maxAggregatedRecordBytes,
+                    format, router, shardMap, producerConfig);
+            return;
+        }
+
         // Repeatedly send stock trades with a 100 milliseconds wait in between
         StockTradeGenerator stockTradeGenerator = new StockTradeGenerator();
         while(true) {
             StockTrade trade = stockTradeGenerator.getRandomTrade();
-            sendStockTrade(trade, kinesisClient, streamName);
+            sendStockTrade(trade, kinesisClient, streamName, format, router, producerConfig);
             Thread.sleep(100);
         }
     }
@@ -0,0 +1,52 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.writer;
+
+import java.util.Arrays;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+
+/**
+ * 送信する株式取引の生成方法(ワークロード)です。
+ * 特に記載がない限り実装はスレッドセーフではないため、送信するスレッドごとにインスタンスを用意してください。
+ */
+public interface TradeWorkload {
+
+    // ワークロードの種類を指定するシステムプロパティ(uniformまたはmarket)
+    String WORKLOAD_PROPERTY = "stocktrades.workload";
+
+    /**
+     * 次の取引を生成します。
+     *
+     * @param trade 取引の値を設定する先
+     * @return 取引の値を設定したtrade
+     */
+    StockTradeView nextTrade(StockTradeView trade);
+
+    /**
+     * @param elapsedMillis 送信開始からの経過時間
+     * @return 基準の送信レートに対する倍率
+     */
+    default double rateMultiplier(long elapsedMillis) {
+        return 1.0;
+    }
+
+    /**
+     * システムプロパティで指定されたワークロードを作成します。
+     *
+     * @param count 作成する数(送信するスレッド数)
+     * @return ワークロード
+     */
+    static TradeWorkload[] fromSystemProperties(int count) {
+        String workload = System.getProperty(WORKLOAD_PROPERTY, "uniform");
+        if ("market".equalsIgnoreCase(workload)) {
+            return MarketWorkloadConfig.fromSystemProperties().newWorkloads(count);
+        }
+        if (!"uniform".equalsIgnoreCase(workload)) {
+            throw new IllegalArgumentException("Unknown workload: " + workload);
+        }
+        // StockTradeGeneratorはスレッドセーフなので共有する
+        TradeWorkload[] workloads = new TradeWorkload[count];
+        Arrays.fill(workloads, new StockTradeGenerator());
+        return workloads;
+    }
+
+}
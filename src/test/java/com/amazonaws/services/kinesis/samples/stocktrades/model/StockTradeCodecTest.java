@@ -0,0 +1,87 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+
+class StockTradeCodecTest {
+
+    @Test
+    void binaryRoundTripUsesDictionaryCode() {
+        StockTrade trade = new StockTrade("AAPL", TradeType.BUY, 123.45, 100L, 42L);
+
+        byte[] bytes = StockTradeCodec.encode(trade, StockTradeCodec.Format.BINARY);
+
+        // 辞書にある銘柄は文字列を含めない
+        assertEquals(StockTradeCodec.BINARY_FIXED_BYTES, bytes.length);
+        assertEquals(TickerDictionary.codeOf("AAPL"), bytes[bytes.length - 1] & 0xFF);
+        assertSameTrade(trade, StockTradeCodec.decode(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void binaryRoundTripKeepsTickerOutsideDictionary() {
+        StockTrade trade = new StockTrade("ZZZZ.X", TradeType.SELL, 0.5, 7L, Long.MAX_VALUE);
+
+        byte[] bytes = StockTradeCodec.encode(trade, StockTradeCodec.Format.BINARY);
+
+        assertEquals(StockTradeCodec.BINARY_FIXED_BYTES + 1 + "ZZZZ.X".length(), bytes.length);
+        assertSameTrade(trade, StockTradeCodec.decode(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void everyDictionaryTickerRoundTrips() {
+        for (int code = 1; TickerDictionary.symbolOf(code) != null; code++) {
+            String symbol = TickerDictionary.symbolOf(code);
+            assertEquals(code, TickerDictionary.codeOf(symbol));
+            StockTrade trade = new StockTrade(symbol, TradeType.BUY, code, code, code);
+
+            byte[] bytes = StockTradeCodec.encode(trade, StockTradeCodec.Format.BINARY);
+
+            assertSameTrade(trade, StockTradeCodec.decode(ByteBuffer.wrap(bytes)));
+        }
+    }
+
+    @Test
+    void jsonRoundTrip() {
+        StockTrade trade = new StockTrade("MSFT", TradeType.SELL, 99.5, 3L, 9L);
+
+        byte[] bytes = StockTradeCodec.encode(trade, StockTradeCodec.Format.JSON);
+
+        assertEquals(StockTradeCodec.Format.JSON, StockTradeCodec.formatOf(ByteBuffer.wrap(bytes)));
+        assertSameTrade(trade, StockTradeCodec.decode(ByteBuffer.wrap(bytes)));
+    }
+
+    @Test
+    void decodeDoesNotMovePosition() {
+        byte[] bytes = StockTradeCodec.encode(new StockTrade("KO", TradeType.BUY, 1.0, 1L, 1L),
+                StockTradeCodec.Format.BINARY);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        StockTradeCodec.decode(buffer);
+
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void truncatedBinaryIsRejected() {
+        byte[] bytes = StockTradeCodec.encode(new StockTrade("ZZZZ.X", TradeType.BUY, 1.0, 1L, 1L),
+                StockTradeCodec.Format.BINARY);
+        ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice();
+
+        assertThrows(IllegalArgumentException.class, () -> StockTradeCodec.decode(truncated));
+    }
+
+    private static void assertSameTrade(StockTrade expected, StockTrade actual) {
+        assertEquals(expected.getTickerSymbol(), actual.getTickerSymbol());
+        assertEquals(expected.getTradeType(), actual.getTradeType());
+        assertEquals(expected.getPrice(), actual.getPrice());
+        assertEquals(expected.getQuantity(), actual.getQuantity());
+        assertEquals(expected.getId(), actual.getId());
+    }
+
+}
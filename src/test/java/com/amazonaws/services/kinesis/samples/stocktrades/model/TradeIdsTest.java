@@ -0,0 +1,58 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.model;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class TradeIdsTest {
+
+    private static final long MAX_WRITER_ID = (1L << TradeIds.WRITER_BITS) - 1;
+    private static final long MAX_SEQUENCE = (1L << TradeIds.SEQUENCE_BITS) - 1;
+
+    @Test
+    void packsWriterIdAndSequence() {
+        long id = TradeIds.of(12345L, 67890L);
+
+        assertEquals(12345L, TradeIds.writerOf(id));
+        assertEquals(67890L, TradeIds.sequenceOf(id));
+    }
+
+    @Test
+    void largestWriterIdAndSequenceFitInPositiveLong() {
+        long id = TradeIds.of(MAX_WRITER_ID, MAX_SEQUENCE);
+
+        assertEquals(Long.MAX_VALUE, id);
+        assertEquals(MAX_WRITER_ID, TradeIds.writerOf(id));
+        assertEquals(MAX_SEQUENCE, TradeIds.sequenceOf(id));
+    }
+
+    @Test
+    void sequenceOverflowDoesNotChangeWriterId() {
+        long id = TradeIds.of(7L, MAX_SEQUENCE + 1);
+
+        assertEquals(7L, TradeIds.writerOf(id));
+        assertEquals(0L, TradeIds.sequenceOf(id));
+    }
+
+    @Test
+    void nextIdUsesLocalWriterIdAndIncreasingSequences() {
+        long first = TradeIds.nextId();
+        long second = TradeIds.nextId();
+
+        long writerId = TradeIds.localWriterId();
+        assertTrue(writerId >= 1 && writerId <= MAX_WRITER_ID);
+        assertEquals(writerId, TradeIds.writerOf(first));
+        assertEquals(writerId, TradeIds.writerOf(second));
+        assertTrue(TradeIds.sequenceOf(second) > TradeIds.sequenceOf(first));
+    }
+
+    @Test
+    void reservedSequencesAreNotReused() {
+        long block = TradeIds.reserveSequences(1024);
+        long next = TradeIds.sequenceOf(TradeIds.nextId());
+
+        assertTrue(next >= block + 1024);
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StateSnapshotStoreTest {
+
+    private static final String SHARD_ID = "shardId-000000000000";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsSnapshotWrittenForCheckpoint() throws IOException {
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            write(store, "100", "first");
+            write(store, "200", "second");
+        }
+
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            assertPayload("first", store.read("100", 0L));
+            assertPayload("second", store.read("200", 0L));
+            assertNull(store.read("300", 0L));
+            assertNull(store.read("200", 1L));
+        }
+    }
+
+    @Test
+    void corruptSnapshotFallsBackToOtherFile() throws IOException {
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            write(store, "100", "first");
+            write(store, "200", "second");
+        }
+        // 2回目はbのファイルに書き込まれる。ペイロードの末尾を壊す
+        Path b = directory.resolve(SHARD_ID + ".b.snapshot");
+        try (FileChannel channel = FileChannel.open(b, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = headerBytes() + "200".length() + "second".length() - 1;
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), position);
+        }
+
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            assertNull(store.read("200", 0L));
+            assertPayload("first", store.read("100", 0L));
+
+            // 壊れたファイルは古い方として次に上書きされる
+            write(store, "300", "third");
+            assertPayload("first", store.read("100", 0L));
+            assertPayload("third", store.read("300", 0L));
+        }
+    }
+
+    @Test
+    void tornWriteFallsBackToOtherFile() throws IOException {
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            write(store, "100", "first");
+            write(store, "200", "second");
+        }
+        // bの書き込み中に停止した状態(magicを書き込む前)を再現する
+        Path b = directory.resolve(SHARD_ID + ".b.snapshot");
+        try (FileChannel channel = FileChannel.open(b, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0L);
+        }
+
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            assertNull(store.read("200", 0L));
+            assertPayload("first", store.read("100", 0L));
+        }
+    }
+
+    @Test
+    void truncatedSnapshotFileIsIgnored() throws IOException {
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            write(store, "100", "first");
+            write(store, "200", "second");
+        }
+        Path b = directory.resolve(SHARD_ID + ".b.snapshot");
+        try (FileChannel channel = FileChannel.open(b, StandardOpenOption.WRITE)) {
+            channel.truncate(headerBytes() + 2);
+        }
+
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            assertNull(store.read("200", 0L));
+            assertPayload("first", store.read("100", 0L));
+        }
+    }
+
+    @Test
+    void keepsLatestSnapshotForSameCheckpoint() throws IOException {
+        try (StateSnapshotStore store = new StateSnapshotStore(directory, SHARD_ID)) {
+            write(store, "100", "first");
+            write(store, "100", "second");
+            write(store, "100", "third");
+
+            assertPayload("third", store.read("100", 0L));
+        }
+    }
+
+    private static void write(StateSnapshotStore store, String sequenceNumber, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        store.write(sequenceNumber, 0L, bytes, bytes.length);
+    }
+
+    private static void assertPayload(String expected, byte[] payload) {
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), payload);
+    }
+
+    // magic(4) version(4) crc32(4) generation(8) subSequenceNumber(8) sequenceLength(4) payloadLength(4)
+    private static int headerBytes() {
+        return 4 + 4 + 4 + 8 + 8 + 4 + 4;
+    }
+
+}
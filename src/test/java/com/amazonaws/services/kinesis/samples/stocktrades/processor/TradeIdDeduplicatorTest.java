@@ -0,0 +1,147 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.TradeIds;
+
+class TradeIdDeduplicatorTest {
+
+    private static final int HORIZON = 128;
+    private static final long WRITER = 3L;
+
+    @Test
+    void duplicateInsideHorizonIsRejected() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        for (long sequence = 0; sequence < 200; sequence++) {
+            assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, sequence)));
+        }
+
+        // 最大の連番199から127前までは範囲内
+        assertFalse(deduplicator.firstSeen(TradeIds.of(WRITER, 199)));
+        assertFalse(deduplicator.firstSeen(TradeIds.of(WRITER, 199 - HORIZON + 1)));
+        assertEquals(2, deduplicator.duplicates());
+        assertEquals(0, deduplicator.sequenceResets());
+    }
+
+    @Test
+    void sequenceJustOutsideHorizonIsAccepted() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        for (long sequence = 0; sequence < 200; sequence++) {
+            deduplicator.firstSeen(TradeIds.of(WRITER, sequence));
+        }
+
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 199 - HORIZON)));
+        assertEquals(0, deduplicator.duplicates());
+        assertEquals(1, deduplicator.sequenceResets());
+    }
+
+    @Test
+    void outOfOrderSequencesInsideHorizonAreAccepted() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 100)));
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 90)));
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 101)));
+        assertFalse(deduplicator.firstSeen(TradeIds.of(WRITER, 90)));
+    }
+
+    @Test
+    void bitsAreClearedWhenHorizonMovesPast() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 5)));
+
+        // 同じビットを再利用する連番5 + HORIZONは、連番5の記録に影響されない
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 5 + HORIZON)));
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 5 + 2 * HORIZON - 1)));
+        assertEquals(0, deduplicator.duplicates());
+    }
+
+    @Test
+    void writerRestartWithSameIdIsAccepted() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        for (long sequence = 0; sequence < 1000; sequence++) {
+            deduplicator.firstSeen(TradeIds.of(WRITER, sequence));
+        }
+
+        // 再起動して連番を0からやり直す
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 0)));
+        assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER, 1)));
+        assertFalse(deduplicator.firstSeen(TradeIds.of(WRITER, 1)));
+        assertEquals(1, deduplicator.sequenceResets());
+        assertEquals(1, deduplicator.duplicates());
+    }
+
+    @Test
+    void writerRestartWithNewIdIsAccepted() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        for (long sequence = 0; sequence < 10; sequence++) {
+            deduplicator.firstSeen(TradeIds.of(WRITER, sequence));
+        }
+
+        for (long sequence = 0; sequence < 10; sequence++) {
+            assertTrue(deduplicator.firstSeen(TradeIds.of(WRITER + 1, sequence)));
+        }
+        assertFalse(deduplicator.firstSeen(TradeIds.of(WRITER, 9)));
+        assertEquals(0, deduplicator.sequenceResets());
+    }
+
+    @Test
+    void leastRecentlySeenWriterIsEvicted() {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 2);
+        deduplicator.firstSeen(TradeIds.of(1L, 5));
+        deduplicator.firstSeen(TradeIds.of(2L, 5));
+        deduplicator.firstSeen(TradeIds.of(1L, 6));
+
+        // ライター3を追加すると、最も長く受け取っていないライター2を破棄する
+        deduplicator.firstSeen(TradeIds.of(3L, 5));
+
+        assertFalse(deduplicator.firstSeen(TradeIds.of(1L, 5)));
+        assertFalse(deduplicator.firstSeen(TradeIds.of(3L, 5)));
+        assertTrue(deduplicator.firstSeen(TradeIds.of(2L, 5)));
+    }
+
+    @Test
+    void snapshotRoundTripKeepsSeenIds() throws IOException {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        deduplicator.firstSeen(TradeIds.of(1L, 10));
+        deduplicator.firstSeen(TradeIds.of(2L, 20));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        deduplicator.writeTo(new DataOutputStream(bytes));
+
+        TradeIdDeduplicator restored = new TradeIdDeduplicator(HORIZON, 4);
+        assertTrue(restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+
+        assertFalse(restored.firstSeen(TradeIds.of(1L, 10)));
+        assertFalse(restored.firstSeen(TradeIds.of(2L, 20)));
+        assertTrue(restored.firstSeen(TradeIds.of(2L, 21)));
+    }
+
+    @Test
+    void snapshotWithDifferentHorizonIsSkipped() throws IOException {
+        TradeIdDeduplicator deduplicator = new TradeIdDeduplicator(HORIZON, 4);
+        deduplicator.firstSeen(TradeIds.of(1L, 10));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        deduplicator.writeTo(out);
+        out.writeInt(0x12345678);
+
+        TradeIdDeduplicator restored = new TradeIdDeduplicator(HORIZON * 2, 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertFalse(restored.readFrom(in));
+
+        // 続くデータを読めるように読み飛ばしている
+        assertEquals(0x12345678, in.readInt());
+        assertTrue(restored.firstSeen(TradeIds.of(1L, 10)));
+    }
+
+}
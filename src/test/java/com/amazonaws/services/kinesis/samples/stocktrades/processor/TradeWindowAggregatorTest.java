@@ -0,0 +1,107 @@
+package com.amazonaws.services.kinesis.samples.stocktrades.processor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTrade.TradeType;
+import com.amazonaws.services.kinesis.samples.stocktrades.model.StockTradeView;
+
+class TradeWindowAggregatorTest {
+
+    private final List<WindowResult> closed = new ArrayList<>();
+    private final StockTradeView trade = new StockTradeView();
+
+    @Test
+    void windowClosesWhenWatermarkPassesItsEnd() {
+        TradeWindowAggregator aggregator = new TradeWindowAggregator(1000L, 1000L, 0L, closed::add);
+
+        add(aggregator, 100L, "AAPL", 10.0, 1L);
+        add(aggregator, 500L, "AAPL", 12.0, 3L);
+        add(aggregator, 999L, "MSFT", 20.0, 2L);
+        assertTrue(closed.isEmpty());
+
+        add(aggregator, 1000L, "AAPL", 11.0, 1L);
+
+        assertEquals(1, closed.size());
+        WindowResult window = closed.get(0);
+        assertEquals(0L, window.getStartMillis());
+        assertEquals(1000L, window.getEndMillis());
+        TickerBar aapl = window.getBars().get("AAPL");
+        assertEquals(2L, aapl.getCount());
+        assertEquals(4L, aapl.getVolume());
+        assertEquals(10.0, aapl.getOpen());
+        assertEquals(12.0, aapl.getClose());
+        assertEquals(1L, window.getBars().get("MSFT").getCount());
+    }
+
+    @Test
+    void allowedLatenessDelaysClosingAndAcceptsLateTrades() {
+        TradeWindowAggregator aggregator = new TradeWindowAggregator(1000L, 1000L, 200L, closed::add);
+
+        add(aggregator, 900L, "AAPL", 10.0, 1L);
+        add(aggregator, 1100L, "AAPL", 10.0, 1L);
+        assertEquals(900L, aggregator.getWatermark());
+        assertTrue(closed.isEmpty());
+
+        // ウォーターマーク以降の取引は閉じる前のウィンドウに入る
+        assertTrue(add(aggregator, 950L, "AAPL", 10.0, 1L));
+        add(aggregator, 1200L, "AAPL", 10.0, 1L);
+
+        assertEquals(1, closed.size());
+        assertEquals(2L, closed.get(0).getBars().get("AAPL").getCount());
+    }
+
+    @Test
+    void tradeForClosedWindowIsLate() {
+        TradeWindowAggregator aggregator = new TradeWindowAggregator(1000L, 1000L, 0L, closed::add);
+        add(aggregator, 100L, "AAPL", 10.0, 1L);
+        add(aggregator, 1500L, "AAPL", 10.0, 1L);
+
+        assertFalse(add(aggregator, 900L, "AAPL", 10.0, 1L));
+
+        assertEquals(1L, aggregator.getLateTrades());
+        assertEquals(1L, closed.get(0).getBars().get("AAPL").getCount());
+    }
+
+    @Test
+    void advancingWatermarkWithoutTradesClosesWindows() {
+        TradeWindowAggregator aggregator = new TradeWindowAggregator(1000L, 1000L, 0L, closed::add);
+        add(aggregator, 100L, "AAPL", 10.0, 1L);
+        add(aggregator, 1100L, "MSFT", 10.0, 1L);
+        assertEquals(1, closed.size());
+
+        aggregator.advanceWatermark(60000L);
+
+        // 取引のないウィンドウは通知しない
+        assertEquals(2, closed.size());
+        assertEquals(1000L, closed.get(1).getStartMillis());
+        assertTrue(closed.get(1).getBars().containsKey("MSFT"));
+    }
+
+    @Test
+    void slidingWindowsShareTrades() {
+        TradeWindowAggregator aggregator = new TradeWindowAggregator(2000L, 1000L, 0L, closed::add);
+        add(aggregator, 500L, "AAPL", 10.0, 1L);
+        add(aggregator, 1500L, "AAPL", 10.0, 1L);
+
+        aggregator.advanceWatermark(3000L);
+
+        // [-1000, 1000), [0, 2000), [1000, 3000)
+        assertEquals(3, closed.size());
+        assertEquals(1L, closed.get(0).getBars().get("AAPL").getCount());
+        assertEquals(2L, closed.get(1).getBars().get("AAPL").getCount());
+        assertEquals(1L, closed.get(2).getBars().get("AAPL").getCount());
+    }
+
+    private boolean add(TradeWindowAggregator aggregator, long eventTime, String ticker, double price,
+                        long quantity) {
+        return aggregator.addStockTrade(eventTime, trade.set(ticker, TradeType.BUY, price, quantity, 0L));
+    }
+
+}